@@ -389,6 +389,24 @@ int COM_turn_on_off_rds(int fd, int onoff)
     return ret;
 }
 
+/*
+ * Raw RDS blocks the chip received since the last call, raw->dirty is 0 if
+ * there are none.
+ */
+int COM_get_rds_log(int fd, struct rds_raw_data *raw)
+{
+    int ret = 0;
+
+    FMR_ASSERT(raw);
+
+    ret = ioctl(fd, FM_IOCTL_RDS_GET_LOG, raw);
+    if (ret) {
+        LOGE("%s, failed, errno=%d\n", __func__, errno);
+        return -ERR_RDS_NO_DATA;
+    }
+    return 0;
+}
+
 int COM_get_chip_id(int fd, int *chipid)
 {
     int ret = 0;
@@ -576,6 +594,7 @@ void FM_interface_init(struct fm_cbk_tbl *cbk_tbl)
     cbk_tbl->get_ps = COM_get_ps;
     cbk_tbl->get_rt = COM_get_rt;
     cbk_tbl->active_af = COM_active_af;
+    cbk_tbl->get_rds_log = COM_get_rds_log;
     //FM short antenna
     cbk_tbl->ana_switch = COM_ana_switch;
     cbk_tbl->desense_check = COM_desense_check;
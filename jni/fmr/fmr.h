@@ -32,6 +32,7 @@
 #include <signal.h>
 #include <errno.h>
 #include <dlfcn.h>
+#include <poll.h>
 
 #include "fm.h"
 
@@ -114,6 +115,7 @@ struct fm_cbk_tbl {
     int (*get_ps)(int fd, RDSData_Struct *rds, uint8_t **ps, int *ps_len);
     int (*get_rt)(int fd, RDSData_Struct *rds, uint8_t **rt, int *rt_len);
     int (*active_af)(int fd, RDSData_Struct *rds, int band, uint16_t cur_freq, uint16_t *ret_freq);
+    int (*get_rds_log)(int fd, struct rds_raw_data *raw);
     //FM long/short antenna switch
     int (*ana_switch)(int fd, int antenna);
     int (*soft_mute_tune)(int fd, fm_softmute_tune_t *para);
@@ -167,6 +169,50 @@ enum fmr_rds_onoff {
     FMR_MAX
 };
 
+// results of FMR_wait_rds() besides an event status
+enum fmr_rds_wait_em {
+    FMR_RDS_WAIT_CANCELLED = -1, // FMR_cancel_rds_wait() was called
+    FMR_RDS_WAIT_ERROR = -2,     // poll failed or the device went away
+    FMR_RDS_WAIT_UNSUPPORTED = -3, // the driver reports readable without data, poll instead
+    FMR_RDS_SNAPSHOT_BAD_BUFFER = -4 // snapshot buffer not direct or too small
+};
+
+#define FMR_RDS_SNAPSHOT_VERSION 2
+#define FMR_RDS_SNAPSHOT_TP 0x01
+#define FMR_RDS_SNAPSHOT_TA 0x02
+
+/*
+ * RDS state as one block, native byte order, mirrored by RdsSnapshot.java.
+ * A field's seq_ counter advances each time the driver reports an event for
+ * it, so the reader only decodes what moved.
+ */
+struct fmr_rds_snapshot {
+    uint16_t version;
+    uint16_t events;    // event status of this read
+    uint32_t seq_flags; // TP/TA
+    uint32_t seq_pi;
+    uint32_t seq_pty;
+    uint32_t seq_ps;
+    uint32_t seq_rt;
+    uint32_t seq_af;
+    uint16_t pi;
+    uint8_t pty;
+    uint8_t flags;      // FMR_RDS_SNAPSHOT_TP, FMR_RDS_SNAPSHOT_TA
+    uint16_t af_count;
+    uint8_t ps_len;
+    uint8_t rt_len;
+    uint8_t ps[FM_RDS_PS_LEN];
+    uint8_t rt[64];
+    uint32_t seq_ct;    // clock time, UTC
+    uint16_t ct_year;
+    uint8_t ct_month;
+    uint8_t ct_day;
+    uint8_t ct_hour;
+    uint8_t ct_minute;
+    int8_t ct_offset;   // local time offset in half hours
+    uint8_t reserved;
+};
+
 typedef enum {
     FM_LONG_ANA = 0,
     FM_SHORT_ANA
@@ -198,6 +244,10 @@ int FMR_is_rdsrx_support(int idx, int *supt);
 int FMR_turn_on_off_rds(int idx, int onoff);
 int FMR_get_chip_id(int idx, int *chipid);
 int FMR_read_rds_data(int idx, uint16_t *rds_status);
+int FMR_wait_rds(int idx, int timeout_ms);
+int FMR_cancel_rds_wait(int idx);
+void FMR_get_rds_snapshot(int idx, uint16_t events, struct fmr_rds_snapshot *snap);
+int FMR_get_rds_log(int idx, struct rds_raw_data *raw);
 int FMR_get_ps(int idx, uint8_t **ps, int *ps_len);
 int FMR_get_rssi(int idx, int *rssi);
 int FMR_get_rt(int idx, uint8_t **rt, int *rt_len);
@@ -224,7 +274,9 @@ int COM_get_chip_id(int fd, int *chipid);
 int COM_read_rds_data(int fd, RDSData_Struct *rds, uint16_t *rds_status);
 int COM_get_ps(int fd, RDSData_Struct *rds, uint8_t **ps, int *ps_len);
 int COM_get_rt(int fd, RDSData_Struct *rds, uint8_t **rt, int *rt_len);
+void COM_change_string(uint8_t *str, int len);
 int COM_active_af(int fd, RDSData_Struct *rds, int band, uint16_t cur_freq, uint16_t *ret_freq);
+int COM_get_rds_log(int fd, struct rds_raw_data *raw);
 
 int COM_ana_switch(int fd, int antenna);
 int COM_desense_check(int fd, int freq, int rssi);
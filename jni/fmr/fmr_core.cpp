@@ -37,8 +37,15 @@
 
 #define FMR_MAX_IDX 1
 
+// empty reads in a row after which poll() is taken to be unsupported
+#define FMR_RDS_MAX_EMPTY_READS 10
+
 struct fmr_ds fmr_data;
 struct fmr_ds *pfmr_data[FMR_MAX_IDX] = {0};
+// wakes FMR_wait_rds() up for shutdown, open while the device is
+static int rds_cancel_pipe[2] = {-1, -1};
+// the pipe could not be made, only then is waiting unsupported
+static bool rds_cancel_pipe_failed = false;
 #define FMR_fd(idx) ((pfmr_data[idx])->fd)
 #define FMR_err(idx) ((pfmr_data[idx])->err)
 #define FMR_chip(idx) ((pfmr_data[idx])->cfg_data.chip)
@@ -158,6 +165,15 @@ int FMR_open_dev(int idx)
         return ret;
     }
 
+    rds_cancel_pipe_failed = false;
+    if (rds_cancel_pipe[0] < 0 && pipe2(rds_cancel_pipe, O_CLOEXEC | O_NONBLOCK)) {
+        // RDS falls back to polling
+        LOGE("%s, rds cancel pipe failed, errno=%d\n", __func__, errno);
+        rds_cancel_pipe[0] = -1;
+        rds_cancel_pipe[1] = -1;
+        rds_cancel_pipe_failed = true;
+    }
+
     LOGD("%s, [fd=%d] [chipid=0x%x] [ret=%d]\n", __func__, FMR_fd(idx), real_chip, ret);
     return ret;
 }
@@ -168,6 +184,12 @@ int FMR_close_dev(int idx)
 
     FMR_ASSERT(FMR_cbk_tbl(idx).close_dev);
     ret = FMR_cbk_tbl(idx).close_dev(FMR_fd(idx));
+    if (rds_cancel_pipe[0] >= 0) {
+        close(rds_cancel_pipe[0]);
+        close(rds_cancel_pipe[1]);
+        rds_cancel_pipe[0] = -1;
+        rds_cancel_pipe[1] = -1;
+    }
     LOGD("%s, [fd=%d] [ret=%d]\n", __func__, FMR_fd(idx), ret);
     return ret;
 }
@@ -795,6 +817,151 @@ int FMR_read_rds_data(int idx, uint16_t *rds_status)
     return ret;
 }
 
+/*
+ * Block until the driver has an RDS event, instead of reading it on a timer.
+ * Returns the event status (> 0), 0 on timeout, or one of fmr_rds_wait_em.
+ * Reads that come back without an event go back to waiting here, so the
+ * caller only wakes for events.
+ */
+int FMR_wait_rds(int idx, int timeout_ms)
+{
+    struct pollfd fds[2];
+    uint16_t status = 0;
+    int empty = 0;
+    int ret = 0;
+    char drain[16];
+
+    if (rds_cancel_pipe[0] < 0) {
+        // a thread still running after FMR_close_dev() must not give up on waiting
+        return rds_cancel_pipe_failed ? FMR_RDS_WAIT_UNSUPPORTED : FMR_RDS_WAIT_ERROR;
+    }
+    fds[0].fd = FMR_fd(idx);
+    fds[0].events = POLLIN;
+    fds[1].fd = rds_cancel_pipe[0];
+    fds[1].events = POLLIN;
+
+    while (1) {
+        fds[0].revents = 0;
+        fds[1].revents = 0;
+        ret = poll(fds, 2, timeout_ms);
+        if (ret < 0 && errno == EINTR) {
+            continue;
+        }
+        if (ret < 0) {
+            LOGE("%s, poll failed, errno=%d\n", __func__, errno);
+            return FMR_RDS_WAIT_ERROR;
+        }
+        if (ret == 0) {
+            return 0;
+        }
+        if (fds[1].revents & POLLIN) {
+            while (read(rds_cancel_pipe[0], drain, sizeof(drain)) > 0) {
+            }
+            return FMR_RDS_WAIT_CANCELLED;
+        }
+        if (fds[0].revents & (POLLERR | POLLHUP | POLLNVAL)) {
+            LOGE("%s, device error, revents=0x%x\n", __func__, fds[0].revents);
+            return FMR_RDS_WAIT_ERROR;
+        }
+        ret = FMR_read_rds_data(idx, &status);
+        if (ret == 0 && status != 0) {
+            return status;
+        }
+        // a driver without poll support always reports readable
+        if (++empty >= FMR_RDS_MAX_EMPTY_READS) {
+            LOGW("%s, %d reads without event, poll not supported\n", __func__, empty);
+            return FMR_RDS_WAIT_UNSUPPORTED;
+        }
+    }
+}
+
+int FMR_cancel_rds_wait(int idx __unused)
+{
+    if (rds_cancel_pipe[1] < 0) {
+        return -ERR_INVALID_FD;
+    }
+    if (write(rds_cancel_pipe[1], "c", 1) != 1 && errno != EAGAIN) {
+        LOGE("%s, failed, errno=%d\n", __func__, errno);
+        return -ERR_INVALID_FD;
+    }
+    return 0;
+}
+
+// counters and fields of the last snapshot, only touched by the RDS reader
+static struct fmr_rds_snapshot rds_snapshot;
+static_assert(sizeof(struct fmr_rds_snapshot) == 120, "RdsSnapshot.java mirrors the layout");
+
+void FMR_get_rds_snapshot(int idx __unused, uint16_t events, struct fmr_rds_snapshot *snap)
+{
+    RDSData_Struct *rds = &fmr_data.rds;
+    struct fmr_rds_snapshot *cur = &rds_snapshot;
+    int len;
+
+    cur->version = FMR_RDS_SNAPSHOT_VERSION;
+    cur->events = events;
+    if (events & RDS_EVENT_FLAGS) {
+        cur->flags = (rds->RDSFlag.TP ? FMR_RDS_SNAPSHOT_TP : 0)
+                | (rds->RDSFlag.TA ? FMR_RDS_SNAPSHOT_TA : 0);
+        cur->seq_flags++;
+    }
+    if (events & RDS_EVENT_PI_CODE) {
+        cur->pi = rds->PI;
+        cur->seq_pi++;
+    }
+    if (events & RDS_EVENT_PTY_CODE) {
+        cur->pty = rds->PTY;
+        cur->seq_pty++;
+    }
+    if (events & RDS_EVENT_PROGRAMNAME) {
+        // the same field COM_get_ps() hands out
+        memcpy(cur->ps, rds->PS_Data.PS[3], FM_RDS_PS_LEN);
+        COM_change_string(cur->ps, FM_RDS_PS_LEN);
+        cur->ps_len = FM_RDS_PS_LEN;
+        cur->seq_ps++;
+    }
+    if (events & RDS_EVENT_LAST_RADIOTEXT) {
+        len = rds->RT_Data.TextLength;
+        if (len > (int)sizeof(cur->rt)) {
+            len = sizeof(cur->rt);
+        }
+        memcpy(cur->rt, rds->RT_Data.TextData[3], len);
+        COM_change_string(cur->rt, len);
+        cur->rt_len = len;
+        cur->seq_rt++;
+    }
+    if (events & (RDS_EVENT_UTCDATETIME | RDS_EVENT_LOCDATETIME)) {
+        cur->ct_year = rds->CT.Year;
+        cur->ct_month = rds->CT.Month;
+        cur->ct_day = rds->CT.Day;
+        cur->ct_hour = rds->CT.Hour;
+        cur->ct_minute = rds->CT.Minute;
+        cur->ct_offset = rds->CT.Local_Time_offset_signbit
+                ? -rds->CT.Local_Time_offset_half_hour : rds->CT.Local_Time_offset_half_hour;
+        cur->seq_ct++;
+    }
+    if (events & (RDS_EVENT_AF_LIST | RDS_EVENT_AF)) {
+        cur->af_count = rds->AF_Data.AF_Num > 0 ? rds->AF_Data.AF_Num : 0;
+        cur->seq_af++;
+    }
+    memcpy(snap, cur, sizeof(*snap));
+}
+
+int FMR_get_rds_log(int idx, struct rds_raw_data *raw)
+{
+    int ret = 0;
+
+    FMR_ASSERT(FMR_cbk_tbl(idx).get_rds_log);
+    FMR_ASSERT(raw);
+
+    memset(raw, 0, sizeof(*raw));
+    ret = FMR_cbk_tbl(idx).get_rds_log(FMR_fd(idx), raw);
+    // called on every RDS wakeup while capturing, only log what came in
+    if (raw->dirty) {
+        LOGD("%s, [len=%d] [ret=%d]\n", __func__, raw->len, ret);
+    }
+    return ret;
+}
+
 int FMR_active_af(int idx, uint16_t *ret_freq)
 {
     int ret = 0;
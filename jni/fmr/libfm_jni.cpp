@@ -158,6 +158,65 @@ jshort readRds(JNIEnv *env __unused, jobject thiz __unused)
     return status;
 }
 
+jint waitRds(JNIEnv *env __unused, jobject thiz __unused, jint timeoutMs)
+{
+    // event status, 0 on timeout, or a negative fmr_rds_wait_em
+    return FMR_wait_rds(g_idx, timeoutMs);
+}
+
+void cancelRdsWait(JNIEnv *env __unused, jobject thiz __unused)
+{
+    FMR_cancel_rds_wait(g_idx);
+}
+
+jint readRdsSnapshot(JNIEnv *env, jobject thiz __unused, jobject buffer, jboolean wait)
+{
+    struct fmr_rds_snapshot snap;
+    uint16_t status = 0;
+    int events = 0;
+    uint8_t *addr = (uint8_t *)env->GetDirectBufferAddress(buffer);
+
+    if (addr == NULL || env->GetDirectBufferCapacity(buffer) < (jlong)sizeof(snap)) {
+        LOGE("%s, bad buffer\n", __func__);
+        return FMR_RDS_SNAPSHOT_BAD_BUFFER;
+    }
+    if (wait) {
+        events = FMR_wait_rds(g_idx, -1);
+        if (events < 0) {
+            return events;
+        }
+    } else {
+        if (FMR_read_rds_data(g_idx, &status) == 0) {
+            events = status;
+        }
+    }
+    // the buffer has no alignment guarantee
+    FMR_get_rds_snapshot(g_idx, events, &snap);
+    memcpy(addr, &snap, sizeof(snap));
+    return events;
+}
+
+jint readRdsLog(JNIEnv *env, jobject thiz __unused, jobject buffer)
+{
+    struct rds_raw_data raw;
+    int len = 0;
+    uint8_t *addr = (uint8_t *)env->GetDirectBufferAddress(buffer);
+
+    if (addr == NULL || env->GetDirectBufferCapacity(buffer) < (jlong)sizeof(raw.data)) {
+        LOGE("%s, bad buffer\n", __func__);
+        return -1;
+    }
+    if (FMR_get_rds_log(g_idx, &raw)) {
+        return -1;
+    }
+    if (!raw.dirty || raw.len <= 0) {
+        return 0;
+    }
+    len = raw.len > (int)sizeof(raw.data) ? (int)sizeof(raw.data) : raw.len;
+    memcpy(addr, raw.data, len);
+    return len;
+}
+
 jbyteArray getPs(JNIEnv *env, jobject thiz __unused)
 {
     int ret = 0;
@@ -350,6 +409,10 @@ static JNINativeMethod methodsRx[] = {
     {"setMute",	"(Z)I", (void*)setMute},  //15
     {"isRdsSupport",	"()I", (void*)isRdsSupport},  //16
     {"switchAntenna", "(I)I", (void*)switchAntenna}, //17
+    {"waitRds",   "(I)I", (void*)waitRds },  //18 blocks until an rds event
+    {"cancelRdsWait", "()V", (void*)cancelRdsWait }, //19
+    {"readRdsSnapshot", "(Ljava/nio/ByteBuffer;Z)I", (void*)readRdsSnapshot }, //20
+    {"readRdsLog", "(Ljava/nio/ByteBuffer;)I", (void*)readRdsLog }, //21
 };
 
 /*
@@ -18,9 +18,9 @@ package com.android.fmradio;
 
 import android.media.AudioFormat;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -29,42 +29,132 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 class AudioRecorder extends HandlerThread implements Handler.Callback {
     public static final int AUDIO_RECORDER_ERROR_INTERNAL = -100;
     public static final int AUDIO_RECORDER_WARN_DISK_LOW = 100;
+    public static final int AUDIO_RECORDER_WARN_DISK_LOW_SOON = 101;
     private static final boolean TRACE = false;
     private static final String TAG = "AudioRecorder";
     private static final int MSG_INIT = 100;
     private static final int MSG_ENCODE = 101;
+    private static final int MSG_START_OUTPUT = 102;
+    private static final int MSG_STOP_OUTPUT = 103;
+    private static final int MSG_SET_TRACKS = 104;
+    private static final int MSG_RADIO_TEXT = 105;
     private static final int MSG_STOP = 999;
     private static final long DISK_LOW_THRESHOLD = 10 * 1024 * 1024;
+    // amount of PCM the ring buffer can hold while the encoder catches up
+    private static final int RING_BUFFER_MS = 2000;
+    // WAV mode: PCM is moved from the ring buffer to the file in chunks of this size
+    private static final int WAV_CHUNK_MS = 100;
     private AudioFormat mInputFormat;
+    private final RecordingFormat mFormat;
     private Handler mHandler;
     private File mFilePath;
     private MediaMuxer mMuxer;
     private MediaCodec mCodec;
     private MediaFormat mRequestedFormat;
-    private LinkedList<Sample> mQueue = new LinkedList<>();
+    // WAV mode: no codec or muxer, PCM goes straight to the file
+    private WavWriter mWavWriter;
+    private ByteBuffer mWavChunk;
+    private PcmRingBuffer mRingBuffer;
+    private volatile StorageMonitor mStorageMonitor;
+    // set by the producer when an MSG_ENCODE is in flight, avoids flooding the looper
+    private final AtomicBoolean mEncodePending = new AtomicBoolean();
+    // codec input buffers handed to us and not yet queued back
+    private final ArrayDeque<Integer> mInputBuffers = new ArrayDeque<>();
     private MediaFormat mOutFormat;
     private int mMuxerTrack;
+    // segmented mode: roll over to a new file this often, 0 writes a single file
+    private long mSegmentDurationUs;
+    private int mSegmentIndex;
+    private long mSegmentStartUs;
+    // reused to rebase sample timestamps on the segment start
+    private final MediaCodec.BufferInfo mSegmentInfo = new MediaCodec.BufferInfo();
+    private long mSegmentRollNs;
+    // history mode: the encoder runs all the time into this ring, and writes
+    // to a file only between startOutput() and stopOutput()
+    private final EncodedFrameRing mHistory;
+    private final MediaCodec.BufferInfo mHistoryInfo = new MediaCodec.BufferInfo();
+    // levels and seek points, written next to the recording
+    private final RecordingIndex mIndex;
+    // track markers, null if not wanted
+    private volatile TrackSplitter mTracks;
+    // thread CPU spent here and media time encoded, what always-on encoding costs
+    private long mCpuNanos;
+    // time spent in muxer sample writes, or WAV chunk writes
+    private long mWrites;
+    private long mWriteNanos;
+    private long mMaxWriteNanos;
+    private volatile long mEncodedUs;
     private float mRate; // bytes per us
+    private int mFrameSize;
     private long mInputBufferPosition;
-    private int mInputBufferIndex = -1;
+    private boolean mInputEos;
     /** This semaphore is initialized when stopRecording() is called and blocks
         until recording is stopped. */
     private Semaphore mFinalSem;
     private boolean mFinished;
+    // codec and muxer have been released, drop any late input
+    private boolean mReleased;
     private Handler mCallbackHandler;
     private Callback mCallback;
 
-    AudioRecorder(AudioFormat format, File filePath) {
+    /**
+     * @param format PCM format handed to encode()
+     * @param recordingFormat what to write
+     * @param filePath file to record to
+     * @param overflowPolicy one of the PcmRingBuffer.OVERFLOW_* constants
+     * @param segmentDurationUs if positive, write {@code filePath} as segments of
+     *            this length instead, see {@link SegmentJoiner}. Ignored for
+     *            WAV, which is repaired rather than joined after a crash.
+     */
+    AudioRecorder(AudioFormat format, RecordingFormat recordingFormat, File filePath,
+            int overflowPolicy, long segmentDurationUs) {
+        this(format, recordingFormat, filePath, overflowPolicy,
+                recordingFormat.isEncoded() ? segmentDurationUs : 0, null);
+    }
+
+    /**
+     * Create a recorder in history mode: it encodes all the time, keeps the
+     * last {@code historyUs} of encoded audio and writes nothing until
+     * {@link #startOutput} is called.
+     *
+     * @param recordingFormat an encoded format
+     */
+    AudioRecorder(AudioFormat format, RecordingFormat recordingFormat, long historyUs,
+            int overflowPolicy) {
+        this(format, recordingFormat, null, overflowPolicy, 0,
+                createHistory(format, recordingFormat, historyUs));
+    }
+
+    private AudioRecorder(AudioFormat format, RecordingFormat recordingFormat, File filePath,
+            int overflowPolicy, long segmentDurationUs, EncodedFrameRing history) {
         super("AudioRecorder Thread");
         mFilePath = filePath;
         mInputFormat = format;
+        mFormat = recordingFormat;
+        mSegmentDurationUs = segmentDurationUs;
+        mHistory = history;
+        // in history mode levels must reach back over the whole history
+        mIndex = new RecordingIndex(format.getSampleRate(), format.getChannelCount(),
+                format.getEncoding() == AudioFormat.ENCODING_PCM_FLOAT, recordingFormat.type,
+                history != null ? (int) (history.getWindowUs() / 1000000) + 1 : 0);
+        if (filePath != null) {
+            mStorageMonitor = new StorageMonitor(filePath, DISK_LOW_THRESHOLD);
+        }
+
+        calculateInputRate();
+        mFrameSize = (int) (mRate * 1e6 / mInputFormat.getSampleRate());
+        mRingBuffer = new PcmRingBuffer((int) (mRate * RING_BUFFER_MS * 1000),
+                mFrameSize, overflowPolicy);
 
         start();
 
@@ -72,24 +162,87 @@ class AudioRecorder extends HandlerThread implements Handler.Callback {
         mHandler.obtainMessage(MSG_INIT).sendToTarget();
     }
 
+    private static EncodedFrameRing createHistory(AudioFormat format,
+            RecordingFormat recordingFormat, long historyUs) {
+        long frames = historyUs * format.getSampleRate() / 1000000
+                / recordingFormat.getFrameSamples();
+        long bytes = historyUs / 1000000 * recordingFormat.bitRate / 8;
+        // headroom for bitrate peaks, the encoder is not strictly CBR
+        return new EncodedFrameRing(historyUs, (int) (frames * 5 / 4) + 16,
+                (int) (bytes * 5 / 4) + 64 * 1024);
+    }
+
     public void setCallback(Callback callback) {
         mCallback = callback;
         mCallbackHandler = new Handler(Looper.getMainLooper());
     }
 
     /**
-     * Encode bytes of audio to file
+     * Encode bytes of audio to file. The data is copied into the ring buffer
+     * before this returns, so the caller keeps ownership of {@code bytes}.
+     *
+     * @param bytes - PCM input buffer
+     * @param offset - offset of the first byte to encode
+     * @param size - number of bytes to encode
+     */
+    public void encode(byte[] bytes, int offset, int size) {
+        if (mFinished) {
+            Log.w(TAG, "encode() called after stopped");
+            return;
+        }
+        mRingBuffer.write(bytes, offset, size);
+        if (mEncodePending.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessage(MSG_ENCODE);
+        }
+    }
+
+    /**
+     * Encode the remaining bytes of a (preferably direct) buffer. The data is
+     * copied into the ring buffer before this returns.
      *
-     * @param bytes - PCM inbut buffer
+     * @param buffer - PCM input buffer, its position is advanced
      */
-    public void encode(byte[] bytes) {
+    public void encode(ByteBuffer buffer) {
         if (mFinished) {
             Log.w(TAG, "encode() called after stopped");
             return;
         }
-        Sample s = new Sample();
-        s.bytes = bytes;
-        mHandler.obtainMessage(MSG_ENCODE, s).sendToTarget();
+        mRingBuffer.write(buffer);
+        if (mEncodePending.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessage(MSG_ENCODE);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        mRingBuffer.dump(pw);
+        StorageMonitor monitor = mStorageMonitor;
+        if (monitor != null) {
+            monitor.dump(pw);
+        }
+        if (mHistory != null) {
+            mHistory.dump(pw);
+        }
+        mIndex.dump(pw);
+        TrackSplitter tracks = mTracks;
+        if (tracks != null) {
+            tracks.dump(pw);
+        }
+        long encodedUs = mEncodedUs;
+        WavWriter wavWriter = mWavWriter;
+        // the codec may run in another process, this is the cost of feeding it
+        pw.println("  encoder: format=" + mFormat + " audioMs=" + encodedUs / 1000
+                + " cpuMs=" + mCpuNanos / 1000000
+                + " cpuUsPerSec=" + (encodedUs > 0 ? mCpuNanos * 1000 / encodedUs : 0)
+                + " ringBytes=" + mRingBuffer.getCapacity()
+                + " historyBytes=" + (mHistory != null ? mHistory.getFootprintBytes() : 0)
+                + " writes=" + mWrites
+                + " avgWriteUs=" + (mWrites > 0 ? mWriteNanos / mWrites / 1000 : 0)
+                + " maxWriteUs=" + mMaxWriteNanos / 1000
+                + (wavWriter != null ? " wavBytes=" + wavWriter.getDataBytes() : ""));
+        if (mSegmentDurationUs > 0) {
+            pw.println("  segments: durationS=" + mSegmentDurationUs / 1000000
+                    + " current=" + mSegmentIndex + " lastRollUs=" + mSegmentRollNs / 1000);
+        }
     }
 
     /**
@@ -117,19 +270,129 @@ class AudioRecorder extends HandlerThread implements Handler.Callback {
         }
     }
 
-    private void init() {
-        Log.i(TAG, "Starting AudioRecorder with format=" + mInputFormat + ". Saving to: " + mFilePath);
-        calculateInputRate();
+    /**
+     * History mode: write the buffered history to {@code filePath}, then keep
+     * writing the live audio there until {@link #stopOutput()}. Nothing is
+     * re-encoded, the history frames are copied as they are.
+     *
+     * @param segmentDurationUs if positive, write segments, see {@link SegmentJoiner}
+     * @return length of the history written ahead of the live audio, in ms
+     */
+    long startOutput(File filePath, long segmentDurationUs) {
+        long historyMs = mHistory.getDurationUs() / 1000;
+        mHandler.obtainMessage(MSG_START_OUTPUT, (int) (segmentDurationUs / 1000), 0, filePath)
+                .sendToTarget();
+        return historyMs;
+    }
+
+    /**
+     * History mode: finish the file started by {@link #startOutput}, encoding
+     * and buffering go on. Blocks until the file is complete.
+     */
+    void stopOutput() {
+        if (mFinished) {
+            return;
+        }
+        Semaphore done = new Semaphore(0);
+        if (!mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_OUTPUT, done))) {
+            return;
+        }
+        try {
+            done.acquire();
+        } catch (InterruptedException ex) {
+            Log.e(TAG, "interrupted waiting for output to finish", ex);
+        }
+    }
+
+    /**
+     * @return length of the buffered history in ms, 0 outside history mode
+     */
+    long getHistoryDurationMs() {
+        return mHistory != null ? mHistory.getDurationUs() / 1000 : 0;
+    }
+
+    /**
+     * Mark track boundaries in the recordings, see {@link TrackSplitter}. Set
+     * right after creating the recorder, the recorder owns it from then on.
+     */
+    void setTrackSplitter(TrackSplitter tracks) {
+        mHandler.obtainMessage(MSG_SET_TRACKS, tracks).sendToTarget();
+    }
+
+    /**
+     * The RDS RadioText changed, a possible track boundary.
+     */
+    void onRadioText(String text) {
+        mHandler.obtainMessage(MSG_RADIO_TEXT, text).sendToTarget();
+    }
+
+    private void handleStartOutput(File filePath, long segmentDurationUs) {
+        if (mReleased || mMuxer != null) {
+            return;
+        }
+        mFilePath = filePath;
+        mSegmentDurationUs = segmentDurationUs;
+        mSegmentIndex = 0;
+        mStorageMonitor = new StorageMonitor(filePath, DISK_LOW_THRESHOLD);
+        mOutFormat = mCodec.getOutputFormat();
+        if (!openMuxer()) {
+            return;
+        }
+        mIndex.open(filePath);
+        int frames = mHistory.getFrameCount();
+        // the file starts with the oldest buffered frame, or the next live one
+        mSegmentStartUs = mEncodedUs;
+        for (int i = 0; i < frames; i++) {
+            mHistory.getFrame(i, mHistoryInfo);
+            if (i == 0) {
+                mSegmentStartUs = mHistoryInfo.presentationTimeUs;
+            }
+            if (!writeSample(mHistory.getData(), mHistoryInfo)) {
+                return;
+            }
+        }
+        if (mTracks != null) {
+            mTracks.open(filePath, mSegmentStartUs * mInputFormat.getSampleRate() / 1000000);
+        }
+        Log.d(TAG, "output to " + filePath + " started with " + frames + " history frames");
+    }
 
-        mRequestedFormat = new MediaFormat();
-        mRequestedFormat.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
-        mRequestedFormat.setInteger(MediaFormat.KEY_BIT_RATE, 128000);
-        mRequestedFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, mInputFormat.getChannelCount());
-        mRequestedFormat.setInteger(MediaFormat.KEY_SAMPLE_RATE, mInputFormat.getSampleRate());
-        mRequestedFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+    private void handleStopOutput(Semaphore done) {
+        if (mMuxer != null) {
+            mMuxer.stop();
+            mMuxer.release();
+            mMuxer = null;
+        }
+        mIndex.close();
+        if (mTracks != null) {
+            mTracks.close();
+        }
+        mStorageMonitor = null;
+        mFilePath = null;
+        done.release();
+    }
 
+    private void init() {
+        Log.i(TAG, "Starting AudioRecorder with format=" + mInputFormat + " as " + mFormat
+                + ". Saving to: " + mFilePath);
+
+        if (!mFormat.isEncoded()) {
+            try {
+                mWavWriter = new WavWriter(mFilePath, mInputFormat);
+            } catch (IOException ex) {
+                onError("failed creating " + mFilePath, ex);
+                return;
+            }
+            int frames = mInputFormat.getSampleRate() * WAV_CHUNK_MS / 1000;
+            mWavChunk = ByteBuffer.allocateDirect(frames * mFrameSize)
+                    .order(ByteOrder.nativeOrder());
+            mIndex.open(mFilePath);
+            return;
+        }
+
+        mRequestedFormat = mFormat.createEncoderFormat(mInputFormat);
         try {
-            mCodec = MediaCodec.createEncoderByType("audio/mp4a-latm");
+            mCodec = MediaCodec.createEncoderByType(mFormat.getCodecMime());
         } catch (IOException ex) {
             onError("failed creating encoder", ex);
             return;
@@ -138,71 +401,166 @@ class AudioRecorder extends HandlerThread implements Handler.Callback {
         mCodec.configure(mRequestedFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mCodec.start();
 
+        mOutFormat = mCodec.getOutputFormat();
+        if (mFilePath != null && openMuxer()) {
+            mIndex.open(mFilePath);
+        }
+    }
+
+    private boolean openMuxer() {
+        File file = mSegmentDurationUs > 0
+                ? SegmentJoiner.getSegmentFile(mFilePath, mSegmentIndex) : mFilePath;
         try {
-            mMuxer = new MediaMuxer(mFilePath.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mMuxer = new MediaMuxer(file.getAbsolutePath(), mFormat.getMuxerFormat());
         } catch (IOException ex) {
+            mMuxer = null;
             onError("failed creating muxer", ex);
-            return;
+            return false;
         }
 
-        mOutFormat = mCodec.getOutputFormat();
         mMuxerTrack = mMuxer.addTrack(mOutFormat);
         mMuxer.start();
+        return true;
+    }
+
+    /**
+     * Close the current segment, which makes it a playable file on its own,
+     * and continue in the next one. AAC and Opus frames are all sync samples,
+     * so any frame can start a segment.
+     */
+    private boolean rollSegment(long presentationTimeUs) {
+        long start = System.nanoTime();
+        mMuxer.stop();
+        mMuxer.release();
+        mSegmentIndex++;
+        mSegmentStartUs = presentationTimeUs;
+        // carries the codec specific data by now
+        mOutFormat = mCodec.getOutputFormat();
+        if (!openMuxer()) {
+            return false;
+        }
+        mSegmentRollNs = System.nanoTime() - start;
+        Log.d(TAG, "segment " + mSegmentIndex + " started, roll took "
+                + mSegmentRollNs / 1000 + " us");
+        return true;
     }
 
     @Override
     public boolean handleMessage(Message msg) {
+        long cpu = Debug.threadCpuTimeNanos();
         if (msg.what == MSG_INIT) {
             init();
         } else if (msg.what == MSG_STOP) {
             mFinalSem = (Semaphore) msg.obj;
-            if (mInputBufferIndex >= 0) {
-                processInputBuffer();
+            if (mWavWriter != null) {
+                writeWav();
+                finish();
+            } else {
+                drainInput();
             }
         } else if (msg.what == MSG_ENCODE) {
-            mQueue.addLast((Sample) msg.obj);
-            if (mInputBufferIndex >= 0) {
-                processInputBuffer();
+            mEncodePending.set(false);
+            if (mWavWriter != null) {
+                writeWav();
+            } else {
+                drainInput();
+            }
+        } else if (msg.what == MSG_START_OUTPUT) {
+            handleStartOutput((File) msg.obj, msg.arg1 * 1000L);
+        } else if (msg.what == MSG_STOP_OUTPUT) {
+            handleStopOutput((Semaphore) msg.obj);
+        } else if (msg.what == MSG_SET_TRACKS) {
+            mTracks = (TrackSplitter) msg.obj;
+            if (!mReleased && mFilePath != null && (mMuxer != null || mWavWriter != null)) {
+                // a plain recording, its file is open since init
+                mTracks.open(mFilePath, 0);
+            }
+        } else if (msg.what == MSG_RADIO_TEXT) {
+            if (mTracks != null) {
+                // the newest PCM is what plays now
+                mTracks.onRadioText((String) msg.obj,
+                        (mInputBufferPosition + mRingBuffer.available()) / mFrameSize);
             }
         }
+        mCpuNanos += Debug.threadCpuTimeNanos() - cpu;
         return true;
     }
 
-    private void processInputBuffer() {
-        Sample s = mQueue.peekFirst();
-        if (s == null) { // input available?
+    /**
+     * WAV mode: move everything buffered to the file, no codec involved.
+     */
+    private void writeWav() {
+        while (!mReleased) {
+            mWavChunk.clear();
+            int size = mRingBuffer.read(mWavChunk);
+            if (size == 0) {
+                return;
+            }
+            mWavChunk.flip();
+            mIndex.addPcm(mWavChunk, 0, size);
+            if (mTracks != null) {
+                mTracks.addPcm(mWavChunk, 0, size);
+            }
+            mIndex.addPcmFrames(mInputBufferPosition / mFrameSize, size / mFrameSize);
+            long start = System.nanoTime();
+            try {
+                mWavWriter.write(mWavChunk);
+            } catch (IOException ex) {
+                onError("failed writing " + mFilePath, ex);
+                return;
+            }
+            countWrite(System.nanoTime() - start);
+            mInputBufferPosition += size;
+            mEncodedUs = getPresentationTimestampUs(mInputBufferPosition);
+            checkStorage(size, mEncodedUs);
+        }
+    }
+
+    private void drainInput() {
+        while (!mReleased && !mInputEos && !mInputBuffers.isEmpty()) {
+            if (!processInputBuffer(mInputBuffers.peekFirst())) {
+                break;
+            }
+            mInputBuffers.pollFirst();
+        }
+    }
+
+    /**
+     * Fill one codec input buffer from the ring buffer.
+     *
+     * @return true if the codec buffer was queued, false if there is no input yet
+     */
+    private boolean processInputBuffer(int index) {
+        if (mRingBuffer.available() == 0) { // input available?
             if (mFinalSem != null) {
                 // input queue is exhausted and stopRecording() is waiting for
                 // encoding to finish. signal end-of-stream on the input.
                 Log.d(TAG, "Input EOS");
                 mCodec.queueInputBuffer(
-                        mInputBufferIndex, 0, 0,
+                        index, 0, 0,
                         getPresentationTimestampUs(mInputBufferPosition),
                         MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mInputEos = true;
+                return true;
             }
-            return;
+            return false;
         }
 
-        ByteBuffer b = mCodec.getInputBuffer(mInputBufferIndex);
+        ByteBuffer b = mCodec.getInputBuffer(index);
         assert b != null;
-        int sz = Math.min(b.capacity(), s.bytes.length - s.offset);
         long ts = getPresentationTimestampUs(mInputBufferPosition);
+        int start = b.position();
+        int sz = mRingBuffer.read(b);
+        mIndex.addPcm(b, start, sz);
+        if (mTracks != null) {
+            mTracks.addPcm(b, start, sz);
+        }
         if (TRACE)
             Log.v(TAG, String.format("processInputBuffer (len=%d) ts=%.3f", sz, ts * 1e-6));
 
-        b.put(s.bytes, s.offset, sz);
-        mCodec.queueInputBuffer(mInputBufferIndex, 0, sz, ts, 0);
-
+        mCodec.queueInputBuffer(index, 0, sz, ts, 0);
         mInputBufferPosition += sz;
-        s.offset += sz;
-
-        // done with this sample?
-        if (s.offset >= s.bytes.length) {
-            mQueue.pop();
-        }
-
-        // done with this buffer
-        mInputBufferIndex = -1;
+        return true;
     }
 
     private void processOutputBuffer(int index, MediaCodec.BufferInfo info) {
@@ -213,22 +571,130 @@ class AudioRecorder extends HandlerThread implements Handler.Callback {
             Log.v(TAG, String.format("processOutputBuffer (len=%d) ts=%.3f",
                     outputBuffer.limit(), info.presentationTimeUs * 1e-6));
 
-        mMuxer.writeSampleData(mMuxerTrack, outputBuffer, info);
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+            mEncodedUs = info.presentationTimeUs;
+            if (mHistory != null) {
+                mHistory.add(outputBuffer, info);
+            }
+        }
+        if (mMuxer != null && !writeSample(outputBuffer, info)) {
+            return;
+        }
         mCodec.releaseOutputBuffer(index, false);
         if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
             Log.d(TAG, "Output EOS");
             finish();
-        } else if (mFilePath.getFreeSpace() < DISK_LOW_THRESHOLD) {
-            onDiskLow();
+            return;
         }
+        if (mMuxer == null) {
+            return;
+        }
+        checkStorage(info.size, info.presentationTimeUs);
     }
 
-    private void onDiskLow() {
+    private void checkStorage(int bytes, long presentationTimeUs) {
+        int status = mStorageMonitor.onWritten(bytes, presentationTimeUs);
+        if (status == StorageMonitor.STATUS_LOW) {
+            onDiskLow(AUDIO_RECORDER_WARN_DISK_LOW);
+        } else if (status == StorageMonitor.STATUS_LOW_SOON) {
+            onDiskLow(AUDIO_RECORDER_WARN_DISK_LOW_SOON);
+        }
+    }
+
+    /**
+     * Write an encoded frame to the muxer, rolling over to the next segment
+     * when due. Timestamps are rebased on the start of the current file.
+     *
+     * @return false if the recording failed
+     */
+    private boolean writeSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        if (mSegmentDurationUs > 0
+                && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0
+                && info.presentationTimeUs - mSegmentStartUs >= mSegmentDurationUs
+                && !rollSegment(info.presentationTimeUs)) {
+            return false;
+        }
+        mSegmentInfo.set(info.offset, info.size,
+                Math.max(0, info.presentationTimeUs - mSegmentStartUs), info.flags);
+        long start = System.nanoTime();
+        mMuxer.writeSampleData(mMuxerTrack, buffer, mSegmentInfo);
+        countWrite(System.nanoTime() - start);
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+            // seek points count the whole recording, segments are joined as they are
+            mIndex.addEncodedFrame(info.presentationTimeUs, info.size);
+        }
+        return true;
+    }
+
+    private void countWrite(long nanos) {
+        mWrites++;
+        mWriteNanos += nanos;
+        if (nanos > mMaxWriteNanos) {
+            mMaxWriteNanos = nanos;
+        }
+    }
+
+    RecordingFormat getRecordingFormat() {
+        return mFormat;
+    }
+
+    /**
+     * @return CPU time of the recorder thread, complete once stopped
+     */
+    long getCpuNanos() {
+        return mCpuNanos;
+    }
+
+    /**
+     * @return PCM waiting in the ring buffer to be encoded, readable any time
+     */
+    int getQueuedBytes() {
+        return mRingBuffer.available();
+    }
+
+    /**
+     * @return room left in the ring buffer, readable any time
+     */
+    int getFreeBytes() {
+        return mRingBuffer.getCapacity() - mRingBuffer.available();
+    }
+
+    /**
+     * @return PCM lost to the overflow policy so far
+     */
+    long getDroppedBytes() {
+        return mRingBuffer.getDroppedBytes();
+    }
+
+    /**
+     * @return muxer sample writes (WAV: chunk writes), complete once stopped
+     */
+    long getWriteCount() {
+        return mWrites;
+    }
+
+    long getWriteNanos() {
+        return mWriteNanos;
+    }
+
+    long getMaxWriteNanos() {
+        return mMaxWriteNanos;
+    }
+
+    /**
+     * @return projected recording time left on the storage, -1 if not known yet
+     */
+    long getSecondsLeft() {
+        StorageMonitor monitor = mStorageMonitor;
+        return monitor != null ? monitor.getSecondsLeft() : -1;
+    }
+
+    private void onDiskLow(final int what) {
         mCallbackHandler.post(new Runnable() {
             @Override
             public void run() {
                 if (mCallback != null) {
-                    mCallback.onError(AUDIO_RECORDER_WARN_DISK_LOW);
+                    mCallback.onError(what);
                 }
             }
         });
@@ -256,6 +722,8 @@ class AudioRecorder extends HandlerThread implements Handler.Callback {
     }
 
     private void stopAndRelease() {
+        mReleased = true;
+
         // can fail early on before codec/muxer are created
         if (mCodec != null) {
             mCodec.stop();
@@ -265,6 +733,20 @@ class AudioRecorder extends HandlerThread implements Handler.Callback {
         if (mMuxer != null) {
             mMuxer.stop();
             mMuxer.release();
+            mMuxer = null;
+        }
+
+        if (mWavWriter != null) {
+            try {
+                mWavWriter.close();
+            } catch (IOException ex) {
+                Log.e(TAG, "failed closing " + mFilePath, ex);
+            }
+            mWavWriter = null;
+        }
+        mIndex.close();
+        if (mTracks != null) {
+            mTracks.close();
         }
     }
 
@@ -305,13 +787,17 @@ class AudioRecorder extends HandlerThread implements Handler.Callback {
 
         @Override
         public void onInputBufferAvailable(MediaCodec codec, int index) {
-            mInputBufferIndex = index;
-            processInputBuffer();
+            long cpu = Debug.threadCpuTimeNanos();
+            mInputBuffers.addLast(index);
+            drainInput();
+            mCpuNanos += Debug.threadCpuTimeNanos() - cpu;
         }
 
         @Override
         public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            long cpu = Debug.threadCpuTimeNanos();
             processOutputBuffer(index, info);
+            mCpuNanos += Debug.threadCpuTimeNanos() - cpu;
         }
 
         @Override
@@ -323,9 +809,4 @@ class AudioRecorder extends HandlerThread implements Handler.Callback {
         public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
         }
     }
-
-    private class Sample {
-        byte bytes[];
-        int offset;
-    }
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
+/**
+ * Processing stage splitting stereo PCM into low/mid/high bands for
+ * the play indicator. The input is mixed to mono and decimated by averaging,
+ * then split with two one-pole low-pass filters; each band's RMS is mapped to
+ * the -1..1 range FmVisualizerView draws.
+ *
+ * Levels are published through a double buffer: the render thread fills the
+ * back half and bumps a sequence number, readers copy the front half and
+ * retry if the writer lapped them. Neither side locks or allocates.
+ */
+class BandAnalyzer implements PcmProcessor {
+    // must match the number of columns drawn by FmVisualizerView
+    static final int BAND_COUNT = 3;
+
+    private static final int DECIMATION = 4;
+    private static final float LOW_CROSSOVER_HZ = 250f;
+    private static final float HIGH_CROSSOVER_HZ = 2500f;
+    // analyze one buffer out of this many while no activity is visible
+    private static final int HIDDEN_RATE_DIVIDER = 8;
+    // levels older than this are stale, e.g. audio moved to a hardware patch
+    private static final long STALE_NS = 500L * 1000 * 1000;
+    private static final float FLOOR_DB = -60f;
+    // how far a band may fall per analyzed buffer, rises are immediate
+    private static final float RELEASE = 0.3f;
+
+    private float mLowAlpha;
+    private float mHighAlpha;
+    private float mLowState;
+    private float mHighState;
+    private int mSkip;
+    private volatile boolean mVisible = true;
+
+    private final float[][] mLevels = new float[2][BAND_COUNT];
+    private final float[] mSums = new float[BAND_COUNT];
+    private volatile int mSequence;
+    private volatile long mPublishedNs;
+    private volatile long mAnalyzed;
+
+    /**
+     * Set up the filters for a new sample rate.
+     */
+    void configure(int sampleRate) {
+        float rate = (float) sampleRate / DECIMATION;
+        mLowAlpha = onePoleAlpha(LOW_CROSSOVER_HZ, rate);
+        mHighAlpha = onePoleAlpha(HIGH_CROSSOVER_HZ, rate);
+        mLowState = 0;
+        mHighState = 0;
+    }
+
+    private static float onePoleAlpha(float cutoff, float rate) {
+        return (float) (1 - Math.exp(-2 * Math.PI * cutoff / rate));
+    }
+
+    /**
+     * Analyze every buffer while the play indicator can be seen, only a
+     * fraction of them otherwise.
+     */
+    void setVisible(boolean visible) {
+        mVisible = visible;
+    }
+
+    @Override
+    public void process(PcmBufferPool.Buffer buffer) {
+        if (!mVisible && ++mSkip < HIDDEN_RATE_DIVIDER) {
+            return;
+        }
+        mSkip = 0;
+
+        int sampleSize = buffer.isFloat ? 4 : 2;
+        int blocks = buffer.size / (sampleSize * 2 * DECIMATION);
+        if (blocks == 0) {
+            return;
+        }
+        ByteBuffer direct = buffer.direct;
+        byte[] data = buffer.data;
+        float low = mLowState;
+        float high = mHighState;
+        float lowSum = 0;
+        float midSum = 0;
+        float highSum = 0;
+        int offset = 0;
+        for (int b = 0; b < blocks; b++) {
+            // mono mix and boxcar decimation in one go
+            float x;
+            if (buffer.isFloat) {
+                float acc = 0;
+                for (int i = 0; i < DECIMATION * 2; i++, offset += 4) {
+                    acc += direct.getFloat(offset);
+                }
+                x = acc / (DECIMATION * 2);
+            } else {
+                int acc = 0;
+                for (int i = 0; i < DECIMATION * 2; i++, offset += 2) {
+                    if (direct != null) {
+                        acc += direct.getShort(offset);
+                    } else {
+                        acc += (short) ((data[offset] & 0xff) | (data[offset + 1] << 8));
+                    }
+                }
+                x = acc / (32768f * DECIMATION * 2);
+            }
+            low += mLowAlpha * (x - low);
+            high += mHighAlpha * (x - high);
+            float mid = high - low;
+            float top = x - high;
+            lowSum += low * low;
+            midSum += mid * mid;
+            highSum += top * top;
+        }
+        mLowState = low;
+        mHighState = high;
+        mSums[0] = lowSum;
+        mSums[1] = midSum;
+        mSums[2] = highSum;
+
+        int seq = mSequence;
+        float[] front = mLevels[seq & 1];
+        float[] back = mLevels[(seq + 1) & 1];
+        for (int i = 0; i < BAND_COUNT; i++) {
+            float level = toLevel(mSums[i] / blocks);
+            if (level < front[i]) {
+                level = front[i] + (level - front[i]) * RELEASE;
+            }
+            back[i] = level;
+        }
+        mPublishedNs = SystemClock.elapsedRealtimeNanos();
+        mSequence = seq + 1;
+        mAnalyzed++;
+    }
+
+    private static float toLevel(float meanSquare) {
+        if (meanSquare <= 0) {
+            return -1f;
+        }
+        float db = (float) (10 * Math.log10(meanSquare));
+        float level = (db - FLOOR_DB) / -FLOOR_DB * 2 - 1;
+        return Math.max(-1f, Math.min(1f, level));
+    }
+
+    /**
+     * Copy the latest band levels, each in -1..1.
+     *
+     * @return false if there are no recent levels
+     */
+    boolean readLevels(float[] out) {
+        if (SystemClock.elapsedRealtimeNanos() - mPublishedNs > STALE_NS) {
+            return false;
+        }
+        int count = Math.min(out.length, BAND_COUNT);
+        while (true) {
+            int seq = mSequence;
+            float[] front = mLevels[seq & 1];
+            for (int i = 0; i < count; i++) {
+                out[i] = front[i];
+            }
+            // once seq + 1 is published the writer fills this half next
+            if (mSequence == seq) {
+                return true;
+            }
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        float[] front = mLevels[mSequence & 1];
+        pw.println("  BandAnalyzer: visible=" + mVisible + " analyzed=" + mAnalyzed
+                + " levels=" + front[0] + "," + front[1] + "," + front[2]);
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.AudioFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Developer switches of the service, to compare its render, recording and
+ * RDS paths on a device. Only registered on debuggable builds, and only
+ * taken from callers holding DUMP, i.e. the shell:
+ * <pre>
+ *   adb shell am broadcast -a com.android.fmradio.action.DEBUG_COMMAND \
+ *           --es command "float true"
+ * </pre>
+ * Commands:
+ * <pre>
+ *   direct|lowlatency|float|tracks|rdsevents|rdscapture true|false
+ *   segment &lt;seconds&gt;              recording segment length, 0 for one file
+ *   history &lt;seconds&gt;              retroactive recording buffer, 0 for none
+ *   format aac|opus|wav [bit rate]
+ *   rdsreplay &lt;file&gt; [speed]        feed an RDS capture to the RDS thread
+ *   schedule &lt;MHz&gt; &lt;in seconds&gt; &lt;seconds&gt;, unschedule &lt;id&gt;
+ *   benchmark                      render processing stages, see PcmBenchmark
+ *   benchmark recording|encode     recording formats, see RecordingBenchmark
+ *   benchmark rds &lt;file&gt;          decode an RDS capture back to back
+ * </pre>
+ * The outcome goes to the log, the last one also to the service's dump.
+ * Benchmarks take minutes and run one at a time on a worker thread.
+ */
+class DebugCommands extends BroadcastReceiver {
+    private static final String TAG = "FmDebugCommands";
+
+    static final String ACTION_COMMAND = "com.android.fmradio.action.DEBUG_COMMAND";
+    static final String EXTRA_COMMAND = "command";
+
+    // longest recording segment and history accepted
+    private static final int MAX_SEGMENT_SECONDS = 3600;
+    private static final int MAX_HISTORY_SECONDS = 600;
+
+    private final FmService mService;
+    private String mLastCommand;
+    private String mLastResult;
+    // benchmark worker, started on the first one
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private boolean mBenchmarkRunning;
+
+    private DebugCommands(FmService service) {
+        mService = service;
+    }
+
+    /**
+     * @return the receiver now registered, null on a user build
+     */
+    static DebugCommands register(FmService service) {
+        if (!Build.IS_DEBUGGABLE) {
+            return null;
+        }
+        DebugCommands commands = new DebugCommands(service);
+        service.registerReceiver(commands, new IntentFilter(ACTION_COMMAND),
+                Manifest.permission.DUMP, null);
+        return commands;
+    }
+
+    void unregister() {
+        mService.unregisterReceiver(this);
+        synchronized (this) {
+            if (mThread != null) {
+                // a running benchmark still completes
+                mThread.quitSafely();
+                mThread = null;
+            }
+        }
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String command = intent.getStringExtra(EXTRA_COMMAND);
+        StringWriter out = new StringWriter();
+        PrintWriter pw = new PrintWriter(out);
+        if (command == null || command.trim().isEmpty()) {
+            pw.println("no command, pass one in the \"" + EXTRA_COMMAND + "\" extra");
+        } else {
+            try {
+                run(command.trim().split("\\s+"), pw);
+            } catch (IllegalArgumentException e) {
+                pw.println("bad command: " + e.getMessage());
+            }
+        }
+        pw.flush();
+        onResult(command, out.toString());
+    }
+
+    private void run(String[] args, PrintWriter pw) {
+        String name = args[0];
+        if ("direct".equals(name)) {
+            checkCount(args, 2, 2);
+            mService.setDirectBuffersEnabled(parseBoolean(args[1]));
+        } else if ("lowlatency".equals(name)) {
+            checkCount(args, 2, 2);
+            mService.setLowLatencyRenderEnabled(parseBoolean(args[1]));
+        } else if ("float".equals(name)) {
+            checkCount(args, 2, 2);
+            mService.setFloatAudioEnabled(parseBoolean(args[1]));
+        } else if ("tracks".equals(name)) {
+            checkCount(args, 2, 2);
+            mService.setTrackMarkersEnabled(parseBoolean(args[1]));
+        } else if ("rdsevents".equals(name)) {
+            checkCount(args, 2, 2);
+            mService.setRdsEventDrivenEnabled(parseBoolean(args[1]));
+        } else if ("rdscapture".equals(name)) {
+            checkCount(args, 2, 2);
+            mService.setRdsCaptureEnabled(parseBoolean(args[1]));
+        } else if ("segment".equals(name)) {
+            checkCount(args, 2, 2);
+            mService.setRecordingSegmentSeconds(parseInt(args[1], 0, MAX_SEGMENT_SECONDS));
+        } else if ("history".equals(name)) {
+            checkCount(args, 2, 2);
+            mService.setRecordHistorySeconds(parseInt(args[1], 0, MAX_HISTORY_SECONDS));
+        } else if ("format".equals(name)) {
+            checkCount(args, 2, 3);
+            int bitRate = args.length == 3 ? parseInt(args[2], 1, Integer.MAX_VALUE)
+                    : RecordingFormat.DEFAULT_BIT_RATE;
+            if (!mService.setRecordingFormat(args[1], bitRate)) {
+                throw new IllegalArgumentException("unknown format " + args[1]);
+            }
+        } else if ("rdsreplay".equals(name)) {
+            checkCount(args, 2, 3);
+            float speed = args.length == 3 ? parseSpeed(args[2]) : 1f;
+            if (!mService.startRdsReplay(new File(args[1]), speed)) {
+                throw new IllegalArgumentException("cannot replay " + args[1]);
+            }
+        } else if ("schedule".equals(name)) {
+            checkCount(args, 4, 4);
+            int station = FmUtils.computeStation(Float.parseFloat(args[1]));
+            if (!FmUtils.isValidStation(station)) {
+                throw new IllegalArgumentException(args[1] + " MHz is not in the band");
+            }
+            long startMs = System.currentTimeMillis()
+                    + parseInt(args[2], 0, Integer.MAX_VALUE) * 1000L;
+            long durationMs = parseInt(args[3], 1, Integer.MAX_VALUE) * 1000L;
+            pw.println("scheduled #" + mService.scheduleRecording(station, startMs, durationMs));
+        } else if ("unschedule".equals(name)) {
+            checkCount(args, 2, 2);
+            mService.cancelScheduledRecording(parseInt(args[1], 0, Integer.MAX_VALUE));
+        } else if ("benchmark".equals(name)) {
+            startBenchmark(args);
+            pw.println("started, the result follows in the log");
+            return;
+        } else {
+            throw new IllegalArgumentException("unknown command " + name);
+        }
+        pw.println("done: " + name);
+    }
+
+    private void startBenchmark(final String[] args) {
+        checkCount(args, 1, 3);
+        final String kind = args.length > 1 ? args[1] : "";
+        final File dir = mService.getCacheDir();
+        // taken here, on the thread the service is driven from
+        final AudioFormat input = mService.getRenderFormat();
+        final int chunkFrames = mService.getRenderChunkFrames();
+        final RecordingFormat format = mService.getRecordingFormat();
+        final File capture;
+        if ("rds".equals(kind)) {
+            checkCount(args, 3, 3);
+            capture = new File(args[2]);
+        } else if ("".equals(kind) || "recording".equals(kind) || "encode".equals(kind)) {
+            checkCount(args, 1, 2);
+            capture = null;
+        } else {
+            throw new IllegalArgumentException("unknown benchmark " + kind);
+        }
+        final String command = TextUtils.join(" ", args);
+        synchronized (this) {
+            if (mBenchmarkRunning) {
+                throw new IllegalArgumentException("a benchmark is running");
+            }
+            if (mThread == null) {
+                mThread = new HandlerThread("FmBenchmark");
+                mThread.start();
+                mHandler = new Handler(mThread.getLooper());
+            }
+            mBenchmarkRunning = true;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    StringWriter out = new StringWriter();
+                    PrintWriter pw = new PrintWriter(out);
+                    try {
+                        if ("rds".equals(kind)) {
+                            RdsReplay.benchmark(pw, capture);
+                        } else if ("recording".equals(kind)) {
+                            RecordingBenchmark.run(pw, dir, input);
+                        } else if ("encode".equals(kind)) {
+                            RecordingBenchmark.runInputFormats(pw, dir, format);
+                        } else {
+                            PcmBenchmark.run(pw, input.getSampleRate(), chunkFrames);
+                        }
+                    } catch (RuntimeException e) {
+                        // e.g. a codec the device lacks, not worth the process
+                        Log.w(TAG, command + " failed", e);
+                        pw.println("failed: " + e);
+                    } finally {
+                        synchronized (DebugCommands.this) {
+                            mBenchmarkRunning = false;
+                        }
+                        pw.flush();
+                        onResult(command, out.toString());
+                    }
+                }
+            });
+        }
+    }
+
+    private static void checkCount(String[] args, int min, int max) {
+        if (args.length < min || args.length > max) {
+            throw new IllegalArgumentException(args[0] + " takes "
+                    + (min == max ? String.valueOf(min - 1) : (min - 1) + " to " + (max - 1))
+                    + " arguments");
+        }
+    }
+
+    private static boolean parseBoolean(String value) {
+        if ("true".equals(value)) {
+            return true;
+        } else if ("false".equals(value)) {
+            return false;
+        }
+        throw new IllegalArgumentException(value + " is not true or false");
+    }
+
+    // a NumberFormatException is an IllegalArgumentException too
+    private static int parseInt(String value, int min, int max) {
+        int result = Integer.parseInt(value);
+        if (result < min || result > max) {
+            throw new IllegalArgumentException(result + " is not in " + min + ".." + max);
+        }
+        return result;
+    }
+
+    private static float parseSpeed(String value) {
+        float result = Float.parseFloat(value);
+        if (!(result >= 0) || Float.isInfinite(result)) {
+            throw new IllegalArgumentException(value + " is not a speed");
+        }
+        return result;
+    }
+
+    private synchronized void onResult(String command, String result) {
+        // line by line, a benchmark report is longer than a log entry takes
+        for (String line : result.split("\n")) {
+            Log.i(TAG, command + ": " + line);
+        }
+        mLastCommand = command;
+        mLastResult = result;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        if (mLastCommand != null) {
+            pw.println("  DebugCommands: last=\"" + mLastCommand + "\"");
+            pw.print(mLastResult);
+        }
+    }
+}
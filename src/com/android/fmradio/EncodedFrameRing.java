@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.media.MediaCodec;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
+/**
+ * Rolling history of encoded frames, e.g. the last minutes of AAC. Frame data
+ * lives in one preallocated direct buffer and the frame table in parallel
+ * arrays, so the footprint is fixed at construction. Frames are stored
+ * contiguously; adding one evicts the oldest frames it would overlap and
+ * whatever is older than the history window.
+ *
+ * Not thread safe except for the duration getter, the owner's thread adds and
+ * reads frames.
+ */
+class EncodedFrameRing {
+    private final ByteBuffer mData;
+    private final int[] mOffset;
+    private final int[] mSize;
+    private final int[] mFlags;
+    private final long[] mTimeUs;
+    private final long mWindowUs;
+
+    // index of the oldest frame and number of frames
+    private int mFirst;
+    private int mCount;
+    private int mWritePos;
+    private int mBytes;
+    private volatile long mDurationUs;
+
+    // statistics
+    private long mEvicted;
+    private long mTooLarge;
+
+    /**
+     * @param windowUs how much history to keep
+     * @param maxFrames frames the table can hold, at least a window worth
+     * @param capacity bytes of frame data, at least a window worth
+     */
+    EncodedFrameRing(long windowUs, int maxFrames, int capacity) {
+        mWindowUs = windowUs;
+        mData = ByteBuffer.allocateDirect(capacity);
+        mOffset = new int[maxFrames];
+        mSize = new int[maxFrames];
+        mFlags = new int[maxFrames];
+        mTimeUs = new long[maxFrames];
+    }
+
+    /**
+     * Copy a frame in, {@code src} is read from {@code info.offset} for
+     * {@code info.size} bytes and left untouched.
+     */
+    void add(ByteBuffer src, MediaCodec.BufferInfo info) {
+        int size = info.size;
+        int capacity = mData.capacity();
+        if (size > capacity) {
+            mTooLarge++;
+            return;
+        }
+        int start = mWritePos;
+        if (start + size > capacity) {
+            // wrap, whatever sits past the write position is the oldest data
+            while (mCount > 0 && mOffset[mFirst] >= start) {
+                evictOldest();
+            }
+            start = 0;
+        }
+        while (mCount > 0 && mOffset[mFirst] < start + size
+                && mOffset[mFirst] + mSize[mFirst] > start) {
+            evictOldest();
+        }
+        while (mCount == mOffset.length
+                || (mCount > 0 && info.presentationTimeUs - mTimeUs[mFirst] >= mWindowUs)) {
+            evictOldest();
+        }
+
+        ByteBuffer s = src.duplicate();
+        s.limit(info.offset + size).position(info.offset);
+        ByteBuffer d = mData.duplicate();
+        d.limit(start + size).position(start);
+        d.put(s);
+
+        int index = (mFirst + mCount) % mOffset.length;
+        mOffset[index] = start;
+        mSize[index] = size;
+        mFlags[index] = info.flags;
+        mTimeUs[index] = info.presentationTimeUs;
+        mCount++;
+        mBytes += size;
+        mWritePos = start + size;
+        updateDuration();
+    }
+
+    private void evictOldest() {
+        mBytes -= mSize[mFirst];
+        mFirst = (mFirst + 1) % mOffset.length;
+        mCount--;
+        mEvicted++;
+    }
+
+    private void updateDuration() {
+        if (mCount < 2) {
+            mDurationUs = 0;
+            return;
+        }
+        int last = (mFirst + mCount - 1) % mOffset.length;
+        // count the last frame in, assuming it is as long as the one before
+        int previous = (last + mOffset.length - 1) % mOffset.length;
+        mDurationUs = mTimeUs[last] - mTimeUs[mFirst] + mTimeUs[last] - mTimeUs[previous];
+    }
+
+    long getWindowUs() {
+        return mWindowUs;
+    }
+
+    int getFrameCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the buffer frames are read from with {@link #getFrame}
+     */
+    ByteBuffer getData() {
+        return mData;
+    }
+
+    /**
+     * Describe frame {@code i}, 0 being the oldest, as a sample of
+     * {@link #getData()}.
+     */
+    void getFrame(int i, MediaCodec.BufferInfo info) {
+        int index = (mFirst + i) % mOffset.length;
+        info.set(mOffset[index], mSize[index], mTimeUs[index], mFlags[index]);
+    }
+
+    /**
+     * Drop all frames, e.g. when the audio becomes discontinuous.
+     */
+    void clear() {
+        mFirst = 0;
+        mCount = 0;
+        mWritePos = 0;
+        mBytes = 0;
+        mDurationUs = 0;
+    }
+
+    /**
+     * @return duration of the buffered frames, readable from any thread
+     */
+    long getDurationUs() {
+        return mDurationUs;
+    }
+
+    /**
+     * @return memory held for frames and their table
+     */
+    int getFootprintBytes() {
+        return mData.capacity() + mOffset.length * (4 + 4 + 4 + 8);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  EncodedFrameRing: durationMs=" + mDurationUs / 1000 + " frames=" + mCount
+                + "/" + mOffset.length + " bytes=" + mBytes + "/" + mData.capacity()
+                + " footprint=" + getFootprintBytes() + " evicted=" + mEvicted
+                + " tooLarge=" + mTooLarge);
+    }
+}
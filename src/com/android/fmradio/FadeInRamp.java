@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Short gain ramp applied in place to the first PCM frames after
+ * rendering (re)starts. It hides the pop of the tuner path opening without
+ * throwing the first buffers away.
+ */
+class FadeInRamp implements PcmProcessor {
+    private final int mChannels;
+    private int mLength;
+    private int mPosition;
+
+    /**
+     * @param channels interleaved channels per frame
+     */
+    FadeInRamp(int channels) {
+        mChannels = channels;
+    }
+
+    /**
+     * Start a new ramp.
+     *
+     * @param frames ramp length in frames
+     */
+    void restart(int frames) {
+        mLength = frames;
+        mPosition = 0;
+    }
+
+    boolean isActive() {
+        return mPosition < mLength;
+    }
+
+    /**
+     * Scale the start of {@code buffer} by the ramp, does nothing once the
+     * ramp completed.
+     */
+    @Override
+    public void process(PcmBufferPool.Buffer buffer) {
+        if (!isActive()) {
+            return;
+        }
+        int sampleSize = buffer.isFloat ? 4 : 2;
+        int frameSize = mChannels * sampleSize;
+        int frames = Math.min(buffer.size / frameSize, mLength - mPosition);
+        for (int i = 0; i < frames; i++) {
+            // squared curve, sounds smoother than linear for the same length
+            float g = (float) (mPosition + i) / mLength;
+            g *= g;
+            int offset = i * frameSize;
+            for (int c = 0; c < mChannels; c++, offset += sampleSize) {
+                if (buffer.isFloat) {
+                    ByteBuffer b = buffer.direct;
+                    b.putFloat(offset, b.getFloat(offset) * g);
+                } else if (buffer.direct != null) {
+                    ByteBuffer b = buffer.direct;
+                    b.putShort(offset, (short) (b.getShort(offset) * g));
+                } else {
+                    // little endian, like all Android PCM
+                    byte[] d = buffer.data;
+                    int s = (short) ((d[offset] & 0xff) | (d[offset + 1] << 8));
+                    s = (int) (s * g);
+                    d[offset] = (byte) s;
+                    d[offset + 1] = (byte) (s >> 8);
+                }
+            }
+        }
+        mPosition += frames;
+    }
+}
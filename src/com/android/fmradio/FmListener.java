@@ -47,6 +47,21 @@ public interface FmListener {
     // FM Record state changed
     int LISTEN_SPEAKER_MODE_CHANGED = 0x00101000; // 1052672
 
+    // FM recording saved in the background
+    int LISTEN_RECORDING_SAVED = 0x00101001; // 1052673
+
+    // FM RDS program identification changed
+    int LISTEN_PI_CHANGED = 0x00101010; // 1052688
+
+    // FM RDS program type changed
+    int LISTEN_PTY_CHANGED = 0x00101011; // 1052689
+
+    // FM RDS traffic program or announcement flag changed
+    int LISTEN_TRAFFIC_CHANGED = 0x00101100; // 1052928
+
+    // FM RDS clock time received
+    int LISTEN_CLOCK_TIME = 0x00101101; // 1052929
+
     // Bundle keys
     String SWITCH_ANTENNA_VALUE = "switch_antenna_value";
     String CALLBACK_FLAG = "callback_flag";
@@ -60,6 +75,14 @@ public interface FmListener {
     String KEY_PS_INFO = "key_ps_info";
     String KEY_RT_INFO = "key_rt_info";
     String KEY_STATION_NUM = "key_station_num";
+    String KEY_PI = "key_pi";
+    String KEY_IS_PI_VERIFIED = "key_is_pi_verified";
+    String KEY_PTY = "key_pty";
+    String KEY_IS_PTY_REMEMBERED = "key_is_pty_remembered";
+    String KEY_IS_TRAFFIC_PROGRAM = "key_is_traffic_program";
+    String KEY_IS_TRAFFIC_ANNOUNCEMENT = "key_is_traffic_announcement";
+    String KEY_CLOCK_TIME = "key_clock_time";
+    String KEY_CLOCK_OFFSET_MINUTES = "key_clock_offset_minutes";
 
     // Audio focus related
     String KEY_AUDIOFOCUS_CHANGED = "key_audiofocus_changed";
@@ -68,6 +91,9 @@ public interface FmListener {
     String KEY_RECORDING_STATE = "key_is_recording_state";
     String KEY_RECORDING_ERROR_TYPE = "key_recording_error_type";
     String KEY_IS_RECORDING_MODE = "key_is_recording_mode";
+    String KEY_RECORDING_PATH = "key_recording_path";
+    String KEY_IS_RECORDING_SAVED = "key_is_recording_saved";
+    String KEY_IS_RECORDING_IN_MEDIA_STORE = "key_is_recording_in_media_store";
 
     // For change speaker/earphone mode
     String KEY_IS_SPEAKER_MODE = "key_is_speaker_mode";
@@ -102,6 +128,13 @@ public interface FmListener {
     int MSGID_STARTPLAYBACK_FINISHED = 24;
     int MSGID_STOPPLAYBACK_FINISHED = 25;
     int MSGID_SAVERECORDING_FINISHED = 26;
+    // Time shift
+    int MSGID_TIMESHIFT_STARTED = 27;
+    int MSGID_TIMESHIFT_CAUGHT_UP = 28;
+    // Scheduled recording
+    int MSGID_SCHEDULED_WARM_UP = 40;
+    int MSGID_SCHEDULED_START = 41;
+    int MSGID_SCHEDULED_STOP = 42;
     // Audio focus related
     int MSGID_AUDIOFOCUS_CHANGED = 30;
 
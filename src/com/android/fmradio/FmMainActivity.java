@@ -16,6 +16,7 @@
 
 package com.android.fmradio;
 
+import java.io.File;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
@@ -61,6 +62,7 @@ import com.android.fmradio.FmStation.Station;
 import com.android.fmradio.dialogs.FmFavoriteEditDialog;
 import com.android.fmradio.views.FmScroller;
 import com.android.fmradio.views.FmSnackBar;
+import com.android.fmradio.views.FmVisualizerView;
 import com.android.fmradio.views.FmScroller.EventListener;
 
 /**
@@ -83,6 +85,9 @@ public class FmMainActivity extends Activity implements FmFavoriteEditDialog.Edi
     // FM
     private static final String FM = "FM";
 
+    // how far "back" rewinds live radio
+    private static final long TIME_SHIFT_SKIP_MS = 30 * 1000;
+
     // UI views
     private TextView mTextStationName = null;
 
@@ -132,6 +137,14 @@ public class FmMainActivity extends Activity implements FmFavoriteEditDialog.Edi
 
     private MenuItem mMenuItemRecordList = null;
 
+    private MenuItem mMenuItemRecordHistory = null;
+
+    private MenuItem mMenuItemTimeShiftPause = null;
+
+    private MenuItem mMenuItemTimeShiftBack = null;
+
+    private MenuItem mMenuItemTimeShiftLive = null;
+
     // State variables
     private boolean mIsServiceStarted = false;
 
@@ -337,6 +350,17 @@ public class FmMainActivity extends Activity implements FmFavoriteEditDialog.Edi
                     }
                     break;
 
+                case FmListener.LISTEN_RECORDING_SAVED:
+                    bundle = msg.getData();
+                    if (bundle.getBoolean(FmListener.KEY_IS_RECORDING_SAVED)) {
+                        String path = bundle.getString(FmListener.KEY_RECORDING_PATH);
+                        showRecordingResult(getString(R.string.toast_record_saved),
+                                Uri.fromFile(new File(path)));
+                    } else {
+                        showRecordingResult(getString(R.string.toast_record_not_saved), null);
+                    }
+                    break;
+
                 default:
                     break;
             }
@@ -513,6 +537,13 @@ public class FmMainActivity extends Activity implements FmFavoriteEditDialog.Edi
 
         mScroller = (FmScroller) findViewById(R.id.multiscroller);
         mScroller.initialize();
+        mScroller.setLevelSource(new FmVisualizerView.LevelSource() {
+            @Override
+            public boolean readLevels(float[] levels) {
+                FmService service = mService;
+                return service != null && service.readAudioLevels(levels);
+            }
+        });
         mEventListener = new EventListener() {
             @Override
             public void onRename(int frequency) {
@@ -752,6 +783,10 @@ public class FmMainActivity extends Activity implements FmFavoriteEditDialog.Edi
         mMenuItemHeadset = menu.findItem(R.id.fm_headset);
         mMenuItemStartRecord = menu.findItem(R.id.fm_start_record);
         mMenuItemRecordList = menu.findItem(R.id.fm_record_list);
+        mMenuItemRecordHistory = menu.findItem(R.id.fm_record_history);
+        mMenuItemTimeShiftPause = menu.findItem(R.id.fm_time_shift_pause);
+        mMenuItemTimeShiftBack = menu.findItem(R.id.fm_time_shift_back);
+        mMenuItemTimeShiftLive = menu.findItem(R.id.fm_time_shift_live);
         return true;
     }
 
@@ -781,6 +816,18 @@ public class FmMainActivity extends Activity implements FmFavoriteEditDialog.Edi
                 : (isPowerUp || (isPowerdown && !mIsDisablePowerMenu)));
         mMenuItemHeadset.setIcon(isSpeakerUsed ? R.drawable.btn_fm_speaker_selector
                 : R.drawable.btn_fm_headset_selector);
+        // offer it once there is at least a minute to record
+        long historyMinutes = mService.getRecordHistoryMs() / (60 * 1000);
+        mMenuItemRecordHistory.setVisible(isPowerUp && !isSeeking && historyMinutes > 0);
+        mMenuItemRecordHistory.setTitle(getString(R.string.fm_over_record_history,
+                historyMinutes));
+        boolean timeShift = isPowerUp && !isSeeking && mService.isTimeShiftAvailable();
+        mMenuItemTimeShiftPause.setVisible(timeShift);
+        mMenuItemTimeShiftPause.setTitle(mService.isLivePaused()
+                ? R.string.fm_over_resume_live : R.string.fm_over_pause_live);
+        mMenuItemTimeShiftBack.setVisible(timeShift);
+        mMenuItemTimeShiftLive.setVisible(timeShift && (mService.isLivePaused()
+                || mService.getTimeShiftDelayMs() > 0));
         return true;
     }
 
@@ -824,6 +871,32 @@ public class FmMainActivity extends Activity implements FmFavoriteEditDialog.Edi
                 startActivityForResult(recordIntent, REQUEST_CODE_RECORDING);
                 break;
 
+            case R.id.fm_record_history:
+                Intent historyIntent = new Intent(this, FmRecordActivity.class);
+                historyIntent.putExtra(FmStation.CURRENT_STATION, mCurrentStation);
+                historyIntent.putExtra(FmRecordActivity.EXTRA_INCLUDE_HISTORY, true);
+                startActivityForResult(historyIntent, REQUEST_CODE_RECORDING);
+                break;
+
+            case R.id.fm_time_shift_pause:
+                if (mService.isLivePaused()) {
+                    mService.resumeLive();
+                } else {
+                    mService.pauseLive();
+                }
+                invalidateOptionsMenu();
+                break;
+
+            case R.id.fm_time_shift_back:
+                mService.seekTimeShift(-TIME_SHIFT_SKIP_MS);
+                invalidateOptionsMenu();
+                break;
+
+            case R.id.fm_time_shift_live:
+                mService.goLive();
+                invalidateOptionsMenu();
+                break;
+
             case R.id.fm_record_list:
                 Intent playMusicIntent = new Intent(Intent.ACTION_VIEW);
                 int playlistId = FmRecorder.getPlaylistId(mContext);
@@ -876,35 +949,8 @@ public class FmMainActivity extends Activity implements FmFavoriteEditDialog.Edi
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (RESULT_OK == resultCode) {
             if (REQUEST_CODE_RECORDING == requestCode) {
-                final Uri playUri = data.getData();
-                boolean isSaved = playUri != null;
-                String title = data.getStringExtra(EXTRA_RESULT_STRING);
-                String action = null;
-                FmSnackBar.OnActionTriggerListener listener = null;
-
-                if (isSaved) {
-                    action = FmMainActivity.this.getString(R.string.toast_listen);
-                    listener = new FmSnackBar.OnActionTriggerListener() {
-                        @Override
-                        public void onActionTriggered() {
-                            Intent playMusicIntent = new Intent(Intent.ACTION_VIEW);
-                            try {
-                                playMusicIntent.setComponent(new ComponentName(
-                                        "com.android.fmradio.recordings",
-                                        "com.android.fmradio.recordings.PlayRecording"));
-                                playMusicIntent.putExtra("path", playUri.toString());
-                                playMusicIntent.putExtra("type", "audio/3gpp");
-                                startActivity(playMusicIntent);
-                            } catch (ActivityNotFoundException e2) {
-                                // No activity respond
-                                Log.d(TAG,"onActivityResult, no activity "
-                                        + "respond play record file intent");
-                            }
-                        }
-                    };
-                }
-                FmSnackBar.make(FmMainActivity.this, title, action, listener,
-                        FmSnackBar.DEFAULT_DURATION).show();
+                // a saved recording is reported by the service once it is in place
+                showRecordingResult(data.getStringExtra(EXTRA_RESULT_STRING), null);
             } else if (REQUEST_CODE_FAVORITE == requestCode) {
                 int iStation =
                         data.getIntExtra(FmFavoriteActivity.ACTIVITY_RESULT, mCurrentStation);
@@ -935,6 +981,42 @@ public class FmMainActivity extends Activity implements FmFavoriteEditDialog.Edi
         mTextStationName.setText(FmStation.getStationName(mContext, mCurrentStation));
     }
 
+    /**
+     * Show how a recording ended, offering to play it if it was saved
+     *
+     * @param title The text to show
+     * @param playUri The saved recording, null if there is none
+     */
+    private void showRecordingResult(String title, final Uri playUri) {
+        String action = null;
+        FmSnackBar.OnActionTriggerListener listener = null;
+
+        if (playUri != null) {
+            action = FmMainActivity.this.getString(R.string.toast_listen);
+            listener = new FmSnackBar.OnActionTriggerListener() {
+                @Override
+                public void onActionTriggered() {
+                    Intent playMusicIntent = new Intent(Intent.ACTION_VIEW);
+                    try {
+                        playMusicIntent.setComponent(new ComponentName(
+                                "com.android.fmradio.recordings",
+                                "com.android.fmradio.recordings.PlayRecording"));
+                        playMusicIntent.putExtra("path", playUri.toString());
+                        playMusicIntent.putExtra("type",
+                                RecordingFormat.getMimeTypeOfFile(playUri.getPath()));
+                        startActivity(playMusicIntent);
+                    } catch (ActivityNotFoundException e2) {
+                        // No activity respond
+                        Log.d(TAG,"showRecordingResult, no activity "
+                                + "respond play record file intent");
+                    }
+                }
+            };
+        }
+        FmSnackBar.make(FmMainActivity.this, title, action, listener,
+                FmSnackBar.DEFAULT_DURATION).show();
+    }
+
     /**
      * Power up FM
      */
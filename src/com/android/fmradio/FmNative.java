@@ -16,10 +16,21 @@
 
 package com.android.fmradio;
 
+import java.nio.ByteBuffer;
+
 /**
  * This class define FM native interface, will description FM native interface
  */
 public class FmNative {
+    // waitRds() results besides an event type
+    static final int RDS_WAIT_CANCELLED = -1;
+    static final int RDS_WAIT_ERROR = -2;
+    static final int RDS_WAIT_UNSUPPORTED = -3;
+    // readRdsSnapshot() was not given a large enough direct buffer
+    static final int RDS_SNAPSHOT_BAD_BUFFER = -4;
+    // largest raw rds block log, struct rds_raw_data
+    static final int RDS_LOG_SIZE = 146;
+
     static {
         System.loadLibrary("fmjni");
     }
@@ -106,6 +117,45 @@ public class FmNative {
      */
     static native short readRds();
 
+    /**
+     * Block until the driver has an rds event, see {@link #cancelRdsWait()}.
+     * Not in every libfmjni, callers must handle UnsatisfiedLinkError.
+     *
+     * @param timeoutMs longest wait, -1 to wait until cancelled
+     *
+     * @return rds event type, 0 on timeout, RDS_WAIT_CANCELLED, RDS_WAIT_ERROR
+     *         or RDS_WAIT_UNSUPPORTED if the driver cannot be waited on
+     */
+    static native int waitRds(int timeoutMs);
+
+    /**
+     * Make a pending or the next {@link #waitRds(int)} return RDS_WAIT_CANCELLED.
+     */
+    static native void cancelRdsWait();
+
+    /**
+     * Read the rds events and copy the rds state into {@code snapshot}, laid
+     * out as described in {@link RdsSnapshot}. Not in every libfmjni,
+     * callers must handle UnsatisfiedLinkError.
+     *
+     * @param snapshot direct buffer of at least RdsSnapshot.SIZE bytes
+     * @param wait true to block like {@link #waitRds(int)} until an event
+     *
+     * @return rds event type, or one of the RDS_WAIT_* results when waiting,
+     *         or RDS_SNAPSHOT_BAD_BUFFER; the buffer is only written on >= 0
+     */
+    static native int readRdsSnapshot(ByteBuffer snapshot, boolean wait);
+
+    /**
+     * Copy the raw rds blocks the chip received since the last call. Not in
+     * every libfmjni, callers must handle UnsatisfiedLinkError.
+     *
+     * @param blocks direct buffer of at least RDS_LOG_SIZE bytes
+     *
+     * @return bytes copied, 0 if there were none, -1 on error
+     */
+    static native int readRdsLog(ByteBuffer blocks);
+
     /**
      * Get program service(program name)
      *
@@ -17,9 +17,12 @@
 package com.android.fmradio;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -29,6 +32,8 @@ import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.ArrayList;
+
 /**
  * This class provider interface to operator FM database table StationList
  */
@@ -42,7 +47,7 @@ public class FmProvider extends ContentProvider {
     // database name
     private static final String DATABASE_NAME = "FmRadio.db";
     // database version
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
     // table name
     private static final String TABLE_NAME = "StationList";
 
@@ -50,6 +55,8 @@ public class FmProvider extends ContentProvider {
     private static final int STATION_FREQ = 1;
     // URI match code
     private static final int STATION_FREQ_ID = 2;
+    // set on the thread applying a batch, which notifies once at the end
+    private final ThreadLocal<Boolean> mInBatch = new ThreadLocal<>();
     // use to match URI
     private static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -90,7 +97,9 @@ public class FmProvider extends ContentProvider {
                             + FmStation.Station.IS_FAVORITE + " INTEGER DEFAULT 0,"
                             + FmStation.Station.STATION_NAME + " TEXT,"
                             + FmStation.Station.PROGRAM_SERVICE + " TEXT,"
-                            + FmStation.Station.RADIO_TEXT + " TEXT"
+                            + FmStation.Station.RADIO_TEXT + " TEXT,"
+                            + FmStation.Station.PROGRAM_ID + " INTEGER,"
+                            + FmStation.Station.PROGRAM_TYPE + " INTEGER"
                             + ");"
                     );
         }
@@ -104,7 +113,15 @@ public class FmProvider extends ContentProvider {
          */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            // TODO: reimplement this when dB version changes
+            if (oldVersion == 1 && newVersion == 2) {
+                // version 2 adds the RDS program identification and type
+                Log.i(TAG, "onUpgrade, adding RDS columns");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                        + FmStation.Station.PROGRAM_ID + " INTEGER");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                        + FmStation.Station.PROGRAM_TYPE + " INTEGER");
+                return;
+            }
             Log.i(TAG, "onUpgrade, upgrading database from version " + oldVersion + " to "
                     + newVersion + ", which will destroy all old data");
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
@@ -128,7 +145,7 @@ public class FmProvider extends ContentProvider {
         switch (URI_MATCHER.match(uri)) {
             case STATION_FREQ:
                 rows = mSqlDb.delete(TABLE_NAME, selection, selectionArgs);
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
                 break;
 
             case STATION_FREQ_ID:
@@ -139,7 +156,7 @@ public class FmProvider extends ContentProvider {
                                 + stationID
                                 + (TextUtils.isEmpty(selection) ? "" : " AND (" + selection + ")"),
                         selectionArgs);
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
                 break;
 
             default:
@@ -169,7 +186,7 @@ public class FmProvider extends ContentProvider {
         }
         rowUri = ContentUris.appendId(FmStation.Station.CONTENT_URI.buildUpon(), rowId)
                 .build();
-        getContext().getContentResolver().notifyChange(rowUri, null);
+        notifyChange(rowUri);
         return rowUri;
     }
 
@@ -233,7 +250,7 @@ public class FmProvider extends ContentProvider {
         switch (URI_MATCHER.match(uri)) {
             case STATION_FREQ:
                 rows = mSqlDb.update(TABLE_NAME, values, selection, selectionArgs);
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
                 break;
             case STATION_FREQ_ID:
                 String stationID = uri.getPathSegments().get(1);
@@ -244,7 +261,7 @@ public class FmProvider extends ContentProvider {
                                 + stationID
                                 + (TextUtils.isEmpty(selection) ? "" : " AND (" + selection + ")"),
                         selectionArgs);
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
                 break;
             default:
                 Log.e(TAG, "update, unkown URI to update: " + uri);
@@ -253,6 +270,38 @@ public class FmProvider extends ContentProvider {
         return rows;
     }
 
+    /**
+     * Apply the operations in one transaction, observers are notified once
+     * when it is committed.
+     *
+     * @param operations The operations to apply
+     *
+     * @return The results of the operations
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        mInBatch.set(true);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mInBatch.set(null);
+        }
+        getContext().getContentResolver().notifyChange(FmStation.Station.CONTENT_URI, null);
+        return results;
+    }
+
+    private void notifyChange(Uri uri) {
+        if (mInBatch.get() == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     /**
      * Get uri type
      *
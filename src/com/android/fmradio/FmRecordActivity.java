@@ -31,7 +31,6 @@ import android.content.ServiceConnection;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -46,7 +45,6 @@ import com.android.fmradio.FmStation.Station;
 import com.android.fmradio.dialogs.FmSaveDialog;
 import com.android.fmradio.views.FmVisualizerView;
 
-import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -64,9 +62,12 @@ public class FmRecordActivity extends Activity implements
     private static final int MSG_UPDATE_NOTIFICATION = 1000;
     private static final int TIME_BASE = 60;
     private static final String CHANNEL_ID = "record";
+    // start the recording with the radio buffered before it was requested
+    public static final String EXTRA_INCLUDE_HISTORY = "include_history";
     private Context mContext;
     private TextView mMinutes;
     private TextView mSeconds;
+    private TextView mMinutesLeft;
     private TextView mFrequency;
     private View mStationInfoLayout;
     private TextView mStationName;
@@ -78,6 +79,7 @@ public class FmRecordActivity extends Activity implements
     private boolean mIsInBackground = false;
     private int mRecordState = FmRecorder.STATE_INVALID;
     private boolean mRecordingStarted = false;
+    private boolean mIncludeHistory = false;
     private int mCurrentStation = FmUtils.DEFAULT_STATION;
     private Notification.Builder mNotificationBuilder = null;
 
@@ -91,6 +93,7 @@ public class FmRecordActivity extends Activity implements
 
         mMinutes = (TextView) findViewById(R.id.minutes);
         mSeconds = (TextView) findViewById(R.id.seconds);
+        mMinutesLeft = (TextView) findViewById(R.id.minutes_left);
 
         mFrequency = (TextView) findViewById(R.id.frequency);
         mStationInfoLayout = findViewById(R.id.station_name_rt);
@@ -108,6 +111,7 @@ public class FmRecordActivity extends Activity implements
         });
 
         mPlayIndicator = (FmVisualizerView) findViewById(R.id.fm_play_indicator);
+        mPlayIndicator.setLevelSource(mLevelSource);
 
         if (savedInstanceState != null) {
             mCurrentStation = savedInstanceState.getInt(FmStation.CURRENT_STATION);
@@ -119,6 +123,7 @@ public class FmRecordActivity extends Activity implements
                     FmUtils.DEFAULT_STATION);
             mRecordState = intent.getIntExtra("last_record_state", FmRecorder.STATE_INVALID);
             mRecordingStarted = intent.getBooleanExtra("recording_started", false);
+            mIncludeHistory = intent.getBooleanExtra(EXTRA_INCLUDE_HISTORY, false);
         }
         bindService(new Intent(this, FmService.class), mServiceConnection,
                 Context.BIND_AUTO_CREATE);
@@ -265,7 +270,7 @@ public class FmRecordActivity extends Activity implements
                 if (!mRecordingStarted) {
                     // start the new recording
                     mRecordingStarted = true;
-                    mService.startRecordingAsync();
+                    mService.startRecordingAsync(mIncludeHistory);
                     break;
                 }
 
@@ -364,10 +369,11 @@ public class FmRecordActivity extends Activity implements
         }
 
         if (recordingName != null && mService != null) {
+            // saved in the background, the main activity shows the outcome
+            // once the service reports it
             mService.saveRecordingAsync(recordingName);
-            returnResult(recordingName, getString(R.string.toast_record_saved));
         } else {
-            returnResult(null, getString(R.string.toast_record_not_saved));
+            returnResult(getString(R.string.toast_record_not_saved));
         }
         finish();
     }
@@ -382,6 +388,14 @@ public class FmRecordActivity extends Activity implements
         super.onBackPressed();
     }
 
+    private final FmVisualizerView.LevelSource mLevelSource = new FmVisualizerView.LevelSource() {
+        @Override
+        public boolean readLevels(float[] levels) {
+            FmService service = mService;
+            return service != null && service.readAudioLevels(levels);
+        }
+    };
+
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, android.os.IBinder service) {
@@ -417,6 +431,7 @@ public class FmRecordActivity extends Activity implements
                         long recordTimeInSec = recordTimeInMillis / 1000L;
                         mMinutes.setText(addPaddingForString(recordTimeInSec / TIME_BASE));
                         mSeconds.setText(addPaddingForString(recordTimeInSec % TIME_BASE));
+                        updateMinutesLeft();
                     }
                     mHandler.sendEmptyMessageDelayed(FmListener.MSGID_REFRESH,
                             1000 - (recordTimeInMillis % 1000));
@@ -464,7 +479,22 @@ public class FmRecordActivity extends Activity implements
         };
     };
 
+    private void updateMinutesLeft() {
+        long minutesLeft = mService.getRecordingMinutesLeft();
+        if (minutesLeft < 0) {
+            mMinutesLeft.setVisibility(View.GONE);
+        } else {
+            mMinutesLeft.setText(getString(R.string.recording_minutes_left, minutesLeft));
+            mMinutesLeft.setVisibility(View.VISIBLE);
+        }
+    }
+
     private void checkStorageSpaceAndStop() {
+        // The recorder tracks free space itself while it knows its bitrate,
+        // only stat the storage here before that or when it is nearly full
+        if (mService.getRecordingMinutesLeft() > 0) {
+            return;
+        }
         long recordTimeInMillis = mService.getRecordTime();
         long recordTimeInSec = recordTimeInMillis / 1000L;
         // Check storage free space
@@ -488,13 +518,13 @@ public class FmRecordActivity extends Activity implements
         switch (errorType) {
             case FmRecorder.ERROR_SDCARD_NOT_PRESENT:
                 showString = getString(R.string.toast_sdcard_missing);
-                returnResult(null, showString);
+                returnResult(showString);
                 finish();
                 break;
 
             case FmRecorder.ERROR_SDCARD_INSUFFICIENT_SPACE:
                 showString = getString(R.string.toast_sdcard_insufficient_space);
-                returnResult(null, showString);
+                returnResult(showString);
                 finish();
                 break;
 
@@ -503,9 +533,14 @@ public class FmRecordActivity extends Activity implements
                 Toast.makeText(mContext, showString, Toast.LENGTH_SHORT).show();
                 break;
 
+            case FmRecorder.ERROR_SDCARD_LOW_SPACE_WARNING:
+                showString = getString(R.string.toast_sdcard_low_space);
+                Toast.makeText(mContext, showString, Toast.LENGTH_LONG).show();
+                break;
+
             case FmRecorder.ERROR_SDCARD_WRITE_FAILED:
                 showString = getString(R.string.toast_recorder_internal_error);
-                returnResult(null, showString);
+                returnResult(showString);
                 finish();
                 break;
 
@@ -515,14 +550,9 @@ public class FmRecordActivity extends Activity implements
         }
     }
 
-    private void returnResult(String recordName, String resultString) {
+    private void returnResult(String resultString) {
         Intent intent = new Intent();
         intent.putExtra(FmMainActivity.EXTRA_RESULT_STRING, resultString);
-        if (recordName != null) {
-            intent.setData(Uri.parse("file://" + FmService.getRecordingSdcard()
-                    + File.separator + FmRecorder.FM_RECORD_FOLDER + File.separator
-                    + Uri.encode(recordName) + FmRecorder.RECORDING_FILE_EXTENSION));
-        }
         setResult(RESULT_OK, intent);
     }
 
@@ -16,9 +16,6 @@
 
 package com.android.fmradio;
 
-import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.media.AudioFormat;
@@ -28,32 +25,32 @@ import android.net.Uri;
 import android.os.Environment;
 import android.os.SystemClock;
 import android.provider.MediaStore;
-import android.text.format.DateFormat;
 import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 /**
  * This class provider interface to recording, stop recording, save recording
  * file, play recording file
  */
-public class FmRecorder implements AudioRecorder.Callback {
+public class FmRecorder implements AudioRecorder.Callback, RecordingFinalizer.Callback {
     private static final String TAG = "FmRecorder";
     // file prefix
     public static final String RECORDING_FILE_PREFIX = "FM";
-    // file extension
+    // file extension of AAC recordings, see RecordingFormat for the others
     public static final String RECORDING_FILE_EXTENSION = ".3gpp";
     // recording file folder
     public static final String FM_RECORD_FOLDER = "Documents/FM Recording";
     public static final Uri RECORDINGS_URI = Uri.parse("content://" +
                                 "com.android.externalstorage.documents/document/" +
                                 "primary%3ADocuments%2FFM%20Recording");
-    private static final String RECORDING_FILE_TYPE = "audio/3gpp";
-    private static final String RECORDING_FILE_SOURCE = "FM Recordings";
+    static final String RECORDING_FILE_SOURCE = "FM Recordings";
     // error type no sdcard
     public static final int ERROR_SDCARD_NOT_PRESENT = 0;
     // error type sdcard not have enough space
@@ -62,6 +59,8 @@ public class FmRecorder implements AudioRecorder.Callback {
     public static final int ERROR_SDCARD_WRITE_FAILED = 2;
     // error type recorder internal error occur
     public static final int ERROR_RECORDER_INTERNAL = 3;
+    // warning, storage will run out soon, the recording goes on
+    public static final int ERROR_SDCARD_LOW_SPACE_WARNING = 4;
 
     // FM Recorder state not recording and not playing
     public static final int STATE_IDLE = 5;
@@ -78,10 +77,18 @@ public class FmRecorder implements AudioRecorder.Callback {
     private long mRecordTime = 0;
     // record start time
     private long mRecordStartTime = 0;
+    // when the recorder last stopped, for the stop-to-saved latency
+    private long mRecordStopTime = 0;
     // current record file
     private File mRecordFile = null;
+    // format of the current record file
+    private RecordingFormat mRecordFormat = RecordingFormat.DEFAULT;
+    // format of the next recording and the history
+    private RecordingFormat mFormat = RecordingFormat.DEFAULT;
     // record current record file is saved by user
     private boolean mIsRecordingFileSaved = false;
+    // current record file is handed to the finalizer and not back yet
+    private boolean mIsRecordingFileSaving = false;
     // listener use for notify service the record state or error state
     private OnRecorderStateChangedListener mStateListener = null;
     // recorder use for record file
@@ -90,6 +97,21 @@ public class FmRecorder implements AudioRecorder.Callback {
     private final Object mRecorderLock = new Object();
     // format of input audio
     private AudioFormat mInputFormat = null;
+    // what to do when the encoder falls behind the render thread
+    private int mOverflowPolicy = PcmRingBuffer.OVERFLOW_DROP_OLDEST;
+    // length of recording segments, 0 records a single file
+    private int mSegmentSeconds = 0;
+    // keeps encoding the radio so a recording can start in the past, null if disabled
+    private AudioRecorder mHistory = null;
+    private int mHistorySeconds = 0;
+    // the history needs rebuilding once the recording using it ends
+    private boolean mHistoryRestartPending = false;
+    // track markers: silence level in dBFS and gap length, 0 ms disables them
+    private int mTrackSilenceDb = 0;
+    private int mTrackSilenceMs = 0;
+    private int mTrackMinMs = 0;
+    // finishes saved recordings off the caller's thread, created on first save
+    private RecordingFinalizer mFinalizer = null;
 
     FmRecorder(AudioFormat in) {
         mInputFormat = in;
@@ -101,6 +123,16 @@ public class FmRecorder implements AudioRecorder.Callback {
      * success, will set FM record state to recording and notify to the caller
      */
     public void startRecording(Context context) {
+        startRecording(context, false);
+    }
+
+    /**
+     * Start recording, see {@link #startRecording(Context)}.
+     *
+     * @param includeHistory start the file with the buffered history, see
+     *            {@link #setHistoryDuration(int)}
+     */
+    public void startRecording(Context context, boolean includeHistory) {
         mRecordTime = 0;
 
         // Check external storage
@@ -133,6 +165,14 @@ public class FmRecorder implements AudioRecorder.Callback {
                 setError(ERROR_RECORDER_INTERNAL);
                 return;
             }
+        } else if (mFinalizer == null || !mFinalizer.isBusy()) {
+            // not while a save may be joining segments, there is a next time
+            recoverSegmentedRecordings(context, recordingDir);
+        }
+        RecordingFormat format;
+        synchronized (mRecorderLock) {
+            // a recording from the history has the format the history was encoded in
+            format = includeHistory && mHistory != null ? mHistory.getRecordingFormat() : mFormat;
         }
         // create recording temporary file
         long curTime = System.currentTimeMillis();
@@ -141,9 +181,10 @@ public class FmRecorder implements AudioRecorder.Callback {
                 Locale.ENGLISH);
         String time = simpleDateFormat.format(date);
         StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append(time).append(RECORDING_FILE_EXTENSION);
+        stringBuilder.append(time).append(format.getExtension());
         String name = stringBuilder.toString();
         mRecordFile = new File(recordingDir, name);
+        mRecordFormat = format;
         try {
             if (mRecordFile.createNewFile()) {
                 Log.d(TAG, "startRecording, createNewFile success with path "
@@ -158,14 +199,23 @@ public class FmRecorder implements AudioRecorder.Callback {
         // set record parameter and start recording
         try {
             synchronized(mRecorderLock) {
-                if (mRecorder != null) {
-                    mRecorder.stopRecording();
+                stopRecorderLocked();
+
+                long historyMs = 0;
+                if (includeHistory && mHistory != null) {
+                    // no new encoder, the history one writes its buffer and goes on
+                    historyMs = mHistory.startOutput(mRecordFile, mSegmentSeconds * 1000000L);
+                    mRecorder = mHistory;
+                } else {
+                    mRecorder = new AudioRecorder(mInputFormat, format, mRecordFile,
+                            mOverflowPolicy, mSegmentSeconds * 1000000L);
+                    mRecorder.setCallback(this);
+                    setTrackSplitter(mRecorder);
                 }
-
-                mRecorder = new AudioRecorder(mInputFormat, mRecordFile);
-                mRecorder.setCallback(this);
-                mRecordStartTime = SystemClock.elapsedRealtime();
+                // the record time includes the history
+                mRecordStartTime = SystemClock.elapsedRealtime() - historyMs;
                 mIsRecordingFileSaved = false;
+                mIsRecordingFileSaving = false;
             }
         } catch (IllegalStateException e) {
             Log.e(TAG, "startRecording, IllegalStateException while starting recording!", e);
@@ -186,9 +236,184 @@ public class FmRecorder implements AudioRecorder.Callback {
 
         mRecordTime = SystemClock.elapsedRealtime() - mRecordStartTime;
         stopRecorder();
+        mRecordStopTime = SystemClock.elapsedRealtime();
         setState(STATE_IDLE);
     }
 
+    /**
+     * Set what recordings are written as, takes effect on the next recording.
+     * The history is encoded in this format too, WAV disables it.
+     */
+    public void setRecordingFormat(RecordingFormat format) {
+        if (!format.equals(mFormat)) {
+            mFormat = format;
+            restartHistory();
+        }
+    }
+
+    /**
+     * @return extension of the current record file, including the dot
+     */
+    public String getRecordFileExtension() {
+        return mRecordFormat.getExtension();
+    }
+
+    /**
+     * Set the format of the PCM handed to {@link #encode}, takes effect on the
+     * next recording.
+     */
+    public void setInputFormat(AudioFormat format) {
+        AudioFormat old = mInputFormat;
+        mInputFormat = format;
+        if (old.getSampleRate() != format.getSampleRate()
+                || old.getEncoding() != format.getEncoding()
+                || old.getChannelCount() != format.getChannelCount()) {
+            // the history encoder only takes the format it was created for
+            restartHistory();
+        }
+    }
+
+    /**
+     * Keep encoding the last {@code seconds} of radio even while not
+     * recording, so a recording can start with them. Costs an always running
+     * encoder and a fixed buffer of encoded frames.
+     *
+     * @param seconds how much to keep, 0 to disable
+     */
+    public void setHistoryDuration(int seconds) {
+        if (seconds != mHistorySeconds) {
+            mHistorySeconds = seconds;
+            restartHistory();
+        }
+    }
+
+    /**
+     * @return length of the buffered history in ms, 0 if there is none
+     */
+    public long getHistoryDurationMs() {
+        AudioRecorder history = mHistory;
+        return history != null ? history.getHistoryDurationMs() : 0;
+    }
+
+    /**
+     * Mark track boundaries in recordings, where the audio comes back after
+     * silence or the RadioText changes, in a CUE sheet next to the file.
+     * Takes effect on the next recording.
+     *
+     * @param silenceDb level below which audio counts as silent, in dBFS
+     * @param silenceMs shortest gap that ends a track, 0 disables the markers
+     * @param minTrackMs shortest track
+     */
+    public void setTrackMarkers(int silenceDb, int silenceMs, int minTrackMs) {
+        if (silenceDb != mTrackSilenceDb || silenceMs != mTrackSilenceMs
+                || minTrackMs != mTrackMinMs) {
+            mTrackSilenceDb = silenceDb;
+            mTrackSilenceMs = silenceMs;
+            mTrackMinMs = minTrackMs;
+            restartHistory();
+        }
+    }
+
+    private void setTrackSplitter(AudioRecorder recorder) {
+        if (mTrackSilenceMs > 0) {
+            recorder.setTrackSplitter(new TrackSplitter(mInputFormat.getSampleRate(),
+                    mInputFormat.getChannelCount(),
+                    mInputFormat.getEncoding() == AudioFormat.ENCODING_PCM_FLOAT,
+                    mTrackSilenceDb, mTrackSilenceMs, mTrackMinMs));
+        }
+    }
+
+    /**
+     * Tell the recorders the RadioText changed, a possible track boundary.
+     */
+    public void onRadioText(String text) {
+        if (mTrackSilenceMs <= 0) {
+            return;
+        }
+        synchronized (mRecorderLock) {
+            if (mRecorder != null) {
+                mRecorder.onRadioText(text);
+            }
+            if (mHistory != null && mHistory != mRecorder) {
+                mHistory.onRadioText(text);
+            }
+        }
+    }
+
+    private void restartHistory() {
+        synchronized (mRecorderLock) {
+            if (mRecorder != null && mRecorder == mHistory) {
+                // recording from it, pick the change up once the recording ends
+                mHistoryRestartPending = true;
+                return;
+            }
+            mHistoryRestartPending = false;
+            if (mHistory != null) {
+                mHistory.stopRecording();
+                mHistory = null;
+            }
+            // WAV has no frames to buffer, it records from the moment it starts
+            if (mHistorySeconds > 0 && mInputFormat != null && mFormat.isEncoded()) {
+                mHistory = new AudioRecorder(mInputFormat, mFormat, mHistorySeconds * 1000000L,
+                        mOverflowPolicy);
+                mHistory.setCallback(mHistoryCallback);
+                setTrackSplitter(mHistory);
+            }
+        }
+    }
+
+    // errors of the history encoder only matter while it records a file
+    private final AudioRecorder.Callback mHistoryCallback = new AudioRecorder.Callback() {
+        @Override
+        public void onError(int what) {
+            boolean recording;
+            synchronized (mRecorderLock) {
+                recording = mRecorder != null && mRecorder == mHistory;
+            }
+            if (recording) {
+                FmRecorder.this.onError(what);
+            }
+            if (what == AudioRecorder.AUDIO_RECORDER_ERROR_INTERNAL) {
+                synchronized (mRecorderLock) {
+                    Log.e(TAG, "history encoder failed, history disabled");
+                    mHistory = null;
+                }
+            }
+        }
+    };
+
+    /**
+     * Stop the history encoder, e.g. when the service goes away.
+     */
+    public void release() {
+        synchronized (mRecorderLock) {
+            stopRecorderLocked();
+            if (mHistory != null) {
+                mHistory.stopRecording();
+                mHistory = null;
+            }
+        }
+        if (mFinalizer != null) {
+            // queued saves still complete
+            mFinalizer.quit();
+            mFinalizer = null;
+        }
+    }
+
+    public AudioFormat getInputFormat() {
+        return mInputFormat;
+    }
+
+    /**
+     * Set how the recorder handles PCM arriving faster than it can be encoded,
+     * takes effect on the next recording.
+     *
+     * @param policy one of the PcmRingBuffer.OVERFLOW_* constants
+     */
+    public void setOverflowPolicy(int policy) {
+        mOverflowPolicy = policy;
+    }
+
     /**
      * Compute the current record time
      *
@@ -201,6 +426,31 @@ public class FmRecorder implements AudioRecorder.Callback {
         return mRecordTime;
     }
 
+    /**
+     * Record in segments of the given length, so a crash loses at most the
+     * segment being written. Takes effect on the next recording.
+     *
+     * @param seconds segment length, 0 to record a single file
+     */
+    public void setSegmentDuration(int seconds) {
+        mSegmentSeconds = seconds;
+    }
+
+    /**
+     * Projected recording time left on the storage, from the measured encoder
+     * bitrate and the free space.
+     *
+     * @return seconds left, -1 if not recording or not known yet
+     */
+    public long getRemainingRecordingSeconds() {
+        synchronized (mRecorderLock) {
+            if (STATE_RECORDING != mInternalState || mRecorder == null) {
+                return -1;
+            }
+            return mRecorder.getSecondsLeft();
+        }
+    }
+
     /**
      * Get FM recorder current state
      *
@@ -218,7 +468,7 @@ public class FmRecorder implements AudioRecorder.Callback {
     public String getRecordFileName() {
         if (mRecordFile != null) {
             String fileName = mRecordFile.getName();
-            int index = fileName.indexOf(RECORDING_FILE_EXTENSION);
+            int index = fileName.lastIndexOf(mRecordFormat.getExtension());
             if (index > 0) {
                 fileName = fileName.substring(0, index);
             }
@@ -228,7 +478,10 @@ public class FmRecorder implements AudioRecorder.Callback {
     }
 
     /**
-     * Save recording file with the given name, and insert it's info to database
+     * Save recording file with the given name, and insert it's info to database.
+     * Returns right away, the file is moved and added to the media store in
+     * the background and the listener told when it is done, or that it
+     * failed. The current record file only changes then.
      *
      * @param context The context
      * @param newName The name to override default recording name
@@ -238,15 +491,37 @@ public class FmRecorder implements AudioRecorder.Callback {
             Log.e(TAG, "saveRecording, recording file is null!");
             return;
         }
+        if (mIsRecordingFileSaved || mIsRecordingFileSaving) {
+            Log.w(TAG, "saveRecording, " + mRecordFile + " is already saved");
+            return;
+        }
+        if (mFinalizer == null) {
+            mFinalizer = new RecordingFinalizer(context);
+            mFinalizer.setCallback(this);
+        }
 
-        File newRecordFile = new File(mRecordFile.getParent(), newName + RECORDING_FILE_EXTENSION);
-        boolean succuss = mRecordFile.renameTo(newRecordFile);
-        if (succuss) {
-            mRecordFile = newRecordFile;
+        File newRecordFile = new File(mRecordFile.getParent(),
+                newName + mRecordFormat.getExtension());
+        mFinalizer.submit(new RecordingFinalizer.Job(mRecordFile, newRecordFile, mRecordFormat,
+                mRecordTime, mRecordStopTime));
+        mIsRecordingFileSaving = true;
+    }
+
+    @Override
+    public void onRecordingSaved(RecordingFinalizer.Job job, File file, Uri uri,
+            long latencyMs) {
+        boolean isSaved = file.equals(job.target);
+        if (job.source.equals(mRecordFile) && mIsRecordingFileSaving) {
+            // not replaced by a newer recording meanwhile
+            mIsRecordingFileSaving = false;
+            if (isSaved) {
+                mRecordFile = file;
+                mIsRecordingFileSaved = true;
+            }
+        }
+        if (mStateListener != null) {
+            mStateListener.onRecordingSaved(file.getPath(), isSaved, uri != null);
         }
-        mIsRecordingFileSaved = true;
-        // insert recording file info to database
-        addRecordingToDatabase(context);
     }
 
     /**
@@ -257,7 +532,10 @@ public class FmRecorder implements AudioRecorder.Callback {
             stopRecorder();
         }
 
-        if (mRecordFile != null && !mIsRecordingFileSaved) {
+        if (mRecordFile != null && !mIsRecordingFileSaved && !mIsRecordingFileSaving) {
+            SegmentJoiner.deleteSegments(SegmentJoiner.findSegments(mRecordFile));
+            RecordingIndex.getFile(mRecordFile).delete();
+            TrackSplitter.getFile(mRecordFile).delete();
             if (!mRecordFile.delete()) {
                 // deletion failed, possibly due to hot plug out SD card
                 Log.d(TAG, "discardRecording, delete file failed!");
@@ -295,18 +573,80 @@ public class FmRecorder implements AudioRecorder.Callback {
          * @param error error type
          */
         void onRecorderError(int error);
+
+        /**
+         * notify a saved recording was moved into place and added to the
+         * media store, or that it could not be
+         *
+         * @param path the recording file
+         * @param isSaved false if it could not be moved into place
+         * @param inMediaStore false if it could not be added
+         */
+        void onRecordingSaved(String path, boolean isSaved, boolean inMediaStore);
     }
 
     @Override
     public void onError(int what) {
         Log.e(TAG, "onError, what = " + what);
+        if (what == AudioRecorder.AUDIO_RECORDER_WARN_DISK_LOW_SOON) {
+            setError(ERROR_SDCARD_LOW_SPACE_WARNING);
+            return;
+        }
         stopRecorder();
-        setError(ERROR_RECORDER_INTERNAL);
+        setError(what == AudioRecorder.AUDIO_RECORDER_WARN_DISK_LOW
+                ? ERROR_SDCARD_INSUFFICIENT_SPACE : ERROR_RECORDER_INTERNAL);
         if (STATE_RECORDING == mInternalState) {
             setState(STATE_IDLE);
         }
     }
 
+    /**
+     * Join the segments of recordings that were cut short by the process
+     * dying, and fix the header of such WAV recordings, so they show up as
+     * regular recordings.
+     */
+    private void recoverSegmentedRecordings(Context context, File recordingDir) {
+        String firstSegment = SegmentJoiner.SEGMENT_SUFFIX + 0;
+        File[] files = recordingDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.equals(mRecordFile) && !mIsRecordingFileSaved) {
+                // the last recording, still waiting to be saved or discarded
+                continue;
+            }
+            if (RecordingFormat.getTypeOfFile(name) == RecordingFormat.TYPE_WAV) {
+                if (WavWriter.repair(file)) {
+                    MediaScannerConnection.scanFile(context, new String[] { file.getPath() },
+                            null, null);
+                }
+                continue;
+            }
+            if (!name.endsWith(firstSegment)) {
+                continue;
+            }
+            File recording = new File(recordingDir,
+                    name.substring(0, name.length() - firstSegment.length()));
+            int type = RecordingFormat.getTypeOfFile(recording.getName());
+            if (type < 0 || (recording.equals(mRecordFile) && !mIsRecordingFileSaved)) {
+                continue;
+            }
+            List<File> segments = SegmentJoiner.findSegments(recording);
+            Log.i(TAG, "recovering " + recording + " from " + segments.size() + " segments");
+            if (SegmentJoiner.join(segments, recording, RecordingFormat.getMuxerFormat(type))) {
+                MediaScannerConnection.scanFile(context, new String[] { recording.getPath() },
+                        null, null);
+            } else {
+                recording.delete();
+                RecordingIndex.getFile(recording).delete();
+                TrackSplitter.getFile(recording).delete();
+            }
+            SegmentJoiner.deleteSegments(segments);
+        }
+    }
+
     /**
      * Reset FM recorder
      */
@@ -341,61 +681,6 @@ public class FmRecorder implements AudioRecorder.Callback {
         }
     }
 
-    /**
-     * Save recording file info to database
-     *
-     * @param context The context
-     */
-    private void addRecordingToDatabase(final Context context) {
-        long curTime = System.currentTimeMillis();
-        long modDate = mRecordFile.lastModified();
-        Date date = new Date(curTime);
-
-        java.text.DateFormat dateFormatter = DateFormat.getDateFormat(context);
-        java.text.DateFormat timeFormatter = DateFormat.getTimeFormat(context);
-        String title = getRecordFileName();
-        StringBuilder stringBuilder = new StringBuilder()
-                .append(FM_RECORD_FOLDER)
-                .append(" ")
-                .append(dateFormatter.format(date))
-                .append(" ")
-                .append(timeFormatter.format(date));
-        String artist = stringBuilder.toString();
-
-        final int size = 9;
-        ContentValues cv = new ContentValues(size);
-        cv.put(MediaStore.Audio.Media.IS_MUSIC, 1);
-        cv.put(MediaStore.Audio.Media.TITLE, title);
-        cv.put(MediaStore.Audio.Media.DATA, mRecordFile.getAbsolutePath());
-        final int oneSecond = 1000;
-        cv.put(MediaStore.Audio.Media.DATE_ADDED, (int) (curTime / oneSecond));
-        cv.put(MediaStore.Audio.Media.DATE_MODIFIED, (int) (modDate / oneSecond));
-        cv.put(MediaStore.Audio.Media.MIME_TYPE, RECORDING_FILE_TYPE);
-        cv.put(MediaStore.Audio.Media.ARTIST, artist);
-        cv.put(MediaStore.Audio.Media.ALBUM, RECORDING_FILE_SOURCE);
-        cv.put(MediaStore.Audio.Media.DURATION, mRecordTime);
-
-        int recordingId = addToAudioTable(context, cv);
-        if (recordingId < 0) {
-            // insert failed
-            return;
-        }
-        int playlistId = getPlaylistId(context);
-        if (playlistId < 0) {
-            // play list not exist, create FM Recording play list
-            playlistId = createPlaylist(context);
-        }
-        if (playlistId < 0) {
-            // insert playlist failed
-            return;
-        }
-        // insert item to FM recording play list
-        addToPlaylist(context, playlistId, recordingId);
-        // scan to update duration
-        MediaScannerConnection.scanFile(context, new String[] { mRecordFile.getPath() },
-                null, null);
-    }
-
     /**
      * Get the play list ID
      * @param context Current passed in Context instance
@@ -423,101 +708,63 @@ public class FmRecorder implements AudioRecorder.Callback {
         return playlistId;
     }
 
-    private int createPlaylist(final Context context) {
-        final int size = 1;
-        ContentValues cv = new ContentValues(size);
-        cv.put(MediaStore.Audio.Playlists.NAME, RECORDING_FILE_SOURCE);
-        Uri newPlaylistUri = context.getContentResolver().insert(
-                MediaStore.Audio.Playlists.getContentUri("external"), cv);
-        if (newPlaylistUri == null) {
-            Log.d(TAG, "createPlaylist, create playlist failed");
-            return -1;
+    private void stopRecorder() {
+        synchronized (mRecorderLock) {
+            stopRecorderLocked();
         }
-        return Integer.valueOf(newPlaylistUri.getLastPathSegment());
     }
 
-    private int addToAudioTable(final Context context, final ContentValues cv) {
-        ContentResolver resolver = context.getContentResolver();
-        int id = -1;
-
-        Cursor cursor = null;
-
-        try {
-            cursor = resolver.query(
-                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                    new String[] { MediaStore.Audio.Media._ID },
-                    MediaStore.Audio.Media.DATA + "=?",
-                    new String[] { mRecordFile.getPath() },
-                    null);
-            if (cursor != null && cursor.moveToFirst()) {
-                // Exist in database, just update it
-                id = cursor.getInt(0);
-                resolver.update(ContentUris.withAppendedId(
-                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id),
-                        cv,
-                        null,
-                        null);
-            } else {
-                // insert new entry to database
-                Uri uri = context.getContentResolver().insert(
-                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, cv);
-                if (uri != null) {
-                    id = Integer.valueOf(uri.getLastPathSegment());
-                }
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+    private void stopRecorderLocked() {
+        if (mRecorder == null) {
+            return;
+        }
+        if (mRecorder == mHistory) {
+            // finish the file, the history keeps running
+            mRecorder.stopOutput();
+            mRecorder = null;
+            if (mHistoryRestartPending) {
+                restartHistory();
             }
+            return;
         }
-        return id;
+        mRecorder.stopRecording();
+        mRecorder = null;
     }
 
-    private void addToPlaylist(final Context context, final int playlistId, final int recordingId) {
-        ContentResolver resolver = context.getContentResolver();
-        Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external", playlistId);
-        int order = 0;
-        Cursor cursor = null;
-        try {
-            cursor = resolver.query(
-                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                    new String[] { MediaStore.Audio.Media._ID },
-                    MediaStore.Audio.Media.DATA + "=?",
-                    new String[] { mRecordFile.getPath() },
-                    null);
-            if (cursor != null && cursor.moveToFirst()) {
-                // Exist in database, just update it
-                order = cursor.getCount();
+    public void dump(PrintWriter pw) {
+        RecordingFinalizer finalizer = mFinalizer;
+        if (finalizer != null) {
+            finalizer.dump(pw);
+        }
+        synchronized (mRecorderLock) {
+            if (mRecorder != null && mRecorder != mHistory) {
+                mRecorder.dump(pw);
             }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+            if (mHistory != null) {
+                pw.println("  history: seconds=" + mHistorySeconds
+                        + " recording=" + (mRecorder == mHistory));
+                mHistory.dump(pw);
             }
         }
-        ContentValues cv = new ContentValues(2);
-        cv.put(MediaStore.Audio.Playlists.Members.AUDIO_ID, recordingId);
-        cv.put(MediaStore.Audio.Playlists.Members.PLAY_ORDER, order);
-        try {
-            context.getContentResolver().insert(uri, cv);
-        } catch (SecurityException e) {
-            e.printStackTrace();
-        }
     }
 
-    private void stopRecorder() {
+    public void encode(PcmBufferPool.Buffer buffer) {
         synchronized (mRecorderLock) {
-            if (mRecorder != null) {
-                mRecorder.stopRecording();
-                mRecorder = null;
+            if (mHistory != null) {
+                encode(mHistory, buffer);
+            }
+            if (mRecorder != null && mRecorder != mHistory) {
+                encode(mRecorder, buffer);
             }
         }
     }
 
-    public void encode(byte bytes[]) {
-        synchronized (mRecorderLock) {
-            if (mRecorder != null) {
-                mRecorder.encode(bytes);
-            }
+    private static void encode(AudioRecorder recorder, PcmBufferPool.Buffer buffer) {
+        if (buffer.direct != null) {
+            buffer.direct.limit(buffer.size).position(0);
+            recorder.encode(buffer.direct);
+        } else {
+            recorder.encode(buffer.data, 0, buffer.size);
         }
     }
 }
@@ -27,13 +27,13 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothProfile;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Configuration;
 import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.media.AudioAttributes;
 import android.media.AudioDevicePort;
 import android.media.AudioDevicePortConfig;
 import android.media.AudioFormat;
@@ -59,15 +59,23 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.fmradio.FmStation.Station;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Locale;
 
 /**
  * Background service to control FM or do background tasks.
@@ -87,6 +95,7 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
     private static final String FM_FREQUENCY = "frequency";
     private static final String OPTION = "option";
     private static final String RECODING_FILE_NAME = "name";
+    private static final String TIME_SHIFT_FILE = "timeshift.pcm";
 
     // RDS events
     // PS
@@ -95,6 +104,8 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
     private static final int RDS_EVENT_LAST_RADIOTEXT = 0x0040;
     // AF
     private static final int RDS_EVENT_AF = 0x0080;
+    // how often the driver is read when it cannot be waited on
+    private static final int RDS_POLL_INTERVAL_MS = 500;
 
     // Headset
     private static final int HEADSET_PLUG_IN = 1;
@@ -103,8 +114,8 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
     private static final int NOTIFICATION_ID = 1;
     private static final String CHANNEL_ID = "playback";
 
-    // ignore audio data
-    private static final int AUDIO_FRAMES_TO_IGNORE_COUNT = 3;
+    // fade in software rendered audio instead of dropping the first buffers
+    private static final int FADE_IN_MS = 30;
 
     // Set audio policy for FM
     // should check AUDIO_POLICY_FORCE_FOR_MEDIA in audio_policy.h
@@ -136,12 +147,31 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
     private String mPsString = "";
     // RT String
     private String mRtTextString = "";
+    // RDS program identification and type of the current station, -1 if unknown
+    private volatile int mPi = -1;
+    private volatile int mPty = -1;
+    // RDS traffic program and traffic announcement flags
+    private volatile boolean mTrafficProgram = false;
+    private volatile boolean mTrafficAnnouncement = false;
     // Notification target class name
     private String mTargetClassName = "com.android.fmradio.FmMainActivity";
     // RDS thread use to receive the information send by station
-    private Thread mRdsThread = null;
+    private volatile Thread mRdsThread = null;
     // record whether RDS thread exit
-    private boolean mIsRdsThreadExit = false;
+    private volatile boolean mIsRdsThreadExit = false;
+    // block on the driver for RDS events instead of reading it on a timer
+    private volatile boolean mRdsEventDriven = true;
+    // the driver or libfmjni cannot be waited on, stay on the timer
+    private volatile boolean mRdsWaitUnsupported = false;
+    private final RdsWakeupStats mRdsStats = new RdsWakeupStats(RDS_POLL_INTERVAL_MS);
+    // fields of the last RDS read, only used on the RDS thread
+    private final RdsSnapshot mRdsSnapshot = new RdsSnapshot();
+    // RDS reads streamed to a file, null when not capturing
+    private volatile RdsCapture mRdsCapture;
+    // capture fed to the RDS thread instead of the driver, null when live
+    private volatile RdsReplay mRdsReplay;
+    // PS and RT received, written to the station list in batches
+    private StationCache mStationCache;
 
     // State variables
     // Record whether FM is in native scan state
@@ -219,6 +249,32 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
     private AudioPatch mAudioPatch = null;
     private Object mRenderLock = new Object();
 
+    // render thread states
+    private static final int RENDER_STATE_IDLE = 0;
+    private static final int RENDER_STATE_RUNNING = 1;
+    private static final int RENDER_STATE_PAUSED = 2;
+    private static final int RENDER_STATE_RECONFIGURING = 3;
+    private static final String[] RENDER_STATE_NAMES = {
+            "IDLE", "RUNNING", "PAUSED", "RECONFIGURING"
+    };
+    // longest wait for the render thread to park before a reconfiguration
+    private static final long RECONFIGURE_TIMEOUT_NS = 500L * 1000 * 1000;
+    private volatile int mRenderState = RENDER_STATE_IDLE;
+    // guarded by mRenderLock
+    private boolean mReconfigurePending = false;
+    // the render thread waits for mReconfigurePending to clear, guarded by mRenderLock
+    private boolean mRenderParked = false;
+    // a route change could not be applied yet, the next start tries again
+    private boolean mReconfigureRetry = false;
+    // when the last start/stop was requested, 0 once the render thread got there
+    private volatile long mRenderRequestNs = 0;
+    // settings the current AudioRecord/AudioTrack were built with
+    private int mActiveRenderConfig = -1;
+    private final TransitionStats[] mRenderTransitions = {
+            new TransitionStats(), new TransitionStats(),
+            new TransitionStats(), new TransitionStats()
+    };
+
     private Notification.Builder mNotificationBuilder = null;
     private BigTextStyle mNotificationStyle = null;
 
@@ -403,37 +459,171 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
     }
 
     private synchronized void startRender() {
-        Log.d(TAG, "startRender " + AudioSystem.getForceUse(FOR_PROPRIETARY));
+        startRender(false);
+    }
 
-        exitRenderThread();
+    /**
+     * Ask the render thread to run. AudioRecord and AudioTrack are only
+     * rebuilt if the render format changed or the caller knows the route did.
+     *
+     * @param routeChanged true to rebuild the audio objects regardless
+     */
+    private synchronized void startRender(boolean routeChanged) {
+        Log.d(TAG, "startRender " + AudioSystem.getForceUse(FOR_PROPRIETARY)
+                + " routeChanged=" + routeChanged);
+        markAudioRequested();
 
-       // need to create new audio record and audio play back track,
-       // because input/output device may be changed.
-       if (mAudioRecord != null) {
-           mAudioRecord.stop();
-           mAudioRecord.release();
-           mAudioRecord = null;
-       }
-       if (mAudioTrack != null) {
-           mAudioTrack.stop();
-           mAudioTrack.release();
-           mAudioTrack = null;
-       }
-       initAudioRecordSink();
+        if (routeChanged || mReconfigureRetry || mActiveRenderConfig != getRenderConfig()) {
+            mReconfigureRetry = !reconfigureRender();
+        }
 
+        mRenderRequestNs = SystemClock.elapsedRealtimeNanos();
+        // undo the squelch of stopRender(), the track outlives it now
+        mAudioTrack.setVolume(AudioTrack.getMaxVolume());
         mIsRender = true;
-        createRenderThread();
         synchronized (mRenderLock) {
-            mRenderLock.notify();
+            mRenderLock.notifyAll();
         }
     }
 
     private synchronized void stopRender() {
         Log.d(TAG, "stopRender");
+        mRenderRequestNs = SystemClock.elapsedRealtimeNanos();
         mIsRender = false;
         // HACK: Set volume to 0 to squelch any output between the call to
         // stopRender and the render thread calling AudioTrack.stop
         mAudioTrack.setVolume(0.0f);
+        synchronized (mRenderLock) {
+            mRenderLock.notifyAll();
+        }
+    }
+
+    /**
+     * Park the render thread, rebuild AudioRecord and AudioTrack, and let it
+     * continue. The thread itself keeps running.
+     *
+     * @return false if the thread did not park in time, the old audio
+     *         objects are then left alone for it
+     */
+    private synchronized boolean reconfigureRender() {
+        long start = SystemClock.elapsedRealtimeNanos();
+        synchronized (mRenderLock) {
+            mReconfigurePending = true;
+            mRenderLock.notifyAll();
+            // at most one blocking AudioRecord read away
+            long deadline = start + RECONFIGURE_TIMEOUT_NS;
+            while (mRenderThread != null && mRenderThread.isAlive() && !mRenderParked) {
+                long left = deadline - SystemClock.elapsedRealtimeNanos();
+                boolean interrupted = false;
+                if (left > 0) {
+                    try {
+                        mRenderLock.wait(left / 1000000 + 1);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (left <= 0 || interrupted) {
+                    // it may still be in read() or write(), try again later
+                    Log.e(TAG, "reconfigureRender, render thread did not park");
+                    mReconfigurePending = false;
+                    mRenderLock.notifyAll();
+                    return false;
+                }
+            }
+        }
+
+        if (mAudioRecord != null) {
+            mAudioRecord.stop();
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+        if (mAudioTrack != null) {
+            mAudioTrack.stop();
+            mAudioTrack.release();
+            mAudioTrack = null;
+        }
+        initAudioRecordSink();
+
+        synchronized (mRenderLock) {
+            mReconfigurePending = false;
+            mRenderLock.notifyAll();
+        }
+        mRenderTransitions[RENDER_STATE_RECONFIGURING].add(
+                SystemClock.elapsedRealtimeNanos() - start);
+        return true;
+    }
+
+    /**
+     * @return the PCM format the render path reads, the one it is set up for
+     *         when there is no AudioRecord
+     */
+    synchronized AudioFormat getRenderFormat() {
+        if (mAudioRecord != null) {
+            return mAudioRecord.getFormat();
+        }
+        return new AudioFormat.Builder()
+                .setSampleRate(mRenderSampleRate)
+                .setChannelMask(AudioFormat.CHANNEL_IN_STEREO)
+                .setEncoding(mRenderEncoding)
+                .build();
+    }
+
+    /**
+     * @return frames in one render chunk
+     */
+    synchronized int getRenderChunkFrames() {
+        return mRenderChunkSize / mRenderFrameSize;
+    }
+
+    RecordingFormat getRecordingFormat() {
+        return mRecordingFormat;
+    }
+
+    /**
+     * @return the render settings initAudioRecordSink() depends on
+     */
+    private int getRenderConfig() {
+        return (mLowLatencyRender ? 1 : 0) | (mUseFloatAudio ? 2 : 0)
+                | (mUseDirectBuffers ? 4 : 0);
+    }
+
+    private void setRenderState(int state) {
+        if (mRenderState == state) {
+            return;
+        }
+        long requested = mRenderRequestNs;
+        if (requested != 0 && state != RENDER_STATE_RECONFIGURING) {
+            // reconfiguration is timed by reconfigureRender() as a whole
+            mRenderTransitions[state].add(SystemClock.elapsedRealtimeNanos() - requested);
+            mRenderRequestNs = 0;
+        }
+        Log.d(TAG, "render state " + RENDER_STATE_NAMES[mRenderState] + " -> "
+                + RENDER_STATE_NAMES[state]);
+        synchronized (mRenderLock) {
+            mRenderState = state;
+            mRenderLock.notifyAll();
+        }
+    }
+
+    /**
+     * Count, last and longest duration of transitions into one render state
+     */
+    private static final class TransitionStats {
+        private long mCount;
+        private long mLastNs;
+        private long mMaxNs;
+
+        synchronized void add(long ns) {
+            mCount++;
+            mLastNs = ns;
+            if (ns > mMaxNs) {
+                mMaxNs = ns;
+            }
+        }
+
+        synchronized String summary() {
+            return "n=" + mCount + " lastMs=" + mLastNs / 1000000 + " maxMs=" + mMaxNs / 1000000;
+        }
     }
 
     private synchronized void createRenderThread() {
@@ -459,8 +649,64 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
     private static final int SAMPLE_RATE = 44100;
     private static final int CHANNEL_CONFIG = AudioFormat.CHANNEL_CONFIGURATION_STEREO;
     private static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
+    private static final int CHANNEL_COUNT = 2;
     private static final int RECORD_BUF_SIZE = AudioRecord.getMinBufferSize(SAMPLE_RATE,
             CHANNEL_CONFIG, AUDIO_FORMAT);
+    // smallest AudioTrack depth the jitter buffer goes down to, in chunks
+    private static final int RENDER_MIN_TRACK_CHUNKS = 2;
+    // render with a fast AudioTrack at the native rate and burst size
+    private boolean mLowLatencyRender = false;
+    // rate and read size in use by the current AudioRecord/AudioTrack pair
+    private int mRenderSampleRate = SAMPLE_RATE;
+    private int mRenderChunkSize = RECORD_BUF_SIZE;
+    private int mRenderEncoding = AUDIO_FORMAT;
+    private int mRenderFrameSize = CHANNEL_COUNT * 2;
+    // run capture, processing, playback and recording on float PCM
+    private boolean mUseFloatAudio = false;
+    // length of recording segments, 0 records a single file
+    private int mRecordingSegmentSeconds = 0;
+    // one of the PcmRingBuffer.OVERFLOW_* constants
+    private int mRecordingOverflowPolicy = PcmRingBuffer.OVERFLOW_DROP_OLDEST;
+    // radio kept encoded for recordings that start in the past, 0 if disabled
+    private int mRecordHistorySeconds = 0;
+    // what recordings are written as
+    private RecordingFormat mRecordingFormat = RecordingFormat.DEFAULT;
+    // mark track boundaries in recordings, and how silence is told apart
+    private boolean mTrackMarkers = false;
+    private int mTrackSilenceDb = -50;
+    private int mTrackSilenceMs = 1500;
+    private int mTrackMinSeconds = 60;
+    // window of live audio for pause and rewind, null if disabled
+    private TimeShiftBuffer mTimeShift;
+    // render thread only: the track played time-shifted audio last
+    private boolean mTimeShiftActive = false;
+    private RecordingScheduler mScheduler;
+    // developer switches, null on user builds
+    private DebugCommands mDebugCommands;
+    // handler thread only: the scheduled job being warmed up or recorded, null if none
+    private RecordingScheduler.Job mScheduledJob;
+    // the tuner was powered up for the job and goes down with it
+    private boolean mScheduledPowerUp = false;
+    // the job moved the audio from the patch to software rendering
+    private boolean mScheduledRender = false;
+    private boolean mScheduledRecording = false;
+    private long mScheduledWarmUpStartMs;
+    private long mScheduledWarmUpMs;
+    private long mScheduledSkewMs;
+    private final RenderLatency mRenderLatency = new RenderLatency();
+    private final JitterBuffer mJitterBuffer = new JitterBuffer();
+    // when powerUp/startRender asked for audio, 0 once the first chunk was played
+    private volatile long mAudioRequestedNs = 0;
+    private volatile int mTimeToFirstAudioMs = -1;
+    // buffers in flight between the render thread and the recorder
+    private static final int RENDER_POOL_SIZE = 16;
+    private PcmBufferPool mBufferPool = null;
+    // move PCM through direct ByteBuffers instead of Java arrays
+    private boolean mUseDirectBuffers = false;
+    // chunks handled by the render thread and the time spent in the
+    // processing chain
+    private volatile long mRenderChunks = 0;
+    private volatile long mRenderNanos = 0;
     private boolean mIsRender = false;
 
     AudioDevicePort mAudioSource = null;
@@ -484,84 +730,227 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
         }
     }
 
+    // stages run on every buffer the render thread reads
+    private final PcmProcessingChain mProcessingChain = new PcmProcessingChain();
+    private final FadeInRamp mFadeIn = new FadeInRamp(CHANNEL_COUNT);
+    private final LevelMeter mLevelMeter = new LevelMeter();
+    private final BandAnalyzer mBandAnalyzer = new BandAnalyzer();
+
+    // plays the buffer through the jitter buffer while rendering to speaker/A2DP
+    private final PcmProcessor mTrackOutput = new PcmProcessor() {
+        @Override
+        public void process(PcmBufferPool.Buffer buffer) {
+            // Check again to avoid noises, because mIsRender may be changed
+            // while AudioRecord is reading.
+            if (isRender()) {
+                PcmBufferPool.Buffer out = buffer;
+                TimeShiftBuffer timeShift = mTimeShift;
+                if (timeShift != null && timeShift.isShifted()) {
+                    mTimeShiftActive = true;
+                    if (timeShift.isPaused()) {
+                        if (mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
+                            mJitterBuffer.flush();
+                            mAudioTrack.pause();
+                        }
+                        return;
+                    }
+                    out = mBufferPool.acquire();
+                    if (!timeShift.read(out, buffer.size)) {
+                        // caught up, the live chunk plays from here on
+                        out.release();
+                        out = buffer;
+                    }
+                }
+                if (mTimeShiftActive && (timeShift == null || !timeShift.isShifted())) {
+                    mTimeShiftActive = false;
+                    mFmServiceHandler.sendEmptyMessage(FmListener.MSGID_TIMESHIFT_CAUGHT_UP);
+                }
+                if (mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PAUSED) {
+                    mAudioTrack.play();
+                }
+                int written = mJitterBuffer.write(out);
+                if (out != buffer) {
+                    out.release();
+                }
+                if (written > 0) {
+                    onFirstAudio();
+                    mRenderLatency.onWritten(written / mRenderFrameSize);
+                    mRenderLatency.update(mAudioRecord, mAudioTrack);
+                }
+            }
+        }
+    };
+
+    // keeps the live audio for pause and rewind
+    private final PcmProcessor mTimeShiftTap = new PcmProcessor() {
+        @Override
+        public void process(PcmBufferPool.Buffer buffer) {
+            TimeShiftBuffer timeShift = mTimeShift;
+            if (timeShift != null) {
+                timeShift.write(buffer);
+            }
+        }
+    };
+
+    // hands the buffer to the recorder while recording
+    private final PcmProcessor mRecorderTap = new PcmProcessor() {
+        @Override
+        public void process(PcmBufferPool.Buffer buffer) {
+            FmRecorder recorder = mFmRecorder;
+            if (recorder != null) {
+                recorder.encode(buffer);
+            }
+        }
+    };
+
+    private void initProcessingChain() {
+        mProcessingChain.addStage("fadeIn", mFadeIn);
+        mProcessingChain.addStage("levelMeter", mLevelMeter);
+        mProcessingChain.addStage("analyzer", mBandAnalyzer);
+        mProcessingChain.addStage("timeShift", mTimeShiftTap);
+        mProcessingChain.addStage("trackOutput", mTrackOutput);
+        mProcessingChain.addStage("recorderTap", mRecorderTap);
+    }
+
+    /**
+     * Long-lived render worker. It reads, processes and plays PCM while
+     * rendering is allowed, otherwise stops its audio objects and sleeps
+     * (IDLE when rendering is off, PAUSED while it is on but power or focus
+     * are missing), and parks in RECONFIGURING while reconfigureRender()
+     * swaps AudioRecord and AudioTrack.
+     */
     class RenderThread extends Thread {
-        private int mCurrentFrame = 0;
-        private boolean isAudioFrameNeedIgnore() {
-            return mCurrentFrame < AUDIO_FRAMES_TO_IGNORE_COUNT;
+        private boolean mFadeInPending = true;
+
+        RenderThread() {
+            super("FmRenderThread");
         }
 
         @Override
         public void run() {
             Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
             try {
-                byte[] buffer = new byte[RECORD_BUF_SIZE];
                 while (!Thread.interrupted()) {
+                    synchronized (mRenderLock) {
+                        if (mReconfigurePending) {
+                            stopAudio();
+                            setRenderState(RENDER_STATE_RECONFIGURING);
+                            mRenderParked = true;
+                            mRenderLock.notifyAll();
+                            try {
+                                while (mReconfigurePending) {
+                                    mRenderLock.wait();
+                                }
+                            } finally {
+                                mRenderParked = false;
+                            }
+                        }
+                    }
+
                     if (isRender()) {
                         // Speaker mode or BT a2dp mode will come here and keep reading and writing.
                         // If we want FM sound output from speaker or BT a2dp, we must record data
                         // to AudioRecrd and write data to AudioTrack.
                         if (mAudioRecord.getRecordingState() == AudioRecord.RECORDSTATE_STOPPED) {
                             mAudioRecord.startRecording();
+                            mRenderLatency.reset(mRenderSampleRate);
                         }
 
                         if (mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_STOPPED) {
                             mAudioTrack.play();
+                            mRenderLatency.reset(mRenderSampleRate);
+                        }
+                        PcmBufferPool.Buffer buffer = mBufferPool.acquire();
+                        int size;
+                        if (buffer.direct != null) {
+                            size = mAudioRecord.read(buffer.direct, buffer.direct.capacity());
+                        } else {
+                            size = mAudioRecord.read(buffer.data, 0, buffer.data.length);
                         }
-                        int size = mAudioRecord.read(buffer, 0, RECORD_BUF_SIZE);
-                        // check whether need to ignore first 3 frames audio data from AudioRecord
-                        // to avoid pop noise.
-                        if (isAudioFrameNeedIgnore()) {
-                            mCurrentFrame += 1;
-                            continue ;
+                        if (size > 0) {
+                            mRenderLatency.onRead(size / mRenderFrameSize);
                         }
                         if (size <= 0) {
                             Log.e(TAG, "RenderThread read data from AudioRecord "
                                     + "error size: " + size);
+                            buffer.release();
                             continue;
                         }
-                        byte[] tmpBuf = new byte[size];
-                        System.arraycopy(buffer, 0, tmpBuf, 0, size);
-                        // Check again to avoid noises, because mIsRender may be changed
-                        // while AudioRecord is reading.
-                        if (isRender()) {
-                            mAudioTrack.write(tmpBuf, 0, tmpBuf.length);
-                        }
-
-                        if (mFmRecorder != null) {
-                            mFmRecorder.encode(tmpBuf);
+                        buffer.size = size;
+                        long start = System.nanoTime();
+                        // ramp the first frames up from silence to avoid pop noise.
+                        if (mFadeInPending) {
+                            mFadeIn.restart(mRenderSampleRate * FADE_IN_MS / 1000);
+                            mFadeInPending = false;
                         }
+                        mProcessingChain.process(buffer);
+                        buffer.release();
+                        mRenderChunks++;
+                        mRenderNanos += System.nanoTime() - start;
+                        setRenderState(RENDER_STATE_RUNNING);
                     } else {
                         // Earphone mode will come here and wait.
-                        mCurrentFrame = 0;
-
-                        if (mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
-                            mAudioTrack.pause();
-                            mAudioTrack.flush();
-                            mAudioTrack.stop();
-                        }
-
-                        if (mAudioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
-                            mAudioRecord.stop();
-                        }
+                        stopAudio();
+                        setRenderState(mIsRender ? RENDER_STATE_PAUSED : RENDER_STATE_IDLE);
 
                         synchronized (mRenderLock) {
-                            mRenderLock.wait();
+                            if (!mReconfigurePending && !isRender()) {
+                                mRenderLock.wait();
+                            }
                         }
                     }
                 }
             } catch (InterruptedException e) {
                 Log.d(TAG, "RenderThread.run, thread is interrupted, need exit thread");
             } finally {
-                if (mAudioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
-                    mAudioRecord.stop();
-                }
-                if (mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
-                    mAudioTrack.stop();
-                }
+                stopAudio();
+                setRenderState(RENDER_STATE_IDLE);
+            }
+        }
+
+        private void stopAudio() {
+            mFadeInPending = true;
+            mJitterBuffer.flush();
+
+            // a time shift pause leaves the track paused rather than playing
+            if (mAudioTrack.getPlayState() != AudioTrack.PLAYSTATE_STOPPED) {
+                mAudioTrack.pause();
+                mAudioTrack.flush();
+                mAudioTrack.stop();
             }
+
+            if (mAudioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+                mAudioRecord.stop();
+            }
+        }
+    }
+
+    private void markAudioRequested() {
+        if (mAudioRequestedNs == 0) {
+            mAudioRequestedNs = SystemClock.elapsedRealtimeNanos();
         }
     }
 
+    private void onFirstAudio() {
+        long requested = mAudioRequestedNs;
+        if (requested != 0) {
+            mAudioRequestedNs = 0;
+            mTimeToFirstAudioMs = (int) ((SystemClock.elapsedRealtimeNanos() - requested)
+                    / (1000 * 1000));
+            Log.d(TAG, "time to first audio " + mTimeToFirstAudioMs + "ms");
+        }
+    }
+
+    /**
+     * Get the time from the last powerUp or render start until the first
+     * software rendered audio reached the AudioTrack
+     *
+     * @return time in milliseconds, -1 if not measured yet
+     */
+    public int getTimeToFirstAudioMs() {
+        return mTimeToFirstAudioMs;
+    }
+
     // A2dp or speaker mode should render
     private boolean isRender() {
         return (mIsRender && (mPowerStatus == POWER_UP) && mIsAudioFocusHeld);
@@ -628,6 +1017,7 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
         if (mPowerStatus == POWER_UP) {
             return true;
         }
+        markAudioRequested();
         if (!mWakeLock.isHeld()) {
             mWakeLock.acquire();
         }
@@ -659,6 +1049,7 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
     private boolean playFrequency(float frequency) {
         mCurrentStation = FmUtils.computeStation(frequency);
         FmStation.setCurrentStation(mContext, mCurrentStation);
+        resetRdsFields();
         // Add notification to the title bar.
         updatePlayingNotification();
 
@@ -715,6 +1106,7 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
         setMute(true);
         setRds(false);
         enableFmAudio(false);
+        mAudioRequestedNs = 0;
 
         if (!FmNative.powerDown(0)) {
 
@@ -771,9 +1163,12 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
             setRds(false);
             boolean bRet = FmNative.tune(frequency);
             if (bRet) {
+                // a new station is heard live
+                goLive();
                 setRds(true);
                 mCurrentStation = FmUtils.computeStation(frequency);
                 FmStation.setCurrentStation(mContext, mCurrentStation);
+                resetRdsFields();
                 updatePlayingNotification();
             }
             setMute(false);
@@ -952,6 +1347,43 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
         return mRtTextString;
     }
 
+    /**
+     * Get RDS program identification of the current station
+     *
+     * @return PI code, -1 if the station sent none yet
+     */
+    public int getPi() {
+        return mPi;
+    }
+
+    /**
+     * Get RDS program type of the current station, remembered from an earlier
+     * visit until the station sends it
+     *
+     * @return PTY code, -1 if unknown
+     */
+    public int getPty() {
+        return mPty;
+    }
+
+    /**
+     * Get RDS traffic program flag
+     *
+     * @return true if the station carries traffic announcements
+     */
+    public boolean isTrafficProgram() {
+        return mTrafficProgram;
+    }
+
+    /**
+     * Get RDS traffic announcement flag
+     *
+     * @return true while a traffic announcement is on air
+     */
+    public boolean isTrafficAnnouncement() {
+        return mTrafficAnnouncement;
+    }
+
     /**
      * Get AF frequency
      *
@@ -1121,11 +1553,116 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
      * Start recording
      */
     public void startRecordingAsync() {
+        startRecordingAsync(false);
+    }
+
+    /**
+     * Start recording
+     *
+     * @param includeHistory start with the buffered history, see
+     *            {@link #getRecordHistoryMs()}
+     */
+    public void startRecordingAsync(boolean includeHistory) {
         mFmServiceHandler.removeMessages(FmListener.MSGID_STARTRECORDING_FINISHED);
-        mFmServiceHandler.sendEmptyMessage(FmListener.MSGID_STARTRECORDING_FINISHED);
+        mFmServiceHandler.sendMessage(mFmServiceHandler.obtainMessage(
+                FmListener.MSGID_STARTRECORDING_FINISHED, includeHistory ? 1 : 0, 0));
+    }
+
+    /**
+     * Get how much of the radio a recording can start with
+     *
+     * @return buffered history in ms, 0 if there is none
+     */
+    public long getRecordHistoryMs() {
+        FmRecorder recorder = mFmRecorder;
+        return recorder != null ? recorder.getHistoryDurationMs() : 0;
+    }
+
+    /**
+     * Keep the last {@code seconds} of radio encoded so a recording can
+     * start with them. Costs an encoder running while the radio plays.
+     *
+     * @param seconds how much to keep, 0 to disable
+     */
+    public synchronized void setRecordHistorySeconds(int seconds) {
+        Log.d(TAG, "setRecordHistorySeconds " + seconds);
+        mRecordHistorySeconds = seconds;
+        if (mFmRecorder != null || seconds > 0) {
+            ensureRecorder();
+        }
+    }
+
+    private synchronized void ensureRecorder() {
+        if (mFmRecorder == null) {
+            mFmRecorder = new FmRecorder(mAudioRecord.getFormat());
+            mFmRecorder.registerRecorderStateListener(FmService.this);
+        } else {
+            // the render rate may have changed since the last recording
+            mFmRecorder.setInputFormat(mAudioRecord.getFormat());
+        }
+        mFmRecorder.setSegmentDuration(mRecordingSegmentSeconds);
+        mFmRecorder.setOverflowPolicy(mRecordingOverflowPolicy);
+        RecordingFormat format = mRecordingFormat;
+        if (!format.isSupported(mAudioRecord.getFormat())) {
+            Log.w(TAG, "recording format " + format + " not supported, using "
+                    + RecordingFormat.DEFAULT);
+            format = RecordingFormat.DEFAULT;
+        }
+        mFmRecorder.setRecordingFormat(format);
+        mFmRecorder.setTrackMarkers(mTrackSilenceDb, mTrackMarkers ? mTrackSilenceMs : 0,
+                mTrackMinSeconds * 1000);
+        mFmRecorder.setHistoryDuration(mRecordHistorySeconds);
     }
 
-    private void startRecording() {
+    /**
+     * Set what recordings are written as, takes effect on the next recording.
+     * Formats the device cannot record fall back to AAC.
+     *
+     * @param name "aac", "opus" or "wav"
+     * @param bitRate encoder bit rate, ignored for wav
+     *
+     * @return false if the name is unknown
+     */
+    public synchronized boolean setRecordingFormat(String name, int bitRate) {
+        RecordingFormat format = RecordingFormat.fromName(name, bitRate);
+        if (format == null) {
+            return false;
+        }
+        Log.d(TAG, "setRecordingFormat " + format);
+        mRecordingFormat = format;
+        if (mFmRecorder != null) {
+            ensureRecorder();
+        }
+        return true;
+    }
+
+    /**
+     * Mark track boundaries in recordings, in a CUE sheet next to the file. A
+     * track ends after a silence gap or when the RDS RadioText changes. Takes
+     * effect on the next recording.
+     *
+     * @param enabled true to write track markers
+     */
+    public synchronized void setTrackMarkersEnabled(boolean enabled) {
+        Log.d(TAG, "setTrackMarkersEnabled " + enabled);
+        mTrackMarkers = enabled;
+        if (mFmRecorder != null) {
+            ensureRecorder();
+        }
+    }
+
+    /**
+     * Get the extension of the recording file
+     *
+     * @return extension including the dot
+     */
+    public String getRecordingFileExtension() {
+        FmRecorder recorder = mFmRecorder;
+        return recorder != null ? recorder.getRecordFileExtension()
+                : FmRecorder.RECORDING_FILE_EXTENSION;
+    }
+
+    private void startRecording(boolean includeHistory) {
         sRecordingSdcard = FmUtils.getDefaultStoragePath();
         if (sRecordingSdcard == null || sRecordingSdcard.isEmpty()) {
             Log.d(TAG, "startRecording, may be no sdcard");
@@ -1133,13 +1670,10 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
             return;
         }
 
-        if (mFmRecorder == null) {
-            mFmRecorder = new FmRecorder(mAudioRecord.getFormat());
-            mFmRecorder.registerRecorderStateListener(FmService.this);
-        }
+        ensureRecorder();
 
         if (isSdcardReady(sRecordingSdcard)) {
-            mFmRecorder.startRecording(mContext);
+            mFmRecorder.startRecording(mContext, includeHistory);
             if (mAudioPatch != null) {
                 Log.d(TAG, "Switching to SW rendering on recording start");
                 releaseAudioPatch();
@@ -1206,46 +1740,251 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
     }
 
     /**
-     * Get record time
-     *
-     * @return Record time
+     * Record a station at a given time, whether the radio is on then or not.
+     * The service is woken ahead of time to power up and tune, and saves the
+     * recording under its default name.
+     *
+     * @param station station to record, see {@link FmUtils#computeStation}
+     * @param startMs wall clock start time
+     * @param durationMs recording length
+     *
+     * @return id of the scheduled recording
+     */
+    public int scheduleRecording(int station, long startMs, long durationMs) {
+        return mScheduler.schedule(station, startMs, durationMs);
+    }
+
+    /**
+     * Cancel a scheduled recording, a running one is stopped and saved
+     *
+     * @param id the id returned by {@link #scheduleRecording}
+     */
+    public void cancelScheduledRecording(int id) {
+        mFmServiceHandler.sendMessage(mFmServiceHandler.obtainMessage(
+                FmListener.MSGID_SCHEDULED_STOP, id, 1));
+    }
+
+    /**
+     * Get record time
+     *
+     * @return Record time
+     */
+    public long getRecordTime() {
+        if (mFmRecorder != null) {
+            return mFmRecorder.getRecordTime();
+        }
+        return 0;
+    }
+
+    /**
+     * Get how much recording time is left on the storage
+     *
+     * @return minutes left, -1 if not recording or not known yet
+     */
+    public long getRecordingMinutesLeft() {
+        if (mFmRecorder != null) {
+            long seconds = mFmRecorder.getRemainingRecordingSeconds();
+            return seconds < 0 ? -1 : seconds / 60;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if live radio can be paused and rewound
+     */
+    public boolean isTimeShiftAvailable() {
+        return mTimeShift != null;
+    }
+
+    /**
+     * Pause playback of live radio, it keeps being buffered so it can resume
+     * where it paused.
+     */
+    public void pauseLive() {
+        if (mTimeShift != null) {
+            mTimeShift.pause();
+            mFmServiceHandler.sendEmptyMessage(FmListener.MSGID_TIMESHIFT_STARTED);
+        }
+    }
+
+    /**
+     * Resume paused playback, behind live.
+     */
+    public void resumeLive() {
+        if (mTimeShift != null) {
+            mTimeShift.resume();
+        }
+    }
+
+    /**
+     * @return true if playback of live radio is paused
+     */
+    public boolean isLivePaused() {
+        return mTimeShift != null && mTimeShift.isPaused();
+    }
+
+    /**
+     * Move playback within the time shift window. Playback cannot go past
+     * live or further back than the window.
+     *
+     * @param deltaMs how far to move, negative to go back
+     */
+    public void seekTimeShift(long deltaMs) {
+        if (mTimeShift != null) {
+            mTimeShift.seekBy(deltaMs);
+            if (deltaMs < 0) {
+                mFmServiceHandler.sendEmptyMessage(FmListener.MSGID_TIMESHIFT_STARTED);
+            }
+        }
+    }
+
+    /**
+     * Jump back to live radio.
+     */
+    public void goLive() {
+        if (mTimeShift != null) {
+            mTimeShift.goLive();
+        }
+    }
+
+    private boolean isLiveShifted() {
+        return mTimeShift != null && mTimeShift.isShifted();
+    }
+
+    /**
+     * @return how far playback is behind live, 0 when live
+     */
+    public long getTimeShiftDelayMs() {
+        return mTimeShift != null ? mTimeShift.getDelayMs() : 0;
+    }
+
+    /**
+     * Set recording mode
+     *
+     * @param isRecording true, enter recoding mode; false, exit recording mode
+     */
+    public void setRecordingModeAsync(boolean isRecording) {
+        mFmServiceHandler.removeMessages(FmListener.MSGID_RECORD_MODE_CHANED);
+        final int bundleSize = 1;
+        Bundle bundle = new Bundle(bundleSize);
+        bundle.putBoolean(OPTION, isRecording);
+        Message msg = mFmServiceHandler.obtainMessage(FmListener.MSGID_RECORD_MODE_CHANED);
+        msg.setData(bundle);
+        mFmServiceHandler.sendMessage(msg);
+    }
+
+    private void setRecordingMode(boolean isRecording) {
+        mIsInRecordingMode = isRecording;
+        if (mFmRecorder != null) {
+            if (!isRecording) {
+                if (mFmRecorder.getState() != FmRecorder.STATE_IDLE) {
+                    mFmRecorder.stopRecording();
+                }
+                resumeFmAudio();
+                setMute(false);
+                return;
+            }
+            // reset recorder to unused status
+            mFmRecorder.resetRecorder();
+        }
+    }
+
+    /**
+     * Switch the render path between Java arrays and direct ByteBuffers.
+     * A running render thread is restarted on the new path.
+     *
+     * @param enabled true to use direct ByteBuffers
+     */
+    public synchronized void setDirectBuffersEnabled(boolean enabled) {
+        if (mUseDirectBuffers == enabled) {
+            return;
+        }
+        Log.d(TAG, "setDirectBuffersEnabled " + enabled);
+        mUseDirectBuffers = enabled;
+        if (mIsRender) {
+            startRender();
+        }
+    }
+
+    /**
+     * Switch the software render path, its processing stages and recordings
+     * between 16 bit and float PCM. Float PCM always uses direct buffers. A
+     * running render thread is restarted; a running recording keeps its format
+     * until it stops.
+     *
+     * @param enabled true for float PCM
+     */
+    public synchronized void setFloatAudioEnabled(boolean enabled) {
+        if (mUseFloatAudio == enabled) {
+            return;
+        }
+        Log.d(TAG, "setFloatAudioEnabled " + enabled);
+        mUseFloatAudio = enabled;
+        if (mIsRender) {
+            startRender();
+        }
+    }
+
+    /**
+     * Record in segments of the given length so a crash loses at most one of
+     * them, the segments are joined when the recording is saved. Takes effect
+     * on the next recording.
+     *
+     * @param seconds segment length, 0 to record a single file
+     */
+    public void setRecordingSegmentSeconds(int seconds) {
+        Log.d(TAG, "setRecordingSegmentSeconds " + seconds);
+        mRecordingSegmentSeconds = seconds;
+    }
+
+    /**
+     * Render through a fast AudioTrack sized from the device's native output
+     * burst and sample rate. A running render thread is restarted.
+     *
+     * @param enabled true to use the low latency render path
+     */
+    public synchronized void setLowLatencyRenderEnabled(boolean enabled) {
+        if (mLowLatencyRender == enabled) {
+            return;
+        }
+        Log.d(TAG, "setLowLatencyRenderEnabled " + enabled);
+        mLowLatencyRender = enabled;
+        if (mIsRender) {
+            startRender();
+        }
+    }
+
+    /**
+     * Get the measured latency from tuner capture to speaker/A2DP playback
+     * when rendering in software
+     *
+     * @return latency in milliseconds, -1 if not rendering or not known yet
+     */
+    public int getRenderLatencyMs() {
+        return isRender() ? mRenderLatency.getLatencyMs() : -1;
+    }
+
+    /**
+     * @return AudioTrack underruns seen by the render path since service start
      */
-    public long getRecordTime() {
-        if (mFmRecorder != null) {
-            return mFmRecorder.getRecordTime();
-        }
-        return 0;
+    public long getRenderUnderrunCount() {
+        return mJitterBuffer.getUnderrunCount();
     }
 
     /**
-     * Set recording mode
-     *
-     * @param isRecording true, enter recoding mode; false, exit recording mode
+     * @return chunks dropped because the AudioTrack did not drain in time
      */
-    public void setRecordingModeAsync(boolean isRecording) {
-        mFmServiceHandler.removeMessages(FmListener.MSGID_RECORD_MODE_CHANED);
-        final int bundleSize = 1;
-        Bundle bundle = new Bundle(bundleSize);
-        bundle.putBoolean(OPTION, isRecording);
-        Message msg = mFmServiceHandler.obtainMessage(FmListener.MSGID_RECORD_MODE_CHANED);
-        msg.setData(bundle);
-        mFmServiceHandler.sendMessage(msg);
+    public long getRenderOverrunCount() {
+        return mJitterBuffer.getOverrunCount();
     }
 
-    private void setRecordingMode(boolean isRecording) {
-        mIsInRecordingMode = isRecording;
-        if (mFmRecorder != null) {
-            if (!isRecording) {
-                if (mFmRecorder.getState() != FmRecorder.STATE_IDLE) {
-                    mFmRecorder.stopRecording();
-                }
-                resumeFmAudio();
-                setMute(false);
-                return;
-            }
-            // reset recorder to unused status
-            mFmRecorder.resetRecorder();
-        }
+    /**
+     * @return current render buffer depth in milliseconds, AudioTrack buffer
+     *         plus chunks waiting for it
+     */
+    public int getRenderBufferDepthMs() {
+        int chunks = mJitterBuffer.getTargetDepth() + mJitterBuffer.getDepth();
+        return (int) ((long) chunks * mRenderChunkSize / mRenderFrameSize * 1000 / mRenderSampleRate);
     }
 
     /**
@@ -1299,13 +2038,52 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
         HandlerThread handlerThread = new HandlerThread("FmRadioServiceThread");
         handlerThread.start();
         mFmServiceHandler = new FmRadioServiceHandler(handlerThread.getLooper());
+        mStationCache = new StationCache(mContext);
 
         openDevice();
         // set speaker to default status, avoid setting->clear data.
         setForceUse(mIsSpeakerUsed);
 
+        initProcessingChain();
+        mUseDirectBuffers = mContext.getResources().getBoolean(R.bool.config_useDirectAudioBuffers);
+        mLowLatencyRender = mContext.getResources().getBoolean(R.bool.config_lowLatencyRender);
+        mUseFloatAudio = mContext.getResources().getBoolean(R.bool.config_useFloatAudio);
+        mRecordingSegmentSeconds = mContext.getResources().getInteger(
+                R.integer.config_recordingSegmentSeconds);
+        int overflowPolicy = mContext.getResources().getInteger(
+                R.integer.config_recordingOverflowPolicy);
+        if (overflowPolicy >= PcmRingBuffer.OVERFLOW_BLOCK
+                && overflowPolicy <= PcmRingBuffer.OVERFLOW_DROP_NEWEST) {
+            mRecordingOverflowPolicy = overflowPolicy;
+        } else {
+            Log.w(TAG, "unknown recording overflow policy " + overflowPolicy);
+        }
+        mRecordHistorySeconds = mContext.getResources().getInteger(
+                R.integer.config_recordHistoryMinutes) * 60;
+        RecordingFormat format = RecordingFormat.fromName(
+                mContext.getResources().getString(R.string.config_recordingFormat),
+                mContext.getResources().getInteger(R.integer.config_recordingBitRate));
+        if (format != null) {
+            mRecordingFormat = format;
+        }
+        mRdsEventDriven = mContext.getResources().getBoolean(R.bool.config_rdsEventDriven);
+        mTrackMarkers = mContext.getResources().getBoolean(R.bool.config_trackMarkers);
+        mTrackSilenceDb = mContext.getResources().getInteger(R.integer.config_trackSilenceDb);
+        mTrackSilenceMs = mContext.getResources().getInteger(R.integer.config_trackSilenceMs);
+        mTrackMinSeconds = mContext.getResources().getInteger(
+                R.integer.config_trackMinSeconds);
+        int timeShiftMinutes = mContext.getResources().getInteger(
+                R.integer.config_timeShiftMinutes);
+        if (timeShiftMinutes > 0) {
+            mTimeShift = new TimeShiftBuffer(new File(getCacheDir(), TIME_SHIFT_FILE),
+                    timeShiftMinutes * 60 * 1000L);
+        }
         initAudioRecordSink();
         createRenderThread();
+        mScheduler = new RecordingScheduler(mContext, mContext.getResources().getInteger(
+                R.integer.config_scheduledRecordingLeadSeconds) * 1000L);
+        mScheduler.arm();
+        mDebugCommands = DebugCommands.register(this);
     }
 
     private void registerAudioPortUpdateListener() {
@@ -1327,10 +2105,92 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
     // Thread 1: onCreate() or startRender()
     // Thread 2: onAudioPatchListUpdate() or startRender()
     private synchronized void initAudioRecordSink() {
-        mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.RADIO_TUNER,
-                SAMPLE_RATE, CHANNEL_CONFIG, AUDIO_FORMAT, RECORD_BUF_SIZE);
-        mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC,
-                SAMPLE_RATE, CHANNEL_CONFIG, AUDIO_FORMAT, RECORD_BUF_SIZE, AudioTrack.MODE_STREAM);
+        mActiveRenderConfig = getRenderConfig();
+        int burst = 0;
+        if (mLowLatencyRender) {
+            mRenderSampleRate = parseAudioProperty(
+                    AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE, SAMPLE_RATE);
+            burst = parseAudioProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER, 0);
+        } else {
+            mRenderSampleRate = SAMPLE_RATE;
+        }
+        mRenderEncoding = mUseFloatAudio ? AudioFormat.ENCODING_PCM_FLOAT : AUDIO_FORMAT;
+        if (getRecorderState() == FmRecorder.STATE_RECORDING) {
+            // the encoder is already configured, keep feeding it the same format
+            mRenderSampleRate = mFmRecorder.getInputFormat().getSampleRate();
+            mRenderEncoding = mFmRecorder.getInputFormat().getEncoding();
+        }
+        mRenderFrameSize = CHANNEL_COUNT
+                * (mRenderEncoding == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2);
+        // float PCM only travels in direct buffers
+        boolean direct = mUseDirectBuffers || mRenderEncoding == AudioFormat.ENCODING_PCM_FLOAT;
+
+        if (mLowLatencyRender && burst > 0) {
+            // read one native burst at a time, keep the larger minimum on the record side
+            mRenderChunkSize = burst * mRenderFrameSize;
+            int recordBufSize = Math.max(AudioRecord.getMinBufferSize(mRenderSampleRate,
+                    CHANNEL_CONFIG, mRenderEncoding), mRenderChunkSize * 2);
+            mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.RADIO_TUNER,
+                    mRenderSampleRate, CHANNEL_CONFIG, mRenderEncoding, recordBufSize);
+            mAudioTrack = new AudioTrack.Builder()
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(AudioAttributes.USAGE_MEDIA)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                            .build())
+                    .setAudioFormat(new AudioFormat.Builder()
+                            .setSampleRate(mRenderSampleRate)
+                            .setChannelMask(AudioFormat.CHANNEL_OUT_STEREO)
+                            .setEncoding(mRenderEncoding)
+                            .build())
+                    .setBufferSizeInBytes(mRenderChunkSize * JitterBuffer.MAX_TARGET_CHUNKS)
+                    .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .build();
+            Log.d(TAG, "initAudioRecordSink, low latency rate=" + mRenderSampleRate
+                    + " burst=" + burst + " trackFrames=" + mAudioTrack.getBufferSizeInFrames());
+        } else {
+            mRenderChunkSize = AudioRecord.getMinBufferSize(mRenderSampleRate,
+                    CHANNEL_CONFIG, mRenderEncoding);
+            mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.RADIO_TUNER,
+                    mRenderSampleRate, CHANNEL_CONFIG, mRenderEncoding, mRenderChunkSize);
+            mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC,
+                    mRenderSampleRate, CHANNEL_CONFIG, mRenderEncoding,
+                    mRenderChunkSize * JitterBuffer.MAX_TARGET_CHUNKS, AudioTrack.MODE_STREAM);
+        }
+        mBandAnalyzer.configure(mRenderSampleRate);
+        if (mTimeShift != null && !mTimeShift.configure(mRenderSampleRate, mRenderFrameSize)) {
+            mTimeShift = null;
+        }
+        if (mFmRecorder != null || mRecordHistorySeconds > 0) {
+            // the history encoder has to follow the render format
+            ensureRecorder();
+        }
+        // the track is allocated for the deepest jitter buffer, it starts shallow
+        int chunkFrames = mRenderChunkSize / mRenderFrameSize;
+        mJitterBuffer.reset(mAudioTrack, chunkFrames, RENDER_MIN_TRACK_CHUNKS,
+                chunkFrames * 1000000000L / mRenderSampleRate);
+        // buffers are kept across re-inits, a stale one returning late is harmless
+        if (mBufferPool == null || mBufferPool.getBufferSize() != mRenderChunkSize
+                || mBufferPool.isDirect() != direct
+                || mBufferPool.getEncoding() != mRenderEncoding) {
+            mBufferPool = new PcmBufferPool(RENDER_POOL_SIZE, mRenderChunkSize, direct,
+                    mRenderEncoding);
+            mRenderChunks = 0;
+            mRenderNanos = 0;
+            mProcessingChain.resetStats();
+        }
+    }
+
+    private int parseAudioProperty(String key, int defaultValue) {
+        String value = mAudioManager.getProperty(key);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "bad audio property " + key + "=" + value);
+            }
+        }
+        return defaultValue;
     }
 
     private synchronized int createAudioPatch() {
@@ -1366,6 +2226,10 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
                     new AudioPortConfig[] {sourceConfig},
                     new AudioPortConfig[] {sinkConfig});
             mAudioPatch = audioPatchArray[0];
+            if (mAudioPatch != null) {
+                // audio goes out through the hardware patch, nothing to measure
+                mAudioRequestedNs = 0;
+            }
         }
         return status;
     }
@@ -1406,7 +2270,7 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
                 // Need to recreate AudioRecord and AudioTrack for this case.
                 if (isPatchMixerToDeviceRemoved(patches)) {
                     Log.d(TAG, "onAudioPatchListUpdate reinit for BT or WFD connected");
-                    startRender();
+                    startRender(true);
                     return;
                 }
                 if (isPatchMixerToEarphone(patches)) {
@@ -1481,12 +2345,22 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
         abandonAudioFocus();
         exitFm();
         if (null != mFmRecorder) {
+            mFmRecorder.release();
             mFmRecorder = null;
         }
         stopRender();
         exitRenderThread();
+        if (mTimeShift != null) {
+            mTimeShift.release();
+        }
         releaseAudioPatch();
         unregisterAudioPortUpdateListener();
+        mStationCache.release();
+        if (mDebugCommands != null) {
+            mDebugCommands.unregister();
+            mDebugCommands = null;
+        }
+        setRdsCaptureEnabled(false);
         super.onDestroy();
     }
 
@@ -1495,6 +2369,8 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
      */
     private void exitFm() {
         mIsAudioFocusHeld = false;
+        // the radio goes down with the app anyway
+        finishScheduledJob("interrupted", false);
         // Stop FM recorder if it is working
         if (null != mFmRecorder) {
             synchronized (mStopRecordingLock) {
@@ -1536,6 +2412,16 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
                 seekStationAsync(FmUtils.computeFrequency(mCurrentStation), true);
             } else if (FM_TURN_OFF.equals(action)) {
                 powerDownAsync();
+            } else if (RecordingScheduler.ACTION_WARM_UP.equals(action)) {
+                // started by the alarm as a foreground service
+                if (getRecorderState() != FmRecorder.STATE_RECORDING) {
+                    startForeground(NOTIFICATION_ID, buildPlayingNotification());
+                }
+                // keep the cpu up until the job holds the radio
+                mWakeLock.acquire();
+                mFmServiceHandler.sendMessage(mFmServiceHandler.obtainMessage(
+                        FmListener.MSGID_SCHEDULED_WARM_UP,
+                        intent.getIntExtra(RecordingScheduler.EXTRA_JOB_ID, 0), 0));
             }
         }
         return START_NOT_STICKY;
@@ -1552,64 +2438,85 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
         mRdsThread = new Thread() {
             public void run() {
                 while (true) {
-                    if (mIsRdsThreadExit) {
+                    if (mIsRdsThreadExit || mRdsThread != this) {
                         break;
                     }
 
-                    int iRdsEvents = FmNative.readRds();
+                    boolean eventDriven = mRdsEventDriven && !mRdsWaitUnsupported;
+                    mRdsStats.setMode(eventDriven ? RdsWakeupStats.MODE_EVENT
+                            : RdsWakeupStats.MODE_TIMER);
+                    int iRdsEvents;
+                    if (eventDriven) {
+                        // only returns for an event, a cancel or a failure
+                        iRdsEvents = waitRdsEvents();
+                        if (iRdsEvents < 0) {
+                            continue;
+                        }
+                    } else {
+                        iRdsEvents = mRdsSnapshot.read(false);
+                        if (iRdsEvents < 0 && mRdsReplay != null) {
+                            // a replay woken up or ended
+                            checkRdsReplay();
+                            continue;
+                        }
+                    }
+                    int updated = mRdsSnapshot.getUpdated();
+                    RdsCapture capture = mRdsCapture;
+                    if (capture != null) {
+                        capture.onRead(mRdsSnapshot, iRdsEvents, mCurrentStation);
+                    }
+                    long wokeNs = SystemClock.elapsedRealtimeNanos();
+                    mRdsStats.onWakeup(iRdsEvents);
                     if (iRdsEvents != 0) {
                         Log.d(TAG, "startRdsThread, is rds events: " + iRdsEvents);
                     }
 
-                    if (RDS_EVENT_PROGRAMNAME == (RDS_EVENT_PROGRAMNAME & iRdsEvents)) {
-                        byte[] bytePS = FmNative.getPs();
-                        if (null != bytePS) {
-                            String ps = new String(bytePS).trim();
-                            if (!mPsString.equals(ps)) {
-                                updatePlayingNotification();
-                            }
-                            ContentValues values = null;
-                            if (FmStation.isStationExist(mContext, mCurrentStation)) {
-                                values = new ContentValues(1);
-                                values.put(Station.PROGRAM_SERVICE, ps);
-                                FmStation.updateStationToDb(mContext, mCurrentStation, values);
-                            } else {
-                                values = new ContentValues(2);
-                                values.put(Station.FREQUENCY, mCurrentStation);
-                                values.put(Station.PROGRAM_SERVICE, ps);
-                                FmStation.insertStationToDb(mContext, values);
-                            }
-                            setPs(ps);
+                    if ((updated & RdsSnapshot.FIELD_PS) != 0) {
+                        String ps = mRdsSnapshot.getPs();
+                        // cached first, the notification reads it
+                        if (!isRdsReplaying()) {
+                            mStationCache.putProgramService(mCurrentStation, ps);
+                        }
+                        if (!mPsString.equals(ps)) {
+                            updatePlayingNotification();
                         }
+                        setPs(ps);
                     }
 
-                    if (RDS_EVENT_LAST_RADIOTEXT == (RDS_EVENT_LAST_RADIOTEXT & iRdsEvents)) {
-                        byte[] byteLRText = FmNative.getLrText();
-                        if (null != byteLRText) {
-                            String rds = new String(byteLRText).trim();
-                            if (!mRtTextString.equals(rds)) {
-                                updatePlayingNotification();
-                            }
-                            setLRText(rds);
-                            ContentValues values = null;
-                            if (FmStation.isStationExist(mContext, mCurrentStation)) {
-                                values = new ContentValues(1);
-                                values.put(Station.RADIO_TEXT, rds);
-                                FmStation.updateStationToDb(mContext, mCurrentStation, values);
-                            } else {
-                                values = new ContentValues(2);
-                                values.put(Station.FREQUENCY, mCurrentStation);
-                                values.put(Station.RADIO_TEXT, rds);
-                                FmStation.insertStationToDb(mContext, values);
-                            }
+                    if ((updated & RdsSnapshot.FIELD_RT) != 0) {
+                        String rds = mRdsSnapshot.getRt();
+                        if (!isRdsReplaying()) {
+                            mStationCache.putRadioText(mCurrentStation, rds);
                         }
+                        if (!mRtTextString.equals(rds)) {
+                            updatePlayingNotification();
+                        }
+                        setLRText(rds);
+                    }
+
+                    if ((updated & RdsSnapshot.FIELD_PI) != 0) {
+                        setPi(mRdsSnapshot.getPi());
+                    }
+                    if ((updated & RdsSnapshot.FIELD_PTY) != 0) {
+                        setPty(mRdsSnapshot.getPty(), false);
+                    }
+                    if ((updated & RdsSnapshot.FIELD_FLAGS) != 0) {
+                        setTraffic(mRdsSnapshot.isTrafficProgram(),
+                                mRdsSnapshot.isTrafficAnnouncement());
+                    }
+                    if ((updated & RdsSnapshot.FIELD_CT) != 0) {
+                        notifyClockTime(mRdsSnapshot.getClockTimeMs(),
+                                mRdsSnapshot.getClockOffsetMinutes());
                     }
 
                     if (RDS_EVENT_AF == (RDS_EVENT_AF & iRdsEvents)) {
                         /*
                          * add for rds AF
                          */
-                        if (mIsScanning || mIsSeeking) {
+                        if (isRdsReplaying()) {
+                            // the AF list of the driver has nothing to do with the capture
+                            Log.d(TAG, "startRdsThread, replayed AF event, not tuning");
+                        } else if (mIsScanning || mIsSeeking) {
                             Log.d(TAG, "startRdsThread, seek or scan going, no need to tune here");
                         } else if (mPowerStatus == POWER_DOWN) {
                             Log.d(TAG, "startRdsThread, fm is power down, do nothing.");
@@ -1629,19 +2536,152 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
                         }
                     }
                     // Do not handle other events.
-                    // Sleep 500ms to reduce inquiry frequency
+                    if (iRdsEvents > 0) {
+                        mRdsStats.onDelivered(wokeNs);
+                    }
+                    if (eventDriven || mRdsReplay != null) {
+                        // a replay is paced by itself
+                        continue;
+                    }
+                    // Sleep to reduce inquiry frequency
                     try {
-                        final int hundredMillisecond = 500;
-                        Thread.sleep(hundredMillisecond);
+                        Thread.sleep(RDS_POLL_INTERVAL_MS);
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
                 }
+                if (mRdsThread == null) {
+                    mRdsStats.setMode(RdsWakeupStats.MODE_STOPPED);
+                }
             }
         };
         mRdsThread.start();
     }
 
+    /**
+     * Block until the driver has RDS events, falling back to the timer for
+     * good if it cannot be waited on.
+     *
+     * @return the events, or a negative FmNative.RDS_WAIT_* result
+     */
+    private int waitRdsEvents() {
+        // a libfmjni without it reports RDS_WAIT_UNSUPPORTED
+        int events = mRdsSnapshot.read(true);
+        if (mRdsReplay != null) {
+            checkRdsReplay();
+            return events;
+        }
+        if (events == FmNative.RDS_WAIT_UNSUPPORTED) {
+            Log.w(TAG, "rds events cannot be waited on, reading every "
+                    + RDS_POLL_INTERVAL_MS + "ms");
+            mRdsWaitUnsupported = true;
+        } else if (events == FmNative.RDS_WAIT_ERROR) {
+            // e.g. the device closing under us, avoid spinning on it
+            SystemClock.sleep(RDS_POLL_INTERVAL_MS);
+        }
+        return events;
+    }
+
+    private void cancelRdsWait() {
+        RdsReplay replay = mRdsReplay;
+        if (replay != null) {
+            replay.wake();
+        }
+        if (mRdsWaitUnsupported) {
+            return;
+        }
+        try {
+            FmNative.cancelRdsWait();
+        } catch (UnsatisfiedLinkError e) {
+            mRdsWaitUnsupported = true;
+        }
+    }
+
+    // replayed RDS belongs to the captured stations, not the one tuned to,
+    // so it is kept out of the station cache and list and never tunes to an AF
+    private boolean isRdsReplaying() {
+        return mRdsReplay != null;
+    }
+
+    // back to the driver once the replay ran out, on the RDS thread
+    private void checkRdsReplay() {
+        RdsReplay replay = mRdsReplay;
+        if (replay != null && replay.isFinished()) {
+            Log.d(TAG, "rds replay of " + replay.getFile() + " finished");
+            mRdsSnapshot.setSource(null);
+            mRdsReplay = null;
+        }
+    }
+
+    /**
+     * Stream what the RDS thread reads to a file under the app's external
+     * files, for {@link #startRdsReplay} or a host to play back.
+     *
+     * @param enabled true to start a new capture, false to finish it
+     */
+    public void setRdsCaptureEnabled(boolean enabled) {
+        RdsCapture capture = mRdsCapture;
+        if (capture != null) {
+            mRdsCapture = null;
+            capture.close();
+            Log.d(TAG, "rds capture written to " + capture.getFile());
+        }
+        if (!enabled) {
+            return;
+        }
+        File dir = mContext.getExternalFilesDir("rds");
+        if (dir == null) {
+            dir = new File(mContext.getFilesDir(), "rds");
+        }
+        dir.mkdirs();
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        try {
+            mRdsCapture = new RdsCapture(new File(dir, name + RdsCapture.SUFFIX));
+        } catch (IOException e) {
+            Log.w(TAG, "cannot start rds capture", e);
+        }
+    }
+
+    /**
+     * Feed a capture to the RDS thread in place of the driver until it ends.
+     * Listeners get the replayed RDS, the station list does not.
+     *
+     * @param speed multiple of the captured pace, 0 for as fast as possible
+     * @return false if the file cannot be played
+     */
+    public boolean startRdsReplay(File file, float speed) {
+        RdsReplay replay;
+        try {
+            replay = new RdsReplay(file, speed);
+        } catch (IOException e) {
+            Log.w(TAG, "cannot replay rds", e);
+            return false;
+        }
+        RdsReplay previous = mRdsReplay;
+        mRdsReplay = replay;
+        mRdsSnapshot.setSource(replay);
+        if (previous != null) {
+            previous.wake();
+        }
+        // a thread waiting on the driver reads the replay next
+        cancelRdsWait();
+        return true;
+    }
+
+    /**
+     * Block on the driver for RDS events, the thread then only wakes when
+     * there is one, or read it every {@value #RDS_POLL_INTERVAL_MS} ms as
+     * before. Drivers that cannot be waited on always use the timer.
+     *
+     * @param enabled true to wait for events
+     */
+    public void setRdsEventDrivenEnabled(boolean enabled) {
+        Log.d(TAG, "setRdsEventDrivenEnabled " + enabled);
+        mRdsEventDriven = enabled;
+        // a waiting thread picks the change up right away
+        cancelRdsWait();
+    }
+
     /**
      * Stop RDS thread to stop listen station RDS change
      */
@@ -1650,6 +2690,9 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
             // Must call closedev after stopRDSThread.
             mIsRdsThreadExit = true;
             mRdsThread = null;
+            cancelRdsWait();
+            // nothing arrives until it starts again
+            mStationCache.flushSoon();
         }
     }
 
@@ -1676,6 +2719,10 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
     private void setLRText(String lrtText) {
         if (0 != mRtTextString.compareTo(lrtText)) {
             mRtTextString = lrtText;
+            FmRecorder recorder = mFmRecorder;
+            if (recorder != null) {
+                recorder.onRadioText(lrtText);
+            }
             Bundle bundle = new Bundle(3);
             bundle.putInt(FmListener.CALLBACK_FLAG, FmListener.LISTEN_RT_CHANGED);
             bundle.putString(FmListener.KEY_RT_INFO, mRtTextString);
@@ -1683,6 +2730,94 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
         } // else New RT is the same as current
     }
 
+    /**
+     * Set PI information, verified when it matches the one this station sent
+     * before
+     *
+     * @param pi The program identification
+     */
+    private void setPi(int pi) {
+        if (mPi != pi) {
+            mPi = pi;
+            int known = mStationCache.getProgramId(mCurrentStation);
+            if (!isRdsReplaying()) {
+                mStationCache.putProgramId(mCurrentStation, pi);
+            }
+            Bundle bundle = new Bundle(3);
+            bundle.putInt(FmListener.CALLBACK_FLAG, FmListener.LISTEN_PI_CHANGED);
+            bundle.putInt(FmListener.KEY_PI, pi);
+            bundle.putBoolean(FmListener.KEY_IS_PI_VERIFIED, known == pi);
+            notifyActivityStateChanged(bundle);
+        } // else New PI is the same as current
+    }
+
+    /**
+     * Set PTY information
+     *
+     * @param pty The program type
+     * @param remembered true if it comes from the station list, not the station
+     */
+    private void setPty(int pty, boolean remembered) {
+        if (!remembered && !isRdsReplaying()) {
+            mStationCache.putProgramType(mCurrentStation, pty);
+        }
+        if (mPty != pty) {
+            mPty = pty;
+            Bundle bundle = new Bundle(3);
+            bundle.putInt(FmListener.CALLBACK_FLAG, FmListener.LISTEN_PTY_CHANGED);
+            bundle.putInt(FmListener.KEY_PTY, pty);
+            bundle.putBoolean(FmListener.KEY_IS_PTY_REMEMBERED, remembered);
+            notifyActivityStateChanged(bundle);
+        } // else New PTY is the same as current
+    }
+
+    /**
+     * Set TP and TA information
+     *
+     * @param trafficProgram The station carries traffic announcements
+     * @param trafficAnnouncement A traffic announcement is on air
+     */
+    private void setTraffic(boolean trafficProgram, boolean trafficAnnouncement) {
+        if (mTrafficProgram != trafficProgram
+                || mTrafficAnnouncement != trafficAnnouncement) {
+            mTrafficProgram = trafficProgram;
+            mTrafficAnnouncement = trafficAnnouncement;
+            Bundle bundle = new Bundle(3);
+            bundle.putInt(FmListener.CALLBACK_FLAG, FmListener.LISTEN_TRAFFIC_CHANGED);
+            bundle.putBoolean(FmListener.KEY_IS_TRAFFIC_PROGRAM, trafficProgram);
+            bundle.putBoolean(FmListener.KEY_IS_TRAFFIC_ANNOUNCEMENT, trafficAnnouncement);
+            notifyActivityStateChanged(bundle);
+        } // else New flags are the same as current
+    }
+
+    /**
+     * Forward the clock time, sent once a minute
+     *
+     * @param timeMs UTC time in ms since the epoch
+     * @param offsetMinutes The local time offset
+     */
+    private void notifyClockTime(long timeMs, int offsetMinutes) {
+        Bundle bundle = new Bundle(3);
+        bundle.putInt(FmListener.CALLBACK_FLAG, FmListener.LISTEN_CLOCK_TIME);
+        bundle.putLong(FmListener.KEY_CLOCK_TIME, timeMs);
+        bundle.putInt(FmListener.KEY_CLOCK_OFFSET_MINUTES, offsetMinutes);
+        notifyActivityStateChanged(bundle);
+    }
+
+    /**
+     * Forget the RDS fields of the previous station, and bring back the
+     * genre this one had
+     */
+    private void resetRdsFields() {
+        mPi = -1;
+        mPty = -1;
+        setTraffic(false, false);
+        int pty = mStationCache.getProgramType(mCurrentStation);
+        if (pty >= 0) {
+            setPty(pty, true);
+        }
+    }
+
     /**
      * Open or close FM Radio audio
      *
@@ -1735,6 +2870,16 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
             return false;
         }
 
+        if (isLiveShifted()) {
+            // the patch can only play live audio
+            return false;
+        }
+
+        if (mScheduledJob != null) {
+            // a scheduled recording is about to start, stay on the render path
+            return false;
+        }
+
         if (mContext.getResources().getBoolean(R.bool.config_useSoftwareRenderingForAudio)) {
             Log.w(TAG, "FIXME: forcing isPatchMixerToEarphone to return false. "
                     + "Software rendering will be used.");
@@ -1792,8 +2937,13 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
                 || (getRecorderState() == FmRecorder.STATE_RECORDING)) {
             return;
         }
+        startForeground(NOTIFICATION_ID, buildPlayingNotification());
+    }
+
+    private Notification buildPlayingNotification() {
         String stationName = "";
         String radioText = "";
+        boolean hasStationName = false;
         ContentResolver resolver = mContext.getContentResolver();
         Cursor cursor = null;
         try {
@@ -1806,7 +2956,8 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
             if (cursor != null && cursor.moveToFirst()) {
                 // If the station name is not exist, show program service(PS) instead
                 stationName = cursor.getString(cursor.getColumnIndex(Station.STATION_NAME));
-                if (TextUtils.isEmpty(stationName)) {
+                hasStationName = !TextUtils.isEmpty(stationName);
+                if (!hasStationName) {
                     stationName = cursor.getString(cursor.getColumnIndex(Station.PROGRAM_SERVICE));
                 }
                 radioText = cursor.getString(cursor.getColumnIndex(Station.RADIO_TEXT));
@@ -1819,6 +2970,15 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
                 cursor.close();
             }
         }
+        // RDS the station list may not have yet
+        String ps = mStationCache.getProgramService(mCurrentStation);
+        if (ps != null && !hasStationName) {
+            stationName = ps;
+        }
+        String rt = mStationCache.getRadioText(mCurrentStation);
+        if (rt != null) {
+            radioText = rt;
+        }
 
         Intent aIntent = new Intent(Intent.ACTION_MAIN);
         aIntent.addCategory(Intent.CATEGORY_LAUNCHER);
@@ -1874,7 +3034,7 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
 
         Notification n = mNotificationBuilder.build();
         n.flags &= ~Notification.FLAG_NO_CLEAR;
-        startForeground(NOTIFICATION_ID, n);
+        return n;
     }
 
     /**
@@ -1979,6 +3139,23 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
         notifyActivityStateChanged(bundle);
     }
 
+    /**
+     * Notify a recording saved in the background is in place, or failed to
+     *
+     * @param path The recording file
+     * @param isSaved Whether it was moved into place
+     * @param inMediaStore Whether it was added to the media store
+     */
+    @Override
+    public void onRecordingSaved(String path, boolean isSaved, boolean inMediaStore) {
+        Bundle bundle = new Bundle(4);
+        bundle.putInt(FmListener.CALLBACK_FLAG, FmListener.LISTEN_RECORDING_SAVED);
+        bundle.putString(FmListener.KEY_RECORDING_PATH, path);
+        bundle.putBoolean(FmListener.KEY_IS_RECORDING_SAVED, isSaved);
+        bundle.putBoolean(FmListener.KEY_IS_RECORDING_IN_MEDIA_STORE, inMediaStore);
+        notifyActivityStateChanged(bundle);
+    }
+
     /**
      * Check and go next(play or show tips) after recorder file play
      * back finish.
@@ -2591,7 +3768,7 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
 
                 /********** recording **********/
                 case FmListener.MSGID_STARTRECORDING_FINISHED:
-                    startRecording();
+                    startRecording(msg.arg1 != 0);
                     break;
 
                 case FmListener.MSGID_STOPRECORDING_FINISHED:
@@ -2608,6 +3785,36 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
                     saveRecording(bundle.getString(RECODING_FILE_NAME));
                     break;
 
+                /********** time shift **********/
+                case FmListener.MSGID_TIMESHIFT_STARTED:
+                    if (mAudioPatch != null) {
+                        Log.d(TAG, "Switching to SW rendering for time shift");
+                        releaseAudioPatch();
+                        startRender();
+                    }
+                    break;
+
+                /********** scheduled recording **********/
+                case FmListener.MSGID_SCHEDULED_WARM_UP:
+                    handleScheduledWarmUp(msg.arg1);
+                    break;
+
+                case FmListener.MSGID_SCHEDULED_START:
+                    handleScheduledStart(msg.arg1);
+                    break;
+
+                case FmListener.MSGID_SCHEDULED_STOP:
+                    handleScheduledStop(msg.arg1, msg.arg2 != 0);
+                    break;
+
+                case FmListener.MSGID_TIMESHIFT_CAUGHT_UP:
+                    // back to live, the patch may take over again
+                    if (mPowerStatus == POWER_UP && mIsAudioFocusHeld
+                            && !isLiveShifted()) {
+                        startPatchOrRender();
+                    }
+                    break;
+
                 default:
                     break;
             }
@@ -2659,6 +3866,150 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
         notifyActivityStateChanged(bundle);
     }
 
+    private void handleScheduledWarmUp(int id) {
+        if (mScheduledJob != null) {
+            // picked up again when the running job finishes
+            Log.w(TAG, "scheduled recording #" + id + " overlaps #" + mScheduledJob.id);
+            return;
+        }
+        RecordingScheduler.Job job = mScheduler.activate(id);
+        if (job == null) {
+            Log.w(TAG, "scheduled recording #" + id + " no longer exists");
+            if (mPowerStatus != POWER_UP && mWakeLock.isHeld()) {
+                mWakeLock.release();
+            }
+            return;
+        }
+        mScheduledJob = job;
+        mScheduledPowerUp = false;
+        mScheduledRender = false;
+        mScheduledRecording = false;
+        mScheduledWarmUpMs = 0;
+        mScheduledSkewMs = 0;
+        if (getRecorderState() == FmRecorder.STATE_RECORDING) {
+            finishScheduledJob("skipped, already recording");
+            return;
+        }
+
+        mScheduledWarmUpStartMs = SystemClock.elapsedRealtime();
+        float frequency = FmUtils.computeFrequency(job.station);
+        mScheduledPowerUp = mPowerStatus != POWER_UP;
+        boolean isTuned;
+        if (mScheduledPowerUp) {
+            isTuned = isAntennaAvailable() && powerUp(frequency) && playFrequency(frequency);
+            Bundle bundle = new Bundle(2);
+            bundle.putInt(FmListener.CALLBACK_FLAG, FmListener.MSGID_POWERUP_FINISHED);
+            bundle.putInt(FmListener.KEY_TUNE_TO_STATION, mCurrentStation);
+            notifyActivityStateChanged(bundle);
+        } else {
+            isTuned = job.station == mCurrentStation || tuneStation(frequency);
+        }
+        if (!isTuned) {
+            finishScheduledJob("failed to tune");
+            return;
+        }
+        // switch to software rendering now, doing it when the recorder starts
+        // would cost the first moments of the programme
+        mScheduledRender = true;
+        if (mAudioPatch != null) {
+            releaseAudioPatch();
+        }
+        if (!isRendering()) {
+            startRender();
+        }
+        long delayMs = job.startMs - System.currentTimeMillis();
+        Log.d(TAG, "warming up for scheduled recording #" + id + ", starting in " + delayMs
+                + "ms");
+        mFmServiceHandler.sendMessageDelayed(mFmServiceHandler.obtainMessage(
+                FmListener.MSGID_SCHEDULED_START, id, 0), Math.max(0, delayMs));
+    }
+
+    private void handleScheduledStart(int id) {
+        RecordingScheduler.Job job = mScheduledJob;
+        if (job == null || job.id != id) {
+            return;
+        }
+        if (mScheduledPowerUp) {
+            // power up to first audio, or as long as it took so far if the audio
+            // is still missing, so the next lead is longer
+            mScheduledWarmUpMs = mAudioRequestedNs == 0 && mTimeToFirstAudioMs >= 0
+                    ? mTimeToFirstAudioMs
+                    : SystemClock.elapsedRealtime() - mScheduledWarmUpStartMs;
+            mScheduler.onWarmedUp(job, mScheduledWarmUpMs);
+        }
+        startRecording(false);
+        mScheduledSkewMs = System.currentTimeMillis() - job.startMs;
+        if (getRecorderState() != FmRecorder.STATE_RECORDING) {
+            finishScheduledJob("failed to start recording");
+            return;
+        }
+        mScheduledRecording = true;
+        mFmServiceHandler.sendMessageDelayed(mFmServiceHandler.obtainMessage(
+                FmListener.MSGID_SCHEDULED_STOP, id, 0),
+                Math.max(0, job.getEndMs() - System.currentTimeMillis()));
+    }
+
+    private void handleScheduledStop(int id, boolean isCancel) {
+        RecordingScheduler.Job job = mScheduledJob;
+        if (job == null || job.id != id) {
+            if (isCancel) {
+                mScheduler.cancel(id);
+            }
+            return;
+        }
+        mFmServiceHandler.removeMessages(FmListener.MSGID_SCHEDULED_START);
+        mFmServiceHandler.removeMessages(FmListener.MSGID_SCHEDULED_STOP);
+        if (isCancel) {
+            finishScheduledJob("cancelled");
+        } else {
+            finishScheduledJob(mPowerStatus == POWER_UP ? "recorded" : "interrupted");
+        }
+    }
+
+    private void finishScheduledJob(String result) {
+        finishScheduledJob(result, true);
+    }
+
+    /**
+     * Stop and save the recording of the scheduled job, if any, log how the
+     * job went and leave the radio as it was before the job, whether it
+     * recorded or failed on the way
+     *
+     * @param restoreRadio false if the caller takes the radio down anyway
+     */
+    private void finishScheduledJob(String result, boolean restoreRadio) {
+        RecordingScheduler.Job job = mScheduledJob;
+        if (job == null) {
+            return;
+        }
+        mScheduledJob = null;
+        boolean wasPoweredUp = mScheduledPowerUp;
+        boolean wasRendered = mScheduledRender;
+        if (mScheduledRecording && mFmRecorder != null) {
+            mScheduledRecording = false;
+            if (getRecorderState() == FmRecorder.STATE_RECORDING) {
+                stopRecording();
+            }
+            // nobody is around to pick a name
+            saveRecording(mFmRecorder.getRecordFileName());
+        }
+        mScheduler.onFinished(job, result, mScheduledSkewMs, mScheduledWarmUpMs);
+        mScheduledPowerUp = false;
+        mScheduledRender = false;
+        if (restoreRadio) {
+            if (wasPoweredUp && !isActivityForeground()) {
+                // nobody is listening, power down, drop focus and the foreground
+                powerDown();
+                stopSelf();
+            } else if (wasRendered && mPowerStatus == POWER_UP && mAudioPatch == null) {
+                startPatchOrRender();
+            }
+        }
+        if (mPowerStatus != POWER_UP && mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+
     /**
      * check FM is foreground or background
      */
@@ -2672,6 +4023,7 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
      */
     public void setFmMainActivityForeground(boolean isForeground) {
         mIsFmMainForeground = isForeground;
+        mBandAnalyzer.setVisible(isActivityForeground());
     }
 
     /**
@@ -2680,6 +4032,7 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
      */
     public void setFmFavoriteForeground(boolean isForeground) {
         mIsFmFavoriteForeground = isForeground;
+        mBandAnalyzer.setVisible(isActivityForeground());
     }
 
     /**
@@ -2688,6 +4041,19 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
      */
     public void setFmRecordActivityForeground(boolean isForeground) {
         mIsFmRecordForeground = isForeground;
+        mBandAnalyzer.setVisible(isActivityForeground());
+    }
+
+    /**
+     * Get low/mid/high levels of the software rendered audio, for the play
+     * indicator. Does not allocate, safe to call from onDraw.
+     *
+     * @param levels receives up to three levels in the range -1..1
+     * @return false if no audio was analyzed recently, e.g. while a hardware
+     *         audio patch is in use
+     */
+    public boolean readAudioLevels(float[] levels) {
+        return mBandAnalyzer.readLevels(levels);
     }
 
     /**
@@ -2754,6 +4120,60 @@ public class FmService extends Service implements FmRecorder.OnRecorderStateChan
         mModifiedRecordingName = name;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("FmService: power=" + mPowerStatus + " render=" + mIsRender
+                + " patch=" + (mAudioPatch != null)
+                + " renderState=" + RENDER_STATE_NAMES[mRenderState]);
+        for (int i = 0; i < RENDER_STATE_NAMES.length; i++) {
+            pw.println("  transition to " + RENDER_STATE_NAMES[i] + ": "
+                    + mRenderTransitions[i].summary());
+        }
+        long chunks = mRenderChunks;
+        // processing cost per second of audio, comparable across formats and chunk sizes
+        long audioMs = chunks * (mRenderChunkSize / mRenderFrameSize) * 1000L / mRenderSampleRate;
+        pw.println("  render: direct=" + mUseDirectBuffers + " lowLatency=" + mLowLatencyRender
+                + " float=" + (mRenderEncoding == AudioFormat.ENCODING_PCM_FLOAT)
+                + " rate=" + mRenderSampleRate + " chunkSize=" + mRenderChunkSize
+                + " chunks=" + chunks
+                + " avgChainUs=" + (chunks > 0 ? mRenderNanos / chunks / 1000 : 0)
+                + " chainUsPerSec=" + (audioMs > 0 ? mRenderNanos / audioMs : 0));
+        mRenderLatency.dump(pw);
+        mJitterBuffer.dump(pw);
+        pw.println("  timeToFirstAudioMs=" + mTimeToFirstAudioMs);
+        mProcessingChain.dump(pw);
+        mLevelMeter.dump(pw);
+        mRdsStats.dump(pw);
+        mRdsSnapshot.dump(pw);
+        RdsCapture capture = mRdsCapture;
+        if (capture != null) {
+            capture.dump(pw);
+        }
+        RdsReplay replay = mRdsReplay;
+        if (replay != null) {
+            replay.dump(pw);
+        }
+        mStationCache.dump(pw);
+        mBandAnalyzer.dump(pw);
+        TimeShiftBuffer timeShift = mTimeShift;
+        if (timeShift != null) {
+            timeShift.dump(pw);
+        }
+        PcmBufferPool pool = mBufferPool;
+        if (pool != null) {
+            pool.dump(pw);
+        }
+        FmRecorder recorder = mFmRecorder;
+        if (recorder != null) {
+            recorder.dump(pw);
+        }
+        mScheduler.dump(pw);
+        DebugCommands commands = mDebugCommands;
+        if (commands != null) {
+            commands.dump(pw);
+        }
+    }
+
     @Override
     public void onTaskRemoved(Intent rootIntent) {
         exitFm();
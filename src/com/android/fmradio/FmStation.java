@@ -45,6 +45,8 @@ public class FmStation {
         Station.STATION_NAME,
         Station.PROGRAM_SERVICE,
         Station.RADIO_TEXT,
+        Station.PROGRAM_ID,
+        Station.PROGRAM_TYPE,
     };
 
     /**
@@ -82,6 +84,18 @@ public class FmStation {
          * <P>Type: TEXT</P>
          */
         public static final String RADIO_TEXT = "radio_text";
+
+        /**
+         * Program identification(PI) last sent by the station over RDS, null if none was.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String PROGRAM_ID = "program_id";
+
+        /**
+         * Program type(PTY), the genre last sent by the station over RDS, null if none was.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String PROGRAM_TYPE = "program_type";
     }
 
     /**
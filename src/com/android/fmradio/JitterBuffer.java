@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.media.AudioTrack;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Adaptive jitter buffer between the render thread's AudioRecord reads and the
+ * AudioTrack. Chunks are written without blocking; whatever the track cannot
+ * take yet waits here, so a stalled sink (e.g. an A2DP hiccup) no longer
+ * blocks capture.
+ *
+ * The playback depth is the AudioTrack buffer size, in chunks. It grows when
+ * the track underruns or stops accepting data for too long, and shrinks back
+ * one chunk at a time after a quiet period. If the pending queue still grows
+ * past its limit the oldest chunk is dropped and counted as an overrun.
+ *
+ * Only the render thread touches the queue, the counters may be read from
+ * any thread.
+ */
+class JitterBuffer {
+    private static final String TAG = "JitterBuffer";
+
+    // track buffer capacity the render path must allocate, in chunks
+    static final int MAX_TARGET_CHUNKS = 8;
+    // chunks allowed to wait here on top of the track buffer
+    private static final int MAX_PENDING_CHUNKS = 6;
+    // no underrun or stall for this long lets the depth shrink by one chunk
+    private static final long SHRINK_INTERVAL_NS = 10L * 1000 * 1000 * 1000;
+
+    private final ArrayDeque<PcmBufferPool.Buffer> mPending = new ArrayDeque<>();
+    // bytes of the head chunk already written
+    private int mHeadOffset;
+
+    private AudioTrack mTrack;
+    private int mChunkFrames;
+    private int mMinTarget;
+    private long mStallThresholdNs;
+    private int mLastUnderrunCount;
+    private long mLastProgressNs;
+    private long mLastAdjustNs;
+    private boolean mStalled;
+
+    // statistics
+    private volatile int mTarget;
+    private volatile int mDepth;
+    private volatile long mUnderruns;
+    private volatile long mOverruns;
+    private volatile long mStalls;
+
+    /**
+     * Attach to a freshly created track. Pending data is dropped, statistics
+     * are kept.
+     *
+     * @param track track to feed, allocated with room for
+     *            {@link #MAX_TARGET_CHUNKS} chunks
+     * @param chunkFrames frames per render chunk
+     * @param minTarget smallest depth, in chunks
+     * @param chunkDurationNs playback time of one chunk
+     */
+    void reset(AudioTrack track, int chunkFrames, int minTarget, long chunkDurationNs) {
+        flush();
+        mTrack = track;
+        mChunkFrames = chunkFrames;
+        mMinTarget = minTarget;
+        // the track holds at least one chunk, anything longer than two is a stall
+        mStallThresholdNs = chunkDurationNs * 2;
+        mLastUnderrunCount = track.getUnderrunCount();
+        mLastProgressNs = System.nanoTime();
+        mLastAdjustNs = mLastProgressNs;
+        mStalled = false;
+        setTarget(minTarget);
+    }
+
+    /**
+     * Queue a chunk and write as much as the track accepts without blocking.
+     *
+     * @return number of bytes written to the track
+     */
+    int write(PcmBufferPool.Buffer buffer) {
+        buffer.retain();
+        mPending.addLast(buffer);
+        if (mPending.size() > MAX_PENDING_CHUNKS) {
+            mPending.pollFirst().release();
+            mHeadOffset = 0;
+            if (mOverruns++ == 0) {
+                Log.w(TAG, "overrun, track is not draining");
+            }
+        }
+
+        int written = drain();
+        mDepth = mPending.size();
+        checkHealth(written > 0);
+        return written;
+    }
+
+    private int drain() {
+        int total = 0;
+        PcmBufferPool.Buffer head;
+        while ((head = mPending.peekFirst()) != null) {
+            int remaining = head.size - mHeadOffset;
+            int n;
+            if (head.direct != null) {
+                head.direct.limit(head.size).position(mHeadOffset);
+                n = mTrack.write(head.direct, remaining, AudioTrack.WRITE_NON_BLOCKING);
+            } else {
+                n = mTrack.write(head.data, mHeadOffset, remaining,
+                        AudioTrack.WRITE_NON_BLOCKING);
+            }
+            if (n < 0) {
+                Log.e(TAG, "write failed: " + n);
+                mPending.pollFirst().release();
+                mHeadOffset = 0;
+                continue;
+            }
+            total += n;
+            if (n < remaining) {
+                mHeadOffset += n;
+                break;
+            }
+            mPending.pollFirst().release();
+            mHeadOffset = 0;
+        }
+        return total;
+    }
+
+    private void checkHealth(boolean progress) {
+        long now = System.nanoTime();
+        if (progress) {
+            mLastProgressNs = now;
+            mStalled = false;
+        } else if (!mStalled && now - mLastProgressNs > mStallThresholdNs) {
+            mStalled = true;
+            mStalls++;
+            grow(now, "stall");
+        }
+
+        int underruns = mTrack.getUnderrunCount();
+        if (underruns > mLastUnderrunCount) {
+            mUnderruns += underruns - mLastUnderrunCount;
+            mLastUnderrunCount = underruns;
+            grow(now, "underrun");
+        } else if (mTarget > mMinTarget && now - mLastAdjustNs > SHRINK_INTERVAL_NS) {
+            mLastAdjustNs = now;
+            setTarget(mTarget - 1);
+        }
+    }
+
+    private void grow(long now, String reason) {
+        mLastAdjustNs = now;
+        if (mTarget < MAX_TARGET_CHUNKS) {
+            Log.d(TAG, reason + ", depth " + mTarget + " -> " + (mTarget + 1));
+            setTarget(mTarget + 1);
+        }
+    }
+
+    private void setTarget(int chunks) {
+        mTarget = chunks;
+        mTrack.setBufferSizeInFrames(chunks * mChunkFrames);
+    }
+
+    /**
+     * Drop pending chunks, e.g. when rendering pauses.
+     */
+    void flush() {
+        PcmBufferPool.Buffer buffer;
+        while ((buffer = mPending.poll()) != null) {
+            buffer.release();
+        }
+        mHeadOffset = 0;
+        mDepth = 0;
+        // a paused track is not a stalled one
+        mLastProgressNs = System.nanoTime();
+        mStalled = false;
+    }
+
+    long getUnderrunCount() {
+        return mUnderruns;
+    }
+
+    long getOverrunCount() {
+        return mOverruns;
+    }
+
+    /**
+     * @return chunks waiting for the track
+     */
+    int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * @return current track depth, in chunks
+     */
+    int getTargetDepth() {
+        return mTarget;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  JitterBuffer: target=" + mTarget + " depth=" + mDepth
+                + " underruns=" + mUnderruns + " overruns=" + mOverruns
+                + " stalls=" + mStalls);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
+/**
+ * Processing stage measuring the peak and RMS level of each buffer.
+ */
+class LevelMeter implements PcmProcessor {
+    private volatile float mPeak;
+    private volatile float mRms;
+
+    @Override
+    public void process(PcmBufferPool.Buffer buffer) {
+        if (buffer.isFloat) {
+            processFloat(buffer.direct, buffer.size / 4);
+            return;
+        }
+        int samples = buffer.size / 2;
+        if (samples == 0) {
+            return;
+        }
+        int peak = 0;
+        long sum = 0;
+        ByteBuffer direct = buffer.direct;
+        byte[] data = buffer.data;
+        for (int i = 0; i < samples; i++) {
+            int s;
+            if (direct != null) {
+                s = direct.getShort(i * 2);
+            } else {
+                s = (short) ((data[i * 2] & 0xff) | (data[i * 2 + 1] << 8));
+            }
+            sum += s * s;
+            if (s < 0) {
+                s = -s;
+            }
+            if (s > peak) {
+                peak = s;
+            }
+        }
+        mPeak = peak / 32768f;
+        mRms = (float) Math.sqrt((double) sum / samples) / 32768f;
+    }
+
+    private void processFloat(ByteBuffer direct, int samples) {
+        if (samples == 0) {
+            return;
+        }
+        float peak = 0;
+        float sum = 0;
+        for (int i = 0; i < samples; i++) {
+            float s = direct.getFloat(i * 4);
+            sum += s * s;
+            s = Math.abs(s);
+            if (s > peak) {
+                peak = s;
+            }
+        }
+        mPeak = peak;
+        mRms = (float) Math.sqrt(sum / samples);
+    }
+
+    /**
+     * @return peak level of the last buffer, 0..1 of full scale
+     */
+    float getPeak() {
+        return mPeak;
+    }
+
+    /**
+     * @return RMS level of the last buffer, 0..1 of full scale
+     */
+    float getRms() {
+        return mRms;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  LevelMeter: peak=" + mPeak + " rms=" + mRms);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.media.AudioFormat;
+import android.os.Debug;
+
+import java.io.PrintWriter;
+
+/**
+ * Times the render processing stages on synthetic stereo audio in each PCM
+ * layout the render path supports, reported as thread CPU time per second of
+ * audio. Run with the debug command "benchmark", see DebugCommands.
+ */
+class PcmBenchmark {
+    private static final int CHANNELS = 2;
+    private static final int WARMUP_SECONDS = 5;
+    private static final int BENCHMARK_SECONDS = 30;
+
+    static void run(PrintWriter pw, int sampleRate, int chunkFrames) {
+        pw.println("PcmBenchmark: rate=" + sampleRate + " chunkFrames=" + chunkFrames
+                + " seconds=" + BENCHMARK_SECONDS);
+        long pcm16 = measure(sampleRate, chunkFrames, false, AudioFormat.ENCODING_PCM_16BIT);
+        long pcm16Direct = measure(sampleRate, chunkFrames, true,
+                AudioFormat.ENCODING_PCM_16BIT);
+        long pcmFloat = measure(sampleRate, chunkFrames, true, AudioFormat.ENCODING_PCM_FLOAT);
+        pw.println("  pcm16 array:  " + pcm16 + " us cpu per s of audio");
+        pw.println("  pcm16 direct: " + pcm16Direct + " us cpu per s of audio");
+        pw.println("  float direct: " + pcmFloat + " us cpu per s of audio");
+    }
+
+    private static long measure(int sampleRate, int chunkFrames, boolean direct, int encoding) {
+        int sampleSize = encoding == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2;
+        PcmBufferPool pool = new PcmBufferPool(2, chunkFrames * CHANNELS * sampleSize, direct,
+                encoding);
+        PcmBufferPool.Buffer source = pool.acquire();
+        PcmBufferPool.Buffer buffer = pool.acquire();
+        source.size = pool.getBufferSize();
+        buffer.size = pool.getBufferSize();
+        fill(source, sampleRate);
+
+        PcmProcessingChain chain = new PcmProcessingChain();
+        FadeInRamp fadeIn = new FadeInRamp(CHANNELS);
+        BandAnalyzer analyzer = new BandAnalyzer();
+        analyzer.configure(sampleRate);
+        chain.addStage("fadeIn", fadeIn);
+        chain.addStage("levelMeter", new LevelMeter());
+        chain.addStage("analyzer", analyzer);
+
+        int chunksPerSecond = sampleRate / chunkFrames;
+        runChunks(chain, fadeIn, source, buffer, sampleRate, WARMUP_SECONDS * chunksPerSecond);
+        long start = Debug.threadCpuTimeNanos();
+        runChunks(chain, fadeIn, source, buffer, sampleRate,
+                BENCHMARK_SECONDS * chunksPerSecond);
+        long cpuNs = Debug.threadCpuTimeNanos() - start;
+        source.release();
+        buffer.release();
+        // ns per BENCHMARK_SECONDS -> us per second
+        return cpuNs / 1000 / BENCHMARK_SECONDS;
+    }
+
+    private static void runChunks(PcmProcessingChain chain, FadeInRamp fadeIn,
+            PcmBufferPool.Buffer source, PcmBufferPool.Buffer buffer, int sampleRate,
+            int chunks) {
+        for (int i = 0; i < chunks; i++) {
+            // stages work in place, refill like a fresh AudioRecord read
+            if (buffer.direct != null) {
+                source.direct.clear();
+                buffer.direct.clear();
+                buffer.direct.put(source.direct);
+            } else {
+                System.arraycopy(source.data, 0, buffer.data, 0, buffer.size);
+            }
+            if (i % 50 == 0) {
+                fadeIn.restart(sampleRate / 30);
+            }
+            chain.process(buffer);
+        }
+    }
+
+    // 440 Hz and 3 kHz tones, different on each channel
+    private static void fill(PcmBufferPool.Buffer buffer, int sampleRate) {
+        int sampleSize = buffer.isFloat ? 4 : 2;
+        int frames = buffer.size / (CHANNELS * sampleSize);
+        for (int i = 0; i < frames; i++) {
+            double t = (double) i / sampleRate;
+            float left = (float) (0.5 * Math.sin(2 * Math.PI * 440 * t));
+            float right = (float) (0.3 * Math.sin(2 * Math.PI * 3000 * t));
+            int offset = i * CHANNELS * sampleSize;
+            if (buffer.isFloat) {
+                buffer.direct.putFloat(offset, left);
+                buffer.direct.putFloat(offset + 4, right);
+            } else if (buffer.direct != null) {
+                buffer.direct.putShort(offset, (short) (left * 32767));
+                buffer.direct.putShort(offset + 2, (short) (right * 32767));
+            } else {
+                short l = (short) (left * 32767);
+                short r = (short) (right * 32767);
+                buffer.data[offset] = (byte) l;
+                buffer.data[offset + 1] = (byte) (l >> 8);
+                buffer.data[offset + 2] = (byte) r;
+                buffer.data[offset + 3] = (byte) (r >> 8);
+            }
+        }
+    }
+}
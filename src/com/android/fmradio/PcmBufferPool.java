@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.media.AudioFormat;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size pool of PCM buffers used by the render thread. A buffer is handed
+ * out with one reference; every consumer that keeps it beyond the current
+ * loop iteration (e.g. the recorder) takes its own reference and releases it
+ * when done. The buffer goes back to the pool when the last reference is
+ * dropped, so the render loop does not allocate once it reaches steady state.
+ *
+ * A pool is either array backed or direct: direct buffers let AudioRecord,
+ * AudioTrack and the recorder move PCM without copying it through Java arrays.
+ * Float PCM is only supported in direct buffers.
+ */
+class PcmBufferPool {
+    private static final String TAG = "PcmBufferPool";
+
+    private final ArrayBlockingQueue<Buffer> mFree;
+    private final int mCapacity;
+    private final int mBufferSize;
+    private final boolean mDirect;
+    private final int mEncoding;
+
+    // acquire() calls that found the pool empty
+    private final AtomicLong mExhaustedCount = new AtomicLong();
+    // total acquire() calls
+    private final AtomicLong mAcquireCount = new AtomicLong();
+    // lowest number of free buffers seen so far
+    private final AtomicInteger mLowWatermark;
+
+    PcmBufferPool(int capacity, int bufferSize, boolean direct, int encoding) {
+        if (encoding == AudioFormat.ENCODING_PCM_FLOAT && !direct) {
+            throw new IllegalArgumentException("float PCM needs direct buffers");
+        }
+        mCapacity = capacity;
+        mBufferSize = bufferSize;
+        mDirect = direct;
+        mEncoding = encoding;
+        mFree = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mFree.offer(new Buffer(this, bufferSize, direct, encoding));
+        }
+        mLowWatermark = new AtomicInteger(capacity);
+    }
+
+    /**
+     * Get a buffer with a single reference held by the caller. If the pool is
+     * exhausted a transient buffer is allocated instead, so the audio keeps
+     * flowing, and the exhaustion counter is bumped.
+     *
+     * @return a buffer of {@link #getBufferSize()} bytes
+     */
+    Buffer acquire() {
+        mAcquireCount.incrementAndGet();
+        Buffer buffer = mFree.poll();
+        if (buffer == null) {
+            if (mExhaustedCount.getAndIncrement() == 0) {
+                Log.w(TAG, "pool of " + mCapacity + " buffers exhausted");
+            }
+            buffer = new Buffer(null, mBufferSize, mDirect, mEncoding);
+        } else {
+            int free = mFree.size();
+            if (free < mLowWatermark.get()) {
+                mLowWatermark.set(free);
+            }
+        }
+        buffer.size = 0;
+        if (buffer.direct != null) {
+            buffer.direct.clear();
+        }
+        buffer.mRefCount.set(1);
+        return buffer;
+    }
+
+    private void recycle(Buffer buffer) {
+        mFree.offer(buffer);
+    }
+
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+    boolean isDirect() {
+        return mDirect;
+    }
+
+    int getEncoding() {
+        return mEncoding;
+    }
+
+    long getExhaustedCount() {
+        return mExhaustedCount.get();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  PcmBufferPool: capacity=" + mCapacity + " bufferSize=" + mBufferSize
+                + " direct=" + mDirect + " encoding=" + mEncoding + " free=" + mFree.size() + " lowWatermark=" + mLowWatermark.get()
+                + " acquired=" + mAcquireCount.get() + " exhausted=" + mExhaustedCount.get());
+    }
+
+    /**
+     * A reference counted PCM buffer. Exactly one of {@link #data} and
+     * {@link #direct} is set, {@link #size} is the number of valid bytes in it.
+     * {@link #isFloat} tells float PCM apart from 16 bit.
+     */
+    static final class Buffer {
+        final byte[] data;
+        final ByteBuffer direct;
+        final boolean isFloat;
+        int size;
+        private final PcmBufferPool mPool;
+        private final AtomicInteger mRefCount = new AtomicInteger();
+
+        private Buffer(PcmBufferPool pool, int capacity, boolean isDirect, int encoding) {
+            mPool = pool;
+            isFloat = encoding == AudioFormat.ENCODING_PCM_FLOAT;
+            if (isDirect) {
+                data = null;
+                direct = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            } else {
+                data = new byte[capacity];
+                direct = null;
+            }
+        }
+
+        /**
+         * Take an additional reference, must be paired with {@link #release()}
+         */
+        void retain() {
+            mRefCount.incrementAndGet();
+        }
+
+        /**
+         * Drop a reference, returning the buffer to its pool on the last one
+         */
+        void release() {
+            int refs = mRefCount.decrementAndGet();
+            if (refs == 0) {
+                if (mPool != null) {
+                    mPool.recycle(this);
+                }
+            } else if (refs < 0) {
+                Log.e(TAG, "buffer released too many times");
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import java.io.PrintWriter;
+
+/**
+ * Ordered list of {@link PcmProcessor} stages run by the render thread on each
+ * buffer it reads. Every stage works on the same buffer, and the time each
+ * one takes is recorded so a stage eating into the audio thread budget shows
+ * up in dumpsys.
+ *
+ * Stages can be added and removed from any thread; the stage array is copied
+ * on change so {@link #process} never takes a lock.
+ */
+class PcmProcessingChain {
+    private static final class Stage {
+        final String mName;
+        final PcmProcessor mProcessor;
+        // written by the render thread only
+        volatile long mCount;
+        volatile long mTotalNs;
+        volatile long mMaxNs;
+
+        Stage(String name, PcmProcessor processor) {
+            mName = name;
+            mProcessor = processor;
+        }
+    }
+
+    private volatile Stage[] mStages = new Stage[0];
+
+    /**
+     * Append a stage, it runs after all stages added before it.
+     */
+    synchronized void addStage(String name, PcmProcessor processor) {
+        Stage[] stages = new Stage[mStages.length + 1];
+        System.arraycopy(mStages, 0, stages, 0, mStages.length);
+        stages[mStages.length] = new Stage(name, processor);
+        mStages = stages;
+    }
+
+    synchronized void removeStage(PcmProcessor processor) {
+        Stage[] old = mStages;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i].mProcessor == processor) {
+                Stage[] stages = new Stage[old.length - 1];
+                System.arraycopy(old, 0, stages, 0, i);
+                System.arraycopy(old, i + 1, stages, i, old.length - i - 1);
+                mStages = stages;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run all stages on {@code buffer}, in order.
+     */
+    void process(PcmBufferPool.Buffer buffer) {
+        Stage[] stages = mStages;
+        for (Stage stage : stages) {
+            long start = System.nanoTime();
+            stage.mProcessor.process(buffer);
+            long elapsed = System.nanoTime() - start;
+            stage.mCount++;
+            stage.mTotalNs += elapsed;
+            if (elapsed > stage.mMaxNs) {
+                stage.mMaxNs = elapsed;
+            }
+        }
+    }
+
+    void resetStats() {
+        for (Stage stage : mStages) {
+            stage.mCount = 0;
+            stage.mTotalNs = 0;
+            stage.mMaxNs = 0;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  PcmProcessingChain:");
+        for (Stage stage : mStages) {
+            long count = stage.mCount;
+            pw.println("    " + stage.mName + ": buffers=" + count
+                    + " avgUs=" + (count > 0 ? stage.mTotalNs / count / 1000 : 0)
+                    + " maxUs=" + stage.mMaxNs / 1000);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+/**
+ * A stage of the {@link PcmProcessingChain}.
+ */
+interface PcmProcessor {
+    /**
+     * Process the first {@code buffer.size} bytes of interleaved PCM in place.
+     * Runs on the render thread at audio priority, so it must not block or
+     * allocate. A stage that keeps the buffer past this call has to retain it.
+     */
+    void process(PcmBufferPool.Buffer buffer);
+}
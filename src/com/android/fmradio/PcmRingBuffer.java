@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer PCM ring buffer. The render thread
+ * writes, the encoder thread reads straight into codec input buffers. Neither
+ * side takes a lock: read and write positions are monotonic byte counters and
+ * a consumer read is only committed if the producer did not drop the same
+ * bytes meanwhile (drop-oldest policy).
+ *
+ * All sizes are kept aligned to whole PCM frames.
+ */
+class PcmRingBuffer {
+    // Wait for the consumer to make room, then drop the newest data after a timeout
+    public static final int OVERFLOW_BLOCK = 0;
+    // Discard the oldest unread data to make room
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+    // Discard the data being written
+    public static final int OVERFLOW_DROP_NEWEST = 2;
+
+    // longest time the producer waits under OVERFLOW_BLOCK
+    private static final long BLOCK_TIMEOUT_NS = 20 * 1000 * 1000;
+    private static final long BLOCK_PARK_NS = 500 * 1000;
+
+    private final int mCapacity;
+    private final int mFrameSize;
+    private final int mPolicy;
+
+    // separate views so producer and consumer never share position/limit
+    private final ByteBuffer mWriteView;
+    private final ByteBuffer mReadView;
+
+    private final AtomicLong mWritePos = new AtomicLong();
+    private final AtomicLong mReadPos = new AtomicLong();
+
+    // statistics
+    private final AtomicLong mDroppedBytes = new AtomicLong();
+    private final AtomicLong mOverflowCount = new AtomicLong();
+    private volatile int mHighWatermark;
+
+    /**
+     * @param capacity size in bytes, rounded down to whole frames
+     * @param frameSize bytes per PCM frame (all channels)
+     * @param policy one of the OVERFLOW_* constants
+     */
+    PcmRingBuffer(int capacity, int frameSize, int policy) {
+        mFrameSize = frameSize;
+        mCapacity = capacity - (capacity % frameSize);
+        mPolicy = policy;
+        ByteBuffer storage = ByteBuffer.allocateDirect(mCapacity);
+        mWriteView = storage.duplicate();
+        mReadView = storage.duplicate();
+    }
+
+    /**
+     * Producer side: copy PCM into the ring, applying the overflow policy when
+     * it does not fit.
+     *
+     * @return number of bytes actually stored
+     */
+    int write(byte[] src, int offset, int length) {
+        length -= length % mFrameSize;
+        if (length > mCapacity) {
+            // only the tail can ever be kept
+            mDroppedBytes.addAndGet(length - mCapacity);
+            offset += length - mCapacity;
+            length = mCapacity;
+        }
+        if (!makeRoom(length)) {
+            return 0;
+        }
+
+        long w = mWritePos.get();
+        int index = (int) (w % mCapacity);
+        int first = Math.min(length, mCapacity - index);
+        mWriteView.limit(index + first).position(index);
+        mWriteView.put(src, offset, first);
+        if (first < length) {
+            mWriteView.limit(length - first).position(0);
+            mWriteView.put(src, offset + first, length - first);
+        }
+        publish(w, length);
+        return length;
+    }
+
+    /**
+     * Producer side: copy the remaining bytes of {@code src} into the ring.
+     * When {@code src} is direct this is a plain native copy. The position of
+     * {@code src} is advanced past the consumed (or dropped) bytes.
+     *
+     * @return number of bytes actually stored
+     */
+    int write(ByteBuffer src) {
+        int length = src.remaining();
+        length -= length % mFrameSize;
+        if (length > mCapacity) {
+            mDroppedBytes.addAndGet(length - mCapacity);
+            src.position(src.position() + length - mCapacity);
+            length = mCapacity;
+        }
+        if (!makeRoom(length)) {
+            src.position(src.position() + length);
+            return 0;
+        }
+
+        int limit = src.limit();
+        long w = mWritePos.get();
+        int index = (int) (w % mCapacity);
+        int first = Math.min(length, mCapacity - index);
+        mWriteView.limit(index + first).position(index);
+        src.limit(src.position() + first);
+        mWriteView.put(src);
+        if (first < length) {
+            mWriteView.limit(length - first).position(0);
+            src.limit(src.position() + length - first);
+            mWriteView.put(src);
+        }
+        src.limit(limit);
+        publish(w, length);
+        return length;
+    }
+
+    private void publish(long w, int length) {
+        // publish after the copy
+        mWritePos.set(w + length);
+
+        int fill = (int) (w + length - mReadPos.get());
+        if (fill > mHighWatermark) {
+            mHighWatermark = fill;
+        }
+    }
+
+    private boolean makeRoom(int length) {
+        long w = mWritePos.get();
+        if (mCapacity - (int) (w - mReadPos.get()) >= length) {
+            return true;
+        }
+        mOverflowCount.incrementAndGet();
+
+        if (mPolicy == OVERFLOW_BLOCK) {
+            long deadline = System.nanoTime() + BLOCK_TIMEOUT_NS;
+            while (mCapacity - (int) (w - mReadPos.get()) < length) {
+                if (System.nanoTime() >= deadline) {
+                    mDroppedBytes.addAndGet(length);
+                    return false;
+                }
+                LockSupport.parkNanos(BLOCK_PARK_NS);
+            }
+            return true;
+        } else if (mPolicy == OVERFLOW_DROP_OLDEST) {
+            while (true) {
+                long r = mReadPos.get();
+                int needed = length - (mCapacity - (int) (w - r));
+                if (needed <= 0) {
+                    return true;
+                }
+                if (mReadPos.compareAndSet(r, r + needed)) {
+                    mDroppedBytes.addAndGet(needed);
+                    return true;
+                }
+            }
+        } else {
+            mDroppedBytes.addAndGet(length);
+            return false;
+        }
+    }
+
+    /**
+     * Consumer side: move as many whole frames as fit into {@code dst}.
+     *
+     * @return number of bytes copied
+     */
+    int read(ByteBuffer dst) {
+        int start = dst.position();
+        while (true) {
+            long r = mReadPos.get();
+            int available = (int) (mWritePos.get() - r);
+            int length = Math.min(available, dst.remaining());
+            length -= length % mFrameSize;
+            if (length <= 0) {
+                return 0;
+            }
+
+            int index = (int) (r % mCapacity);
+            int first = Math.min(length, mCapacity - index);
+            mReadView.limit(index + first).position(index);
+            dst.put(mReadView);
+            if (first < length) {
+                mReadView.limit(length - first).position(0);
+                dst.put(mReadView);
+            }
+            if (mReadPos.compareAndSet(r, r + length)) {
+                return length;
+            }
+            // the producer dropped what we just copied, try again
+            dst.position(start);
+        }
+    }
+
+    /**
+     * @return bytes waiting to be read
+     */
+    int available() {
+        return (int) (mWritePos.get() - mReadPos.get());
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    long getDroppedBytes() {
+        return mDroppedBytes.get();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  PcmRingBuffer: capacity=" + mCapacity + " fill=" + available()
+                + " highWatermark=" + mHighWatermark + " policy=" + mPolicy
+                + " overflows=" + mOverflowCount.get() + " droppedBytes=" + mDroppedBytes.get());
+    }
+}
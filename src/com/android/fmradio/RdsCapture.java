@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams what the RDS thread reads to a file, for {@link RdsReplay} to feed
+ * back later without a tuner. Three kinds of records: the station tuned to,
+ * each snapshot that carried events, and the raw RDS blocks the chip logged
+ * (FM_IOCTL_RDS_GET_LOG) where the driver offers them.
+ *
+ * Layout, little endian: a 16 byte header
+ * <pre>
+ *   "FMRC", u16 version, u16 snapshot size, u8 byte order of the snapshots
+ *   (0 little, 1 big endian), u8[3] reserved, u32 wall clock start in s
+ * </pre>
+ * followed by records of an 8 byte header and the payload
+ * <pre>
+ *   u8 type, u8 reserved, u16 payload length, u32 ms since the previous record
+ * </pre>
+ * Payloads: TUNE a u32 station, SNAPSHOT the bytes of an {@link RdsSnapshot}
+ * as read, BLOCKS the raw block log of the chip. About 130 bytes per RDS
+ * event, a few hundred kB per hour of listening.
+ *
+ * Records are gathered in a buffer and written when it fills or a few
+ * seconds have passed.
+ */
+class RdsCapture {
+    private static final String TAG = "RdsCapture";
+
+    static final String SUFFIX = ".rds";
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 8;
+    static final int RECORD_TUNE = 1;
+    static final int RECORD_SNAPSHOT = 2;
+    static final int RECORD_BLOCKS = 3;
+    static final byte[] MAGIC = { 'F', 'M', 'R', 'C' };
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final int FLUSH_INTERVAL_MS = 5000;
+
+    private final File mFile;
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer mBlocks = ByteBuffer.allocateDirect(FmNative.RDS_LOG_SIZE);
+    // false once the driver or libfmjni turned out not to log blocks
+    private boolean mBlocksSupported = true;
+    private long mLastRecordMs;
+    private long mLastFlushMs;
+    private int mStation = -1;
+    private boolean mClosed;
+
+    // statistics
+    private long mSnapshots;
+    private long mBlockRecords;
+    private long mBytes;
+
+    RdsCapture(File file) throws IOException {
+        mFile = file;
+        mStream = new FileOutputStream(file);
+        mChannel = mStream.getChannel();
+        mBuffer.put(MAGIC);
+        mBuffer.putShort((short) VERSION);
+        mBuffer.putShort((short) RdsSnapshot.SIZE);
+        mBuffer.put((byte) (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 1));
+        mBuffer.put(new byte[3]);
+        mBuffer.putInt((int) (System.currentTimeMillis() / 1000));
+        mLastRecordMs = SystemClock.elapsedRealtime();
+        mLastFlushMs = mLastRecordMs;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Record a read of the RDS thread.
+     *
+     * @param events what the read returned
+     * @param station the station tuned to
+     */
+    synchronized void onRead(RdsSnapshot snapshot, int events, int station) {
+        if (mClosed) {
+            return;
+        }
+        if (station != mStation) {
+            mStation = station;
+            if (startRecord(RECORD_TUNE, 4)) {
+                mBuffer.putInt(station);
+            }
+        }
+        // read field by field there is no snapshot to keep
+        if (events > 0 && snapshot.hasSnapshot()
+                && startRecord(RECORD_SNAPSHOT, RdsSnapshot.SIZE)) {
+            snapshot.copyTo(mBuffer);
+            mSnapshots++;
+        }
+        if (mBlocksSupported) {
+            readBlocks();
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (now - mLastFlushMs >= FLUSH_INTERVAL_MS) {
+            flush();
+        }
+    }
+
+    private void readBlocks() {
+        int length;
+        try {
+            mBlocks.clear();
+            length = FmNative.readRdsLog(mBlocks);
+        } catch (UnsatisfiedLinkError e) {
+            length = -1;
+        }
+        if (length < 0) {
+            Log.w(TAG, "no raw block log, capturing snapshots only");
+            mBlocksSupported = false;
+            return;
+        }
+        if (length > 0 && startRecord(RECORD_BLOCKS, length)) {
+            mBlocks.limit(length);
+            mBuffer.put(mBlocks);
+            mBlockRecords++;
+        }
+    }
+
+    private boolean startRecord(int type, int length) {
+        if (mBuffer.remaining() < RECORD_HEADER_SIZE + length) {
+            flush();
+            if (mClosed) {
+                return false;
+            }
+        }
+        long now = SystemClock.elapsedRealtime();
+        mBuffer.put((byte) type);
+        mBuffer.put((byte) 0);
+        mBuffer.putShort((short) length);
+        mBuffer.putInt((int) (now - mLastRecordMs));
+        mLastRecordMs = now;
+        return true;
+    }
+
+    private void flush() {
+        mLastFlushMs = SystemClock.elapsedRealtime();
+        mBuffer.flip();
+        try {
+            while (mBuffer.hasRemaining()) {
+                mBytes += mChannel.write(mBuffer);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "write failed, capture stopped", e);
+            closeStream();
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * Write what is buffered and close the file.
+     */
+    synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        flush();
+        closeStream();
+    }
+
+    private void closeStream() {
+        mClosed = true;
+        try {
+            mStream.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close failed", e);
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  RdsCapture: file=" + mFile + " open=" + !mClosed
+                + " snapshots=" + mSnapshots + " blockRecords=" + mBlockRecords
+                + " blocksSupported=" + mBlocksSupported + " bytes=" + mBytes);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Plays an {@link RdsCapture} file back as an {@link RdsSnapshot.Source}, so
+ * the snapshot decoding and the listeners see the captured RDS again without
+ * a tuner. Snapshots come out at their captured pace times a speed factor, or
+ * back to back at speed 0. Tune and raw block records are counted and
+ * skipped: the service keeps replayed RDS out of the station list, and the
+ * groups are decoded by the driver, there is no decoder on this side to feed
+ * them to.
+ *
+ * Needs nothing of the device, with a stub of android.util.Log for
+ * RdsSnapshot it runs on a host JVM too. {@link #benchmark} gives the
+ * decoding throughput for a capture.
+ */
+class RdsReplay implements RdsSnapshot.Source {
+    // longest sleep before checking for a wake up
+    private static final int SLEEP_SLICE_MS = 100;
+
+    private final File mFile;
+    private final MappedByteBuffer mData;
+    private final float mSpeed;
+    private final long mStartNs = System.nanoTime();
+    // capture time of the records consumed so far
+    private long mTimeMs;
+    private volatile boolean mWake;
+    private volatile boolean mFinished;
+
+    // statistics
+    private volatile long mSnapshots;
+    private long mTunes;
+    private long mBlockRecords;
+    private long mBlockBytes;
+    private long mSkipped;
+
+    /**
+     * @param speed multiple of the captured pace, 0 for as fast as possible
+     * @throws IOException if the file is not a capture this build can play
+     */
+    RdsReplay(File file, float speed) throws IOException {
+        mFile = file;
+        mSpeed = speed;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            mData = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        mData.order(ByteOrder.LITTLE_ENDIAN);
+        if (mData.remaining() < RdsCapture.HEADER_SIZE) {
+            throw new IOException(file + " is too short");
+        }
+        byte[] magic = new byte[RdsCapture.MAGIC.length];
+        mData.get(magic);
+        int version = mData.getShort() & 0xffff;
+        int snapshotSize = mData.getShort() & 0xffff;
+        ByteOrder order = mData.get() == 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        if (!Arrays.equals(magic, RdsCapture.MAGIC)
+                || version != RdsCapture.VERSION) {
+            throw new IOException(file + " is not an RDS capture");
+        }
+        if (snapshotSize != RdsSnapshot.SIZE || order != ByteOrder.nativeOrder()) {
+            throw new IOException(file + " has snapshots of " + snapshotSize + " bytes, "
+                    + order + ", need " + RdsSnapshot.SIZE + " bytes, " + ByteOrder.nativeOrder());
+        }
+        mData.position(RdsCapture.HEADER_SIZE);
+    }
+
+    /**
+     * Block until the next snapshot is due and copy it to {@code snapshot}.
+     *
+     * @return its events, FmNative.RDS_WAIT_CANCELLED when woken up or at
+     *         the end of the file, see {@link #isFinished()}
+     */
+    @Override
+    public int read(ByteBuffer snapshot, boolean wait) {
+        while (true) {
+            if (mData.remaining() < RdsCapture.RECORD_HEADER_SIZE) {
+                mFinished = true;
+                return FmNative.RDS_WAIT_CANCELLED;
+            }
+            int start = mData.position();
+            int type = mData.get(start) & 0xff;
+            int length = mData.getShort(start + 2) & 0xffff;
+            long delayMs = mData.getInt(start + 4) & 0xffffffffL;
+            if (mData.remaining() < RdsCapture.RECORD_HEADER_SIZE + length) {
+                // cut off by a crash
+                mFinished = true;
+                return FmNative.RDS_WAIT_CANCELLED;
+            }
+            if (type == RdsCapture.RECORD_SNAPSHOT && !sleepUntil(mTimeMs + delayMs)) {
+                // the record stays for the next read
+                return FmNative.RDS_WAIT_CANCELLED;
+            }
+            mTimeMs += delayMs;
+            int payload = start + RdsCapture.RECORD_HEADER_SIZE;
+            mData.position(payload + length);
+            switch (type) {
+                case RdsCapture.RECORD_TUNE:
+                    mTunes++;
+                    break;
+                case RdsCapture.RECORD_SNAPSHOT:
+                    if (length != RdsSnapshot.SIZE) {
+                        mSkipped++;
+                        break;
+                    }
+                    ByteBuffer record = mData.duplicate();
+                    record.position(payload);
+                    record.limit(payload + length);
+                    snapshot.clear();
+                    snapshot.put(record);
+                    snapshot.clear();
+                    mSnapshots++;
+                    // the events of the read, as in the header of the snapshot
+                    return snapshot.getShort(2) & 0xffff;
+                case RdsCapture.RECORD_BLOCKS:
+                    mBlockRecords++;
+                    mBlockBytes += length;
+                    break;
+                default:
+                    mSkipped++;
+                    break;
+            }
+        }
+    }
+
+    // false if woken up before
+    private boolean sleepUntil(long timeMs) {
+        if (mSpeed <= 0) {
+            return !consumeWake();
+        }
+        long dueNs = mStartNs + (long) (timeMs * 1000000L / mSpeed);
+        while (true) {
+            if (consumeWake()) {
+                return false;
+            }
+            long leftMs = (dueNs - System.nanoTime()) / 1000000L;
+            if (leftMs <= 0) {
+                return true;
+            }
+            try {
+                Thread.sleep(Math.min(leftMs, SLEEP_SLICE_MS));
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    private boolean consumeWake() {
+        if (mWake) {
+            mWake = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Make a pending or the next read return early, like
+     * FmNative.cancelRdsWait() does for the driver.
+     */
+    void wake() {
+        mWake = true;
+    }
+
+    boolean isFinished() {
+        return mFinished;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  RdsReplay: file=" + mFile + " speed=" + mSpeed
+                + " finished=" + mFinished + " atMs=" + mTimeMs + " snapshots=" + mSnapshots
+                + " tunes=" + mTunes + " blockRecords=" + mBlockRecords
+                + " blockBytes=" + mBlockBytes + " skipped=" + mSkipped);
+    }
+
+    /**
+     * Decode a capture back to back and report the throughput and what
+     * changed, per field.
+     */
+    static void benchmark(PrintWriter pw, File file) {
+        RdsReplay replay;
+        try {
+            replay = new RdsReplay(file, 0);
+        } catch (IOException e) {
+            pw.println("RdsReplay: " + e.getMessage());
+            return;
+        }
+        RdsSnapshot snapshot = new RdsSnapshot();
+        snapshot.setSource(replay);
+        int[] fields = {
+                RdsSnapshot.FIELD_PS, RdsSnapshot.FIELD_RT, RdsSnapshot.FIELD_PI,
+                RdsSnapshot.FIELD_PTY, RdsSnapshot.FIELD_FLAGS, RdsSnapshot.FIELD_CT,
+                RdsSnapshot.FIELD_AF };
+        String[] names = { "ps", "rt", "pi", "pty", "flags", "ct", "af" };
+        long[] updates = new long[fields.length];
+        long start = System.nanoTime();
+        while (snapshot.read(true) >= 0) {
+            int updated = snapshot.getUpdated();
+            for (int i = 0; i < fields.length; i++) {
+                if ((updated & fields[i]) != 0) {
+                    updates[i]++;
+                }
+            }
+        }
+        long ns = Math.max(1, System.nanoTime() - start);
+        long snapshots = replay.mSnapshots;
+        pw.println("RdsReplay benchmark: " + file.getName() + " capturedS=" + replay.mTimeMs / 1000
+                + " snapshots=" + snapshots
+                + String.format(Locale.US, " nsPerSnapshot=%d snapshotsPerS=%d",
+                        snapshots > 0 ? ns / snapshots : 0, snapshots * 1000000000L / ns));
+        StringBuilder sb = new StringBuilder("  updates:");
+        for (int i = 0; i < fields.length; i++) {
+            sb.append(' ').append(names[i]).append('=').append(updates[i]);
+        }
+        pw.println(sb);
+        snapshot.dump(pw);
+        replay.dump(pw);
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The RDS state, read from the driver with one native call per wakeup into a
+ * direct buffer owned here. Each field carries a sequence number that the
+ * native side advances when the driver reports an event for it; only fields
+ * whose number moved are looked at, and a PS or RadioText only becomes a new
+ * String when its bytes differ, so reading allocates nothing while nothing
+ * changes.
+ *
+ * Layout, native byte order, as struct fmr_rds_snapshot in fmr.h
+ * <pre>
+ *   u16 version, u16 events, u32 seq flags, u32 seq PI, u32 seq PTY,
+ *   u32 seq PS, u32 seq RT, u32 seq AF, u16 PI, u8 PTY, u8 flags (TP, TA),
+ *   u16 AF count, u8 PS length, u8 RT length, u8[8] PS, u8[64] RT,
+ *   u32 seq CT, u16 year, u8 month, u8 day, u8 hour, u8 minute (UTC),
+ *   s8 local time offset in half hours, u8 reserved
+ * </pre>
+ * With a libfmjni that lacks the call, or fills in another version, it falls
+ * back to readRds(), getPs() and getLrText(), which only provide PS and
+ * RadioText. A {@link Source} can
+ * stand in for the driver, e.g. to replay a capture. Only used on the RDS
+ * thread.
+ */
+class RdsSnapshot {
+    private static final String TAG = "RdsSnapshot";
+
+    static final int SIZE = 120;
+    private static final int VERSION = 2;
+
+    // fields, same bits as the RDS events reporting them
+    static final int FIELD_FLAGS = 0x0001;
+    static final int FIELD_PI = 0x0002;
+    static final int FIELD_PTY = 0x0004;
+    static final int FIELD_PS = 0x0008;
+    static final int FIELD_CT = 0x0010;
+    static final int FIELD_RT = 0x0040;
+    static final int FIELD_AF = 0x0100;
+
+    private static final int FLAG_TP = 0x01;
+    private static final int FLAG_TA = 0x02;
+
+    private static final int OFFSET_VERSION = 0;
+    private static final int OFFSET_SEQ_FLAGS = 4;
+    private static final int OFFSET_SEQ_PI = 8;
+    private static final int OFFSET_SEQ_PTY = 12;
+    private static final int OFFSET_SEQ_PS = 16;
+    private static final int OFFSET_SEQ_RT = 20;
+    private static final int OFFSET_SEQ_AF = 24;
+    private static final int OFFSET_PI = 28;
+    private static final int OFFSET_PTY = 30;
+    private static final int OFFSET_FLAGS = 31;
+    private static final int OFFSET_AF_COUNT = 32;
+    private static final int OFFSET_PS_LENGTH = 34;
+    private static final int OFFSET_RT_LENGTH = 35;
+    private static final int OFFSET_PS = 36;
+    private static final int OFFSET_RT = 44;
+    private static final int OFFSET_SEQ_CT = 108;
+    private static final int OFFSET_CT_YEAR = 112;
+    private static final int OFFSET_CT_MONTH = 114;
+    private static final int OFFSET_CT_DAY = 115;
+    private static final int OFFSET_CT_HOUR = 116;
+    private static final int OFFSET_CT_MINUTE = 117;
+    private static final int OFFSET_CT_OFFSET = 118;
+    private static final int PS_SIZE = 8;
+    private static final int RT_SIZE = 64;
+
+    /**
+     * Supplies snapshots instead of the driver.
+     */
+    interface Source {
+        /**
+         * Same contract as FmNative.readRdsSnapshot().
+         */
+        int read(ByteBuffer snapshot, boolean wait);
+    }
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(SIZE)
+            .order(ByteOrder.nativeOrder());
+    // null to read the driver
+    private volatile Source mSource;
+    // false once the native call turned out to be missing or incompatible
+    private boolean mNative = true;
+    // a version mismatch of the source was logged
+    private boolean mSourceVersionLogged;
+
+    // last sequence numbers seen, by field
+    private int mSeqFlags;
+    private int mSeqPi;
+    private int mSeqPty;
+    private int mSeqPs;
+    private int mSeqRt;
+    private int mSeqAf;
+    private int mSeqCt;
+    private int mUpdated;
+
+    private int mPi = -1;
+    private int mPty = -1;
+    private int mFlags;
+    private int mAfCount;
+    private long mClockTimeMs = -1;
+    private int mClockOffsetMinutes;
+    private final byte[] mPsBytes = new byte[PS_SIZE];
+    private int mPsLength;
+    private String mPs = "";
+    private final byte[] mRtBytes = new byte[RT_SIZE];
+    private int mRtLength;
+    private String mRt = "";
+    private final byte[] mScratch = new byte[RT_SIZE];
+
+    // statistics
+    private long mReads;
+    private long mIdleReads;
+    private long mDecodes;
+    private long mUnchangedText;
+
+    /**
+     * Read the events and the fields they updated.
+     *
+     * @param wait block until there is an event, see FmNative.waitRds()
+     * @return the events, or a negative FmNative.RDS_WAIT_* result
+     */
+    int read(boolean wait) {
+        mUpdated = 0;
+        int events;
+        Source source = mSource;
+        if (source != null) {
+            events = source.read(mBuffer, wait);
+            if (events >= 0 && !decode() && !mSourceVersionLogged) {
+                // nothing to fall back to, the fields stay as they are
+                Log.e(TAG, "replayed snapshot version " + mBuffer.getShort(OFFSET_VERSION)
+                        + ", expected " + VERSION + ", ignoring it");
+                mSourceVersionLogged = true;
+            }
+        } else if (mNative) {
+            try {
+                events = FmNative.readRdsSnapshot(mBuffer, wait);
+            } catch (UnsatisfiedLinkError e) {
+                Log.w(TAG, "no native snapshot, reading fields one by one");
+                mNative = false;
+                return read(wait);
+            }
+            if (events == FmNative.RDS_SNAPSHOT_BAD_BUFFER) {
+                // layout mismatch with the library, cannot be trusted
+                Log.e(TAG, "snapshot buffer refused, reading fields one by one");
+                mNative = false;
+                return read(wait);
+            }
+            if (events >= 0 && !decode()) {
+                // a library with another layout, its events are still good
+                Log.e(TAG, "snapshot version " + mBuffer.getShort(OFFSET_VERSION)
+                        + ", expected " + VERSION + ", reading fields one by one");
+                mNative = false;
+                events = readText(events);
+            }
+        } else {
+            events = readFields(wait);
+        }
+        synchronized (this) {
+            mReads++;
+            if (mUpdated == 0) {
+                mIdleReads++;
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Read from {@code source} instead of the driver, null to go back to it.
+     */
+    void setSource(Source source) {
+        mSourceVersionLogged = false;
+        mSource = source;
+    }
+
+    /**
+     * @return false while reading field by field, without a snapshot
+     */
+    boolean hasSnapshot() {
+        return mNative || mSource != null;
+    }
+
+    /**
+     * Copy the snapshot bytes of the last read to {@code dst}.
+     */
+    void copyTo(ByteBuffer dst) {
+        mBuffer.clear();
+        dst.put(mBuffer);
+        mBuffer.clear();
+    }
+
+    /**
+     * @return false if the snapshot has another layout, nothing was decoded
+     */
+    private boolean decode() {
+        if (mBuffer.getShort(OFFSET_VERSION) != VERSION) {
+            return false;
+        }
+        int seq = mBuffer.getInt(OFFSET_SEQ_FLAGS);
+        if (seq != mSeqFlags) {
+            mSeqFlags = seq;
+            mFlags = mBuffer.get(OFFSET_FLAGS);
+            mUpdated |= FIELD_FLAGS;
+        }
+        seq = mBuffer.getInt(OFFSET_SEQ_PI);
+        if (seq != mSeqPi) {
+            mSeqPi = seq;
+            mPi = mBuffer.getShort(OFFSET_PI) & 0xffff;
+            mUpdated |= FIELD_PI;
+        }
+        seq = mBuffer.getInt(OFFSET_SEQ_PTY);
+        if (seq != mSeqPty) {
+            mSeqPty = seq;
+            mPty = mBuffer.get(OFFSET_PTY) & 0xff;
+            mUpdated |= FIELD_PTY;
+        }
+        seq = mBuffer.getInt(OFFSET_SEQ_PS);
+        if (seq != mSeqPs) {
+            mSeqPs = seq;
+            int length = Math.min(PS_SIZE, mBuffer.get(OFFSET_PS_LENGTH) & 0xff);
+            copyOut(OFFSET_PS, length);
+            setPs(mScratch, length);
+        }
+        seq = mBuffer.getInt(OFFSET_SEQ_RT);
+        if (seq != mSeqRt) {
+            mSeqRt = seq;
+            int length = Math.min(RT_SIZE, mBuffer.get(OFFSET_RT_LENGTH) & 0xff);
+            copyOut(OFFSET_RT, length);
+            setRt(mScratch, length);
+        }
+        seq = mBuffer.getInt(OFFSET_SEQ_AF);
+        if (seq != mSeqAf) {
+            mSeqAf = seq;
+            mAfCount = mBuffer.getShort(OFFSET_AF_COUNT);
+            mUpdated |= FIELD_AF;
+        }
+        seq = mBuffer.getInt(OFFSET_SEQ_CT);
+        if (seq != mSeqCt) {
+            mSeqCt = seq;
+            decodeClockTime();
+        }
+        return true;
+    }
+
+    private void decodeClockTime() {
+        int year = mBuffer.getShort(OFFSET_CT_YEAR) & 0xffff;
+        int month = mBuffer.get(OFFSET_CT_MONTH);
+        int day = mBuffer.get(OFFSET_CT_DAY);
+        int hour = mBuffer.get(OFFSET_CT_HOUR);
+        int minute = mBuffer.get(OFFSET_CT_MINUTE);
+        if (year < 1900) {
+            // some drivers keep years since 1900
+            year += 1900;
+        }
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59) {
+            // a group with errors, or no time broadcast yet
+            return;
+        }
+        mClockTimeMs = ((daysSinceEpoch(year, month, day) * 24 + hour) * 60 + minute) * 60000L;
+        mClockOffsetMinutes = mBuffer.get(OFFSET_CT_OFFSET) * 30;
+        mUpdated |= FIELD_CT;
+    }
+
+    // days from 1970-01-01 to the given date of the proleptic Gregorian calendar
+    private static long daysSinceEpoch(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private void copyOut(int offset, int length) {
+        mBuffer.position(offset);
+        mBuffer.get(mScratch, 0, length);
+        mBuffer.clear();
+    }
+
+    private int readFields(boolean wait) {
+        int events;
+        if (wait) {
+            try {
+                events = FmNative.waitRds(-1);
+            } catch (UnsatisfiedLinkError e) {
+                return FmNative.RDS_WAIT_UNSUPPORTED;
+            }
+            if (events < 0) {
+                return events;
+            }
+        } else {
+            events = FmNative.readRds();
+        }
+        return readText(events);
+    }
+
+    // fetch the text fields the events report
+    private int readText(int events) {
+        if ((events & FIELD_PS) != 0) {
+            byte[] ps = FmNative.getPs();
+            if (ps != null) {
+                setPs(ps, Math.min(PS_SIZE, ps.length));
+            }
+        }
+        if ((events & FIELD_RT) != 0) {
+            byte[] rt = FmNative.getLrText();
+            if (rt != null) {
+                setRt(rt, Math.min(RT_SIZE, rt.length));
+            }
+        }
+        return events;
+    }
+
+    private void setPs(byte[] bytes, int length) {
+        mUpdated |= FIELD_PS;
+        if (length == mPsLength && equals(mPsBytes, bytes, length)) {
+            mUnchangedText++;
+            return;
+        }
+        System.arraycopy(bytes, 0, mPsBytes, 0, length);
+        mPsLength = length;
+        mPs = new String(mPsBytes, 0, length).trim();
+        mDecodes++;
+    }
+
+    private void setRt(byte[] bytes, int length) {
+        mUpdated |= FIELD_RT;
+        if (length == mRtLength && equals(mRtBytes, bytes, length)) {
+            mUnchangedText++;
+            return;
+        }
+        System.arraycopy(bytes, 0, mRtBytes, 0, length);
+        mRtLength = length;
+        mRt = new String(mRtBytes, 0, length).trim();
+        mDecodes++;
+    }
+
+    private static boolean equals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return FIELD_* bits of the fields the last read updated
+     */
+    int getUpdated() {
+        return mUpdated;
+    }
+
+    /**
+     * @return program identification, -1 if none was received
+     */
+    int getPi() {
+        return mPi;
+    }
+
+    /**
+     * @return program type, -1 if none was received
+     */
+    int getPty() {
+        return mPty;
+    }
+
+    boolean isTrafficProgram() {
+        return (mFlags & FLAG_TP) != 0;
+    }
+
+    boolean isTrafficAnnouncement() {
+        return (mFlags & FLAG_TA) != 0;
+    }
+
+    int getAfCount() {
+        return mAfCount;
+    }
+
+    /**
+     * @return last clock time broadcast, in ms since the epoch, -1 if none
+     */
+    long getClockTimeMs() {
+        return mClockTimeMs;
+    }
+
+    /**
+     * @return local time offset broadcast with the clock time
+     */
+    int getClockOffsetMinutes() {
+        return mClockOffsetMinutes;
+    }
+
+    String getPs() {
+        return mPs;
+    }
+
+    String getRt() {
+        return mRt;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  RdsSnapshot: native=" + mNative + " reads=" + mReads
+                + " idleReads=" + mIdleReads + " textDecodes=" + mDecodes
+                + " unchangedText=" + mUnchangedText + " pi=" + mPi + " pty=" + mPty);
+    }
+}
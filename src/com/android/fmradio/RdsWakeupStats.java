@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Wakeups of the RDS thread and how quickly events reach the listeners, kept
+ * apart for reading the driver on a timer and for waiting on it, so the two
+ * can be compared on a device. Delivery latency runs from the thread waking
+ * with an event to the listeners being notified. On the timer an event also
+ * waits up to a poll interval before it is seen at all, which is not
+ * measurable from here and reported as the bound it is.
+ */
+class RdsWakeupStats {
+    static final int MODE_STOPPED = 0;
+    static final int MODE_TIMER = 1;
+    static final int MODE_EVENT = 2;
+    private static final String[] MODE_NAMES = { "stopped", "timer", "event" };
+
+    private final long mPollIntervalMs;
+    private int mMode = MODE_STOPPED;
+    private long mModeSinceNs;
+    private final long[] mActiveNs = new long[MODE_NAMES.length];
+    private final long[] mWakeups = new long[MODE_NAMES.length];
+    private final long[] mEvents = new long[MODE_NAMES.length];
+    private final long[] mDeliveryNs = new long[MODE_NAMES.length];
+    private final long[] mMaxDeliveryNs = new long[MODE_NAMES.length];
+
+    RdsWakeupStats(long pollIntervalMs) {
+        mPollIntervalMs = pollIntervalMs;
+    }
+
+    synchronized void setMode(int mode) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (mMode != MODE_STOPPED) {
+            mActiveNs[mMode] += now - mModeSinceNs;
+        }
+        mMode = mode;
+        mModeSinceNs = now;
+    }
+
+    synchronized void onWakeup(int events) {
+        mWakeups[mMode]++;
+        if (events > 0) {
+            mEvents[mMode]++;
+        }
+    }
+
+    /**
+     * @param wokeNs elapsed realtime the thread woke with the events at
+     */
+    synchronized void onDelivered(long wokeNs) {
+        long ns = SystemClock.elapsedRealtimeNanos() - wokeNs;
+        mDeliveryNs[mMode] += ns;
+        if (ns > mMaxDeliveryNs[mMode]) {
+            mMaxDeliveryNs[mMode] = ns;
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  RDS: mode=" + MODE_NAMES[mMode]);
+        long now = SystemClock.elapsedRealtimeNanos();
+        for (int mode = MODE_TIMER; mode <= MODE_EVENT; mode++) {
+            long activeNs = mActiveNs[mode] + (mode == mMode ? now - mModeSinceNs : 0);
+            if (activeNs == 0) {
+                continue;
+            }
+            long events = mEvents[mode];
+            pw.println("    " + MODE_NAMES[mode] + ": activeS=" + activeNs / 1000000000L
+                    + " wakeups=" + mWakeups[mode]
+                    + " wakeupsPerMin=" + mWakeups[mode] * 60000000000L / activeNs
+                    + " events=" + events
+                    + " avgDeliveryUs=" + (events > 0 ? mDeliveryNs[mode] / events / 1000 : 0)
+                    + " maxDeliveryUs=" + mMaxDeliveryNs[mode] / 1000
+                    + " maxDetectionMs=" + (mode == MODE_TIMER ? mPollIntervalMs : 0));
+        }
+    }
+}
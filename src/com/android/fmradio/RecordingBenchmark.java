@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.media.AudioFormat;
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records a minute of synthetic audio through AudioRecorder as fast as it
+ * takes it and reports what it cost. Two runs are offered: each recording
+ * format the device supports at the rendered PCM format, and one recording
+ * format across the PCM formats a device may render (16 bit and float, mono
+ * and stereo, 44.1 and 48 kHz), to see whether a low-end device keeps up.
+ *
+ * Per run: CPU time of the recorder thread, of the feeding thread and of the
+ * whole process, speed as a multiple of real time, depth of the PCM queue in
+ * front of the encoder over the run, muxer write latency, objects allocated
+ * in the process and the bytes written. The feeder waits for room in the
+ * queue rather than letting the overflow policy drop audio, so a format the
+ * device cannot keep up with shows as a speed below 1; a run that lost audio
+ * anyway is reported as failed. The encoders may run in a media
+ * process, their share only shows in the speed. Run with the debug command
+ * "benchmark recording" or "benchmark encode", see DebugCommands.
+ */
+class RecordingBenchmark {
+    private static final String TAG = "RecordingBenchmark";
+    private static final int SECONDS = 60;
+    private static final int CHUNK_MS = 20;
+    // the queue depth is sampled this often, in fed audio
+    private static final int QUEUE_SAMPLE_MS = 500;
+    // points of the queue depth series printed per run
+    private static final int QUEUE_POINTS = 10;
+    // how long the feeder sleeps while the queue is full
+    private static final long FEED_PARK_NS = 500 * 1000;
+    private static final RecordingFormat[] FORMATS = {
+            new RecordingFormat(RecordingFormat.TYPE_AAC, 64000),
+            new RecordingFormat(RecordingFormat.TYPE_AAC, 128000),
+            new RecordingFormat(RecordingFormat.TYPE_AAC, 192000),
+            new RecordingFormat(RecordingFormat.TYPE_OPUS, 64000),
+            new RecordingFormat(RecordingFormat.TYPE_OPUS, 128000),
+            new RecordingFormat(RecordingFormat.TYPE_WAV, 0),
+    };
+    private static final int[] ENCODINGS = {
+            AudioFormat.ENCODING_PCM_16BIT, AudioFormat.ENCODING_PCM_FLOAT };
+    private static final int[] CHANNEL_MASKS = {
+            AudioFormat.CHANNEL_IN_MONO, AudioFormat.CHANNEL_IN_STEREO };
+    private static final int[] SAMPLE_RATES = { 44100, 48000 };
+
+    /**
+     * Compare the recording formats.
+     *
+     * @param dir where the scratch recordings go, they are deleted afterwards
+     * @param input PCM format to record, as rendered
+     */
+    static void run(PrintWriter pw, File dir, AudioFormat input) {
+        pw.println("RecordingBenchmark: " + describe(input) + " seconds=" + SECONDS);
+        for (RecordingFormat format : FORMATS) {
+            if (!format.isSupported(input)) {
+                pw.println("  " + format + ": not supported");
+                continue;
+            }
+            measure(pw, format.toString(), format, input, dir);
+        }
+    }
+
+    /**
+     * Compare the PCM formats recorded in one recording format.
+     */
+    static void runInputFormats(PrintWriter pw, File dir, RecordingFormat format) {
+        pw.println("RecordingBenchmark: " + format + " seconds=" + SECONDS);
+        for (int rate : SAMPLE_RATES) {
+            for (int mask : CHANNEL_MASKS) {
+                for (int encoding : ENCODINGS) {
+                    AudioFormat input = new AudioFormat.Builder()
+                            .setSampleRate(rate)
+                            .setChannelMask(mask)
+                            .setEncoding(encoding)
+                            .build();
+                    if (!format.isSupported(input)) {
+                        pw.println("  " + describe(input) + ": not supported");
+                        continue;
+                    }
+                    measure(pw, describe(input), format, input, dir);
+                }
+            }
+        }
+    }
+
+    private static String describe(AudioFormat input) {
+        return input.getSampleRate() + "Hz"
+                + (input.getChannelCount() == 1 ? " mono" : " stereo")
+                + (input.getEncoding() == AudioFormat.ENCODING_PCM_FLOAT ? " float" : " 16bit");
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void measure(PrintWriter pw, String name, RecordingFormat format,
+            AudioFormat input, File dir) {
+        File file = new File(dir, "benchmark" + format.getExtension());
+        int frameSize = input.getChannelCount()
+                * (input.getEncoding() == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2);
+        int chunkFrames = input.getSampleRate() * CHUNK_MS / 1000;
+        ByteBuffer source = ByteBuffer.allocateDirect(chunkFrames * frameSize)
+                .order(ByteOrder.nativeOrder());
+        fill(source, input);
+        int chunks = SECONDS * 1000 / CHUNK_MS;
+        int[] queueMs = new int[SECONDS * 1000 / QUEUE_SAMPLE_MS];
+        int bytesPerMs = input.getSampleRate() * frameSize / 1000;
+
+        Debug.resetGlobalAllocCount();
+        Debug.startAllocCounting();
+        long wallStart = SystemClock.elapsedRealtimeNanos();
+        long processCpuStart = Process.getElapsedCpuTime();
+        long feedCpuStart = Debug.threadCpuTimeNanos();
+        // the feeder waits for room, the policy only matters if that goes wrong
+        AudioRecorder recorder = new AudioRecorder(input, format, file,
+                PcmRingBuffer.OVERFLOW_BLOCK, 0);
+        recorder.setCallback(new AudioRecorder.Callback() {
+            @Override
+            public void onError(int what) {
+                Log.e(TAG, "recorder error " + what);
+            }
+        });
+        int samples = 0;
+        int chunkBytes = source.capacity();
+        for (int i = 0; i < chunks; i++) {
+            // OVERFLOW_BLOCK gives up after a while, never let it get there
+            while (recorder.getFreeBytes() < chunkBytes && recorder.getQueuedBytes() > 0) {
+                LockSupport.parkNanos(FEED_PARK_NS);
+            }
+            source.clear();
+            recorder.encode(source);
+            if ((i + 1) % (QUEUE_SAMPLE_MS / CHUNK_MS) == 0 && samples < queueMs.length) {
+                queueMs[samples++] = recorder.getQueuedBytes() / bytesPerMs;
+            }
+        }
+        recorder.stopRecording();
+        long feedCpuNs = Debug.threadCpuTimeNanos() - feedCpuStart;
+        long processCpuMs = Process.getElapsedCpuTime() - processCpuStart;
+        long wallNs = SystemClock.elapsedRealtimeNanos() - wallStart;
+        Debug.stopAllocCounting();
+        int allocs = Debug.getGlobalAllocCount();
+
+        long writes = recorder.getWriteCount();
+        long droppedBytes = recorder.getDroppedBytes();
+        pw.println("  " + name + (droppedBytes > 0 ? ": FAILED" : "") + ": realtimeX="
+                + String.format(Locale.US, "%.1f", wallNs > 0 ? SECONDS * 1e9 / wallNs : 0)
+                + " recorderCpuMs=" + recorder.getCpuNanos() / 1000000
+                + " feedCpuMs=" + feedCpuNs / 1000000 + " processCpuMs=" + processCpuMs
+                + " writes=" + writes
+                + " avgWriteUs=" + (writes > 0 ? recorder.getWriteNanos() / writes / 1000 : 0)
+                + " maxWriteUs=" + recorder.getMaxWriteNanos() / 1000
+                + " allocs=" + allocs + " allocsPerSec=" + allocs / SECONDS
+                + " bytesPerMin=" + file.length() * 60 / SECONDS
+                + " droppedBytes=" + droppedBytes);
+        pw.println("    queueMs: " + summarize(queueMs, samples));
+        file.delete();
+    }
+
+    // max and mean, and the max of each of a few stretches of the run
+    private static String summarize(int[] values, int count) {
+        if (count == 0) {
+            return "none";
+        }
+        long sum = 0;
+        int max = 0;
+        for (int i = 0; i < count; i++) {
+            sum += values[i];
+            max = Math.max(max, values[i]);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("max=").append(max).append(" avg=").append(sum / count).append(" [");
+        int points = Math.min(QUEUE_POINTS, count);
+        for (int p = 0; p < points; p++) {
+            int peak = 0;
+            for (int i = p * count / points; i < (p + 1) * count / points; i++) {
+                peak = Math.max(peak, values[i]);
+            }
+            sb.append(p > 0 ? " " : "").append(peak);
+        }
+        return sb.append(']').toString();
+    }
+
+    // 440 Hz and 3 kHz tones, different on each channel
+    private static void fill(ByteBuffer buffer, AudioFormat input) {
+        boolean isFloat = input.getEncoding() == AudioFormat.ENCODING_PCM_FLOAT;
+        int channels = input.getChannelCount();
+        int sampleSize = isFloat ? 4 : 2;
+        int frames = buffer.capacity() / (channels * sampleSize);
+        for (int i = 0; i < frames; i++) {
+            double t = (double) i / input.getSampleRate();
+            for (int c = 0; c < channels; c++) {
+                float sample = c == 0 ? (float) (0.5 * Math.sin(2 * Math.PI * 440 * t))
+                        : (float) (0.3 * Math.sin(2 * Math.PI * 3000 * t));
+                int offset = (i * channels + c) * sampleSize;
+                if (isFloat) {
+                    buffer.putFloat(offset, sample);
+                } else {
+                    buffer.putShort(offset, (short) (sample * 32767));
+                }
+            }
+        }
+    }
+}
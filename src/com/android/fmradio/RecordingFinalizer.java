@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.text.format.DateFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Finishes saved recordings on a worker thread: joins the segments or renames
+ * the file, then adds it to the media store and the FM recordings playlist.
+ * The media store rows go in as one batch, the only other round trips are the
+ * lookups the batch depends on. Jobs run one at a time in submission order.
+ *
+ * Stop-to-saved latency, from the recorder stopping to the recording being
+ * in the media store, is kept for dumpsys along with the worker time.
+ */
+class RecordingFinalizer {
+    private static final String TAG = "RecordingFinalizer";
+
+    /**
+     * Reports finished jobs, on the main thread.
+     */
+    interface Callback {
+        /**
+         * @param job the job finished
+         * @param file where the recording ended up, the job's source if it
+         *            could not be moved into place
+         * @param uri media store entry, null if it could not be added
+         * @param latencyMs time since the recorder stopped
+         */
+        void onRecordingSaved(Job job, File file, Uri uri, long latencyMs);
+    }
+
+    /**
+     * A recording to finish, captured when it is saved.
+     */
+    static final class Job {
+        // file written by the recorder, or placeholder of its segments
+        final File source;
+        final File target;
+        final RecordingFormat format;
+        final long durationMs;
+        // elapsed realtime of the recorder stop and of the save request
+        final long stoppedMs;
+        final long requestedMs;
+
+        Job(File source, File target, RecordingFormat format, long durationMs,
+                long stoppedMs) {
+            this.source = source;
+            this.target = target;
+            this.format = format;
+            this.durationMs = durationMs;
+            this.stoppedMs = stoppedMs;
+            this.requestedMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final Context mContext;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mCallbackHandler = new Handler(Looper.getMainLooper());
+    private Callback mCallback;
+    // submitted and not finished
+    private int mPending;
+
+    // statistics
+    private int mSaved;
+    private int mFailed;
+    private long mLastLatencyMs;
+    private long mMaxLatencyMs;
+    private long mLastWorkMs;
+    private long mMaxWorkMs;
+    private long mLastBatchMs;
+    private int mBatchFallbacks;
+
+    RecordingFinalizer(Context context) {
+        mContext = context.getApplicationContext();
+        mThread = new HandlerThread("RecordingFinalizer");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Queue a job, returns right away.
+     */
+    synchronized void submit(final Job job) {
+        mPending++;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                process(job);
+            }
+        });
+    }
+
+    /**
+     * @return true while jobs are queued or running, their files are in flux
+     */
+    synchronized boolean isBusy() {
+        return mPending > 0;
+    }
+
+    /**
+     * Stop the worker once the queued jobs are done.
+     */
+    void quit() {
+        mThread.quitSafely();
+    }
+
+    private void process(final Job job) {
+        long start = SystemClock.elapsedRealtime();
+        File file = moveIntoPlace(job);
+        Uri uri = addToMediaStore(job, file);
+        if (uri != null) {
+            // scan to update duration
+            MediaScannerConnection.scanFile(mContext, new String[] { file.getPath() },
+                    null, null);
+        }
+        long end = SystemClock.elapsedRealtime();
+        final long latencyMs = end - job.stoppedMs;
+        synchronized (this) {
+            mPending--;
+            if (uri != null) {
+                mSaved++;
+            } else {
+                mFailed++;
+            }
+            mLastLatencyMs = latencyMs;
+            mMaxLatencyMs = Math.max(mMaxLatencyMs, latencyMs);
+            mLastWorkMs = end - start;
+            mMaxWorkMs = Math.max(mMaxWorkMs, mLastWorkMs);
+        }
+        Log.d(TAG, "saved " + file + " in " + (end - start) + "ms, waited "
+                + (start - job.requestedMs) + "ms, " + latencyMs + "ms after stop");
+        final File savedFile = file;
+        final Uri savedUri = uri;
+        mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null) {
+                    mCallback.onRecordingSaved(job, savedFile, savedUri, latencyMs);
+                }
+            }
+        });
+    }
+
+    /**
+     * Join the segments into the target or rename the file to it, and move
+     * the sidecars along.
+     *
+     * @return the file the recording ended up in
+     */
+    private static File moveIntoPlace(Job job) {
+        File file = job.source;
+        List<File> segments = SegmentJoiner.findSegments(job.source);
+        if (!segments.isEmpty()) {
+            // the recording file is only a placeholder, the audio is in the segments
+            if (SegmentJoiner.join(segments, job.target, job.format.getMuxerFormat())) {
+                if (!job.target.equals(job.source)) {
+                    job.source.delete();
+                }
+                SegmentJoiner.deleteSegments(segments);
+                file = job.target;
+            } else {
+                Log.e(TAG, "failed to join " + segments.size() + " segments of " + job.source);
+            }
+        } else if (job.source.renameTo(job.target)) {
+            file = job.target;
+        }
+        if (!file.equals(job.source)) {
+            File index = RecordingIndex.getFile(job.source);
+            if (index.exists() && !index.renameTo(RecordingIndex.getFile(file))) {
+                index.delete();
+            }
+            TrackSplitter.move(job.source, file);
+        }
+        return file;
+    }
+
+    private Uri addToMediaStore(Job job, File file) {
+        long curTime = System.currentTimeMillis();
+        Date date = new Date(curTime);
+        java.text.DateFormat dateFormatter = DateFormat.getDateFormat(mContext);
+        java.text.DateFormat timeFormatter = DateFormat.getTimeFormat(mContext);
+        String title = file.getName();
+        int index = title.lastIndexOf(job.format.getExtension());
+        if (index > 0) {
+            title = title.substring(0, index);
+        }
+        String artist = FmRecorder.FM_RECORD_FOLDER + " " + dateFormatter.format(date) + " "
+                + timeFormatter.format(date);
+
+        final int size = 9;
+        ContentValues cv = new ContentValues(size);
+        cv.put(MediaStore.Audio.Media.IS_MUSIC, 1);
+        cv.put(MediaStore.Audio.Media.TITLE, title);
+        cv.put(MediaStore.Audio.Media.DATA, file.getAbsolutePath());
+        final int oneSecond = 1000;
+        cv.put(MediaStore.Audio.Media.DATE_ADDED, (int) (curTime / oneSecond));
+        cv.put(MediaStore.Audio.Media.DATE_MODIFIED, (int) (file.lastModified() / oneSecond));
+        cv.put(MediaStore.Audio.Media.MIME_TYPE, job.format.getMimeType());
+        cv.put(MediaStore.Audio.Media.ARTIST, artist);
+        cv.put(MediaStore.Audio.Media.ALBUM, FmRecorder.RECORDING_FILE_SOURCE);
+        cv.put(MediaStore.Audio.Media.DURATION, job.durationMs);
+
+        ContentResolver resolver = mContext.getContentResolver();
+        long audioId = getAudioId(resolver, file);
+        int playlistId = FmRecorder.getPlaylistId(mContext);
+        if (playlistId < 0) {
+            // play list not exist, create FM Recording play list, once per device
+            playlistId = createPlaylist(resolver);
+        }
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(2);
+        if (audioId >= 0) {
+            // exist in database, just update it
+            ops.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, audioId))
+                    .withValues(cv)
+                    .build());
+        } else {
+            ops.add(ContentProviderOperation.newInsert(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI)
+                    .withValues(cv)
+                    .build());
+        }
+        if (playlistId >= 0) {
+            ContentProviderOperation.Builder member = ContentProviderOperation.newInsert(
+                    MediaStore.Audio.Playlists.Members.getContentUri("external", playlistId))
+                    // the one row with this path, what the order always came out as
+                    .withValue(MediaStore.Audio.Playlists.Members.PLAY_ORDER, 1);
+            if (audioId >= 0) {
+                member.withValue(MediaStore.Audio.Playlists.Members.AUDIO_ID, audioId);
+            } else {
+                member.withValueBackReference(MediaStore.Audio.Playlists.Members.AUDIO_ID, 0);
+            }
+            ops.add(member.build());
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        Uri uri = applyBatch(resolver, ops);
+        if (uri == null && ops.size() > 1) {
+            // keep the recording in the media store even if the playlist refuses it
+            synchronized (this) {
+                mBatchFallbacks++;
+            }
+            uri = applyBatch(resolver, new ArrayList<>(ops.subList(0, 1)));
+        }
+        synchronized (this) {
+            mLastBatchMs = SystemClock.elapsedRealtime() - start;
+        }
+        if (uri != null && audioId >= 0) {
+            uri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, audioId);
+        }
+        return uri;
+    }
+
+    /**
+     * @return the uri of the inserted row, or the update uri, null on failure
+     */
+    private static Uri applyBatch(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> ops) {
+        try {
+            ContentProviderResult[] results = resolver.applyBatch(MediaStore.AUTHORITY, ops);
+            return results[0].uri != null ? results[0].uri : ops.get(0).getUri();
+        } catch (RemoteException | OperationApplicationException | SecurityException e) {
+            Log.w(TAG, "media store batch of " + ops.size() + " failed", e);
+            return null;
+        }
+    }
+
+    private static long getAudioId(ContentResolver resolver, File file) {
+        Cursor cursor = resolver.query(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                new String[] { MediaStore.Audio.Media._ID },
+                MediaStore.Audio.Media.DATA + "=?",
+                new String[] { file.getPath() },
+                null);
+        long id = -1;
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    id = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return id;
+    }
+
+    private static int createPlaylist(ContentResolver resolver) {
+        final int size = 1;
+        ContentValues cv = new ContentValues(size);
+        cv.put(MediaStore.Audio.Playlists.NAME, FmRecorder.RECORDING_FILE_SOURCE);
+        Uri newPlaylistUri = resolver.insert(
+                MediaStore.Audio.Playlists.getContentUri("external"), cv);
+        if (newPlaylistUri == null) {
+            Log.d(TAG, "createPlaylist, create playlist failed");
+            return -1;
+        }
+        return Integer.valueOf(newPlaylistUri.getLastPathSegment());
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  RecordingFinalizer: pending=" + mPending + " saved=" + mSaved
+                + " failed=" + mFailed + " stopToSavedMs=" + mLastLatencyMs
+                + " maxStopToSavedMs=" + mMaxLatencyMs + " workMs=" + mLastWorkMs
+                + " maxWorkMs=" + mMaxWorkMs + " batchMs=" + mLastBatchMs
+                + " batchFallbacks=" + mBatchFallbacks);
+    }
+}
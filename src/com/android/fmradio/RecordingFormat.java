@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.media.AudioFormat;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+/**
+ * What a recording is written as: AAC in MPEG-4, Opus in Ogg, or PCM in a
+ * WAV file. The encoded formats go through MediaCodec and MediaMuxer, WAV is
+ * streamed to the file as captured, see {@link WavWriter}.
+ */
+class RecordingFormat {
+    static final int TYPE_AAC = 0;
+    static final int TYPE_OPUS = 1;
+    static final int TYPE_WAV = 2;
+    private static final String[] TYPE_NAMES = { "aac", "opus", "wav" };
+    // kept from before formats were selectable, recordings keep their names
+    private static final String[] EXTENSIONS = { FmRecorder.RECORDING_FILE_EXTENSION, ".ogg",
+            ".wav" };
+    private static final String[] MIME_TYPES = { "audio/3gpp", "audio/ogg", "audio/x-wav" };
+    // file types of a CUE sheet's FILE line, players take MP4 and OGG too
+    private static final String[] CUE_FILE_TYPES = { "MP4", "OGG", "WAVE" };
+
+    static final int DEFAULT_BIT_RATE = 128000;
+    static final RecordingFormat DEFAULT = new RecordingFormat(TYPE_AAC, DEFAULT_BIT_RATE);
+
+    final int type;
+    // encoder bit rate, unused for WAV
+    final int bitRate;
+
+    RecordingFormat(int type, int bitRate) {
+        this.type = type;
+        this.bitRate = bitRate;
+    }
+
+    /**
+     * @param name one of "aac", "opus" and "wav"
+     * @return the format, null if the name is unknown
+     */
+    static RecordingFormat fromName(String name, int bitRate) {
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            if (TYPE_NAMES[i].equals(name)) {
+                return new RecordingFormat(i, bitRate);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the type of a recording file by its extension, -1 if unknown
+     */
+    static int getTypeOfFile(String path) {
+        for (int i = 0; i < EXTENSIONS.length; i++) {
+            if (path.endsWith(EXTENSIONS[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the MIME type of a recording file by its extension
+     */
+    static String getMimeTypeOfFile(String path) {
+        int type = getTypeOfFile(path);
+        return MIME_TYPES[type >= 0 ? type : TYPE_AAC];
+    }
+
+    /**
+     * @return the CUE sheet file type of a recording file by its extension
+     */
+    static String getCueFileTypeOfFile(String path) {
+        int type = getTypeOfFile(path);
+        return type >= 0 ? CUE_FILE_TYPES[type] : "BINARY";
+    }
+
+    static String getExtension(int type) {
+        return EXTENSIONS[type];
+    }
+
+    static int getMuxerFormat(int type) {
+        return type == TYPE_OPUS ? MediaMuxer.OutputFormat.MUXER_OUTPUT_OGG
+                : MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4;
+    }
+
+    boolean isEncoded() {
+        return type != TYPE_WAV;
+    }
+
+    String getExtension() {
+        return EXTENSIONS[type];
+    }
+
+    String getMimeType() {
+        return MIME_TYPES[type];
+    }
+
+    int getMuxerFormat() {
+        return getMuxerFormat(type);
+    }
+
+    String getCodecMime() {
+        return type == TYPE_OPUS ? MediaFormat.MIMETYPE_AUDIO_OPUS
+                : MediaFormat.MIMETYPE_AUDIO_AAC;
+    }
+
+    /**
+     * @return PCM frames per encoded frame, Opus is assumed at 20 ms of 48 kHz
+     */
+    int getFrameSamples() {
+        return type == TYPE_OPUS ? 960 : 1024;
+    }
+
+    MediaFormat createEncoderFormat(AudioFormat input) {
+        MediaFormat format = MediaFormat.createAudioFormat(getCodecMime(),
+                input.getSampleRate(), input.getChannelCount());
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        if (type == TYPE_AAC) {
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                    MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        }
+        if (input.getEncoding() == AudioFormat.ENCODING_PCM_FLOAT) {
+            // feed float PCM to the encoder as is, no conversion back to 16 bit
+            format.setInteger(MediaFormat.KEY_PCM_ENCODING, AudioFormat.ENCODING_PCM_FLOAT);
+        }
+        return format;
+    }
+
+    /**
+     * Check that the device can record this format from {@code input}. Opus
+     * needs an encoder and the Ogg muxer, both new in Q, and the encoder only
+     * takes some sample rates.
+     */
+    boolean isSupported(AudioFormat input) {
+        if (type == TYPE_WAV) {
+            return true;
+        }
+        if (type == TYPE_OPUS && Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return false;
+        }
+        MediaFormat format = createEncoderFormat(input);
+        // the lookup does not know about the PCM encoding
+        format.removeKey(MediaFormat.KEY_PCM_ENCODING);
+        return new MediaCodecList(MediaCodecList.REGULAR_CODECS)
+                .findEncoderForFormat(format) != null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RecordingFormat)) {
+            return false;
+        }
+        RecordingFormat other = (RecordingFormat) o;
+        return type == other.type && (type == TYPE_WAV || bitRate == other.bitRate);
+    }
+
+    @Override
+    public int hashCode() {
+        return type == TYPE_WAV ? type : type * 31 + bitRate;
+    }
+
+    @Override
+    public String toString() {
+        return type == TYPE_WAV ? TYPE_NAMES[type] : TYPE_NAMES[type] + "@" + bitRate / 1000 + "k";
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Navigation sidecar written next to a recording ({@code name.idx}) while it
+ * is encoded, so a player can draw the waveform and seek without decoding.
+ * Levels come from the PCM on its way into the encoder, seek points from the
+ * frames on their way into the file; nothing is decoded.
+ *
+ * Layout, little endian: a 24 byte header
+ * <pre>
+ *   "FMIX", u16 version, u16 RecordingFormat type, u32 sample rate,
+ *   u16 channels, u16 reserved, s32 start of entry 0 relative to the start of
+ *   the recording in ms (0 or negative), u32 entry count (0 if the recording
+ *   was never closed, then count by file length)
+ * </pre>
+ * followed by one 16 byte entry per second of audio
+ * <pre>
+ *   u16 peak, u16 RMS (both in 1/65535 of full scale),
+ *   u32 index of the first frame at or after the second,
+ *   u64 byte offset of that frame in the encoded stream, see below
+ * </pre>
+ * For AAC and Opus a frame is an encoded frame and the offset is the sum of
+ * the sizes of the frames before it, not a file position: the container is
+ * written by MediaMuxer and its framing is not seen here. In an MP4 the frames
+ * lie back to back in the media data, so the offset is exact relative to its
+ * start, which the player takes from the file. In an Ogg file every page adds
+ * a header and a segment table in between, so the file position lies further
+ * on by a growing amount; the offset is only an approximate position there,
+ * to seek near and resync on the next page. For WAV a frame is a PCM frame
+ * and the offset is exact, counted from the end of the header.
+ *
+ * Levels are kept for the last seconds whether or not a file is written, so
+ * a recording that starts with buffered history gets levels for it too. Only
+ * used on the recorder thread.
+ */
+class RecordingIndex {
+    private static final String TAG = "RecordingIndex";
+
+    static final String SUFFIX = ".idx";
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int COUNT_OFFSET = 20;
+    private static final int ENTRY_SIZE = 16;
+    // levels kept beyond the history, covers the encoder delay
+    private static final int SPARE_SECONDS = 4;
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final boolean mIsFloat;
+    private final int mFormatType;
+
+    // levels of the last completed seconds, by absolute second modulo length
+    private final char[] mPeak;
+    private final char[] mRms;
+    // input side: seconds completed and the running second
+    private long mLevelSeconds;
+    private float mSecondPeak;
+    private double mSecondSquares;
+    private int mSecondSamples;
+
+    // output side, while a file is written
+    private File mFile;
+    private FileOutputStream mStream;
+    private FileChannel mChannel;
+    private final ByteBuffer mEntry = ByteBuffer.allocate(ENTRY_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private boolean mStarted;
+    private long mOriginFrame;
+    // absolute seconds: next entry to write, and seconds with a known seek point
+    private long mNextSecond;
+    private long mSeekSeconds;
+    private final long[] mSeekFrame;
+    private final long[] mSeekOffset;
+    // frames and bytes written to the file so far
+    private long mFrames;
+    private long mBytes;
+    private int mEntries;
+
+    // statistics
+    private long mFilesWritten;
+    private long mMissingLevels;
+
+    /**
+     * @param historySeconds how far back levels must reach when output starts
+     */
+    RecordingIndex(int sampleRate, int channels, boolean isFloat, int formatType,
+            int historySeconds) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mIsFloat = isFloat;
+        mFormatType = formatType;
+        int seconds = historySeconds + SPARE_SECONDS;
+        mPeak = new char[seconds];
+        mRms = new char[seconds];
+        mSeekFrame = new long[seconds];
+        mSeekOffset = new long[seconds];
+    }
+
+    static File getFile(File recording) {
+        return new File(recording.getPath() + SUFFIX);
+    }
+
+    /**
+     * Input side: account the PCM about to be encoded, read from
+     * {@code buffer} at {@code offset} in native order.
+     */
+    void addPcm(ByteBuffer buffer, int offset, int length) {
+        if (buffer.order() != ByteOrder.nativeOrder()) {
+            buffer = buffer.duplicate().order(ByteOrder.nativeOrder());
+        }
+        int sampleSize = mIsFloat ? 4 : 2;
+        int samples = length / sampleSize;
+        int samplesPerSecond = mSampleRate * mChannels;
+        for (int i = 0; i < samples; i++) {
+            int position = offset + i * sampleSize;
+            float sample = mIsFloat ? buffer.getFloat(position)
+                    : buffer.getShort(position) / 32768f;
+            float magnitude = Math.abs(sample);
+            if (magnitude > mSecondPeak) {
+                mSecondPeak = magnitude;
+            }
+            mSecondSquares += sample * sample;
+            if (++mSecondSamples == samplesPerSecond) {
+                completeSecond();
+            }
+        }
+        flush();
+    }
+
+    private void completeSecond() {
+        int i = (int) (mLevelSeconds % mPeak.length);
+        mPeak[i] = toFraction(mSecondPeak);
+        mRms[i] = getSecondRms();
+        mLevelSeconds++;
+        mSecondPeak = 0;
+        mSecondSquares = 0;
+        mSecondSamples = 0;
+    }
+
+    private char getSecondRms() {
+        return mSecondSamples > 0
+                ? toFraction((float) Math.sqrt(mSecondSquares / mSecondSamples)) : 0;
+    }
+
+    private static char toFraction(float level) {
+        return (char) Math.round(Math.min(1f, level) * 65535);
+    }
+
+    /**
+     * Start writing the sidecar of {@code recording}. Entries start at the
+     * second of the first frame passed to {@link #addEncodedFrame} or
+     * {@link #addPcmFrames}.
+     *
+     * @return false if the file could not be created, the recording goes on
+     */
+    boolean open(File recording) {
+        close();
+        File file = getFile(recording);
+        try {
+            mStream = new FileOutputStream(file);
+        } catch (IOException e) {
+            Log.w(TAG, "failed creating " + file, e);
+            return false;
+        }
+        mFile = file;
+        mChannel = mStream.getChannel();
+        mStarted = false;
+        mFrames = 0;
+        mBytes = 0;
+        mEntries = 0;
+        mFilesWritten++;
+        return true;
+    }
+
+    private void start(long originFrame) {
+        mStarted = true;
+        mOriginFrame = originFrame;
+        mNextSecond = originFrame / mSampleRate;
+        mSeekSeconds = mNextSecond;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] { 'F', 'M', 'I', 'X' });
+        header.putShort((short) VERSION);
+        header.putShort((short) mFormatType);
+        header.putInt(mSampleRate);
+        header.putShort((short) mChannels);
+        header.putShort((short) 0);
+        header.putInt((int) ((mNextSecond * mSampleRate - originFrame) * 1000 / mSampleRate));
+        header.putInt(0);
+        header.flip();
+        write(header);
+    }
+
+    /**
+     * Output side: an encoded frame was written to the recording.
+     */
+    void addEncodedFrame(long presentationTimeUs, int size) {
+        if (mChannel == null) {
+            return;
+        }
+        long frame = presentationTimeUs * mSampleRate / 1000000;
+        if (!mStarted) {
+            start(frame);
+        }
+        // every second that began by now starts at this frame
+        while (mSeekSeconds * mSampleRate <= frame) {
+            setSeekPoint(mFrames, mBytes);
+        }
+        mFrames++;
+        mBytes += size;
+        flush();
+    }
+
+    /**
+     * Output side, WAV: PCM frames were written to the recording.
+     *
+     * @param firstFrame input frame number of the first one
+     */
+    void addPcmFrames(long firstFrame, int frames) {
+        if (mChannel == null) {
+            return;
+        }
+        if (!mStarted) {
+            start(firstFrame);
+        }
+        int frameSize = mChannels * (mIsFloat ? 4 : 2);
+        long end = firstFrame + frames;
+        while (mSeekSeconds * mSampleRate < end) {
+            long fileFrame = Math.max(0, mSeekSeconds * mSampleRate - mOriginFrame);
+            setSeekPoint(fileFrame, fileFrame * frameSize);
+        }
+        mFrames += frames;
+        mBytes += (long) frames * frameSize;
+        flush();
+    }
+
+    private void setSeekPoint(long frame, long offset) {
+        int i = (int) (mSeekSeconds % mSeekFrame.length);
+        mSeekFrame[i] = frame;
+        mSeekOffset[i] = offset;
+        mSeekSeconds++;
+    }
+
+    // write the entries that have both their level and their seek point
+    private void flush() {
+        if (!mStarted || mChannel == null) {
+            return;
+        }
+        long ready = Math.min(mSeekSeconds, mLevelSeconds);
+        // a failed write closes the file on the way
+        while (mChannel != null && mNextSecond < ready) {
+            writeEntry(mNextSecond);
+        }
+    }
+
+    private void writeEntry(long second) {
+        char p = 0;
+        char r = 0;
+        if (second < mLevelSeconds && mLevelSeconds - second <= mPeak.length) {
+            int i = (int) (second % mPeak.length);
+            p = mPeak[i];
+            r = mRms[i];
+        } else if (second == mLevelSeconds) {
+            // the running second, at the end of the recording
+            p = toFraction(mSecondPeak);
+            r = getSecondRms();
+        } else {
+            mMissingLevels++;
+        }
+        long frame = mFrames;
+        long offset = mBytes;
+        if (second < mSeekSeconds && mSeekSeconds - second <= mSeekFrame.length) {
+            int i = (int) (second % mSeekFrame.length);
+            frame = mSeekFrame[i];
+            offset = mSeekOffset[i];
+        }
+        mEntry.clear();
+        mEntry.putShort((short) p);
+        mEntry.putShort((short) r);
+        mEntry.putInt((int) frame);
+        mEntry.putLong(offset);
+        mEntry.flip();
+        write(mEntry);
+        mEntries++;
+        mNextSecond = second + 1;
+    }
+
+    private void write(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "write failed, index dropped", e);
+            closeStream();
+        }
+    }
+
+    /**
+     * Write the remaining entries and the entry count, and close the file.
+     */
+    void close() {
+        if (mChannel == null) {
+            return;
+        }
+        if (!mStarted) {
+            // nothing was recorded
+            closeStream();
+            mFile.delete();
+            return;
+        }
+        while (mChannel != null && mNextSecond < mSeekSeconds) {
+            writeEntry(mNextSecond);
+        }
+        if (mChannel != null) {
+            ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            count.putInt(0, mEntries);
+            try {
+                mChannel.write(count, COUNT_OFFSET);
+            } catch (IOException e) {
+                Log.w(TAG, "failed writing the entry count", e);
+            }
+        }
+        closeStream();
+    }
+
+    private void closeStream() {
+        if (mStream != null) {
+            try {
+                mStream.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close failed", e);
+            }
+        }
+        mStream = null;
+        mChannel = null;
+        mStarted = false;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  RecordingIndex: levelSeconds=" + mLevelSeconds
+                + " writing=" + (mChannel != null) + " entries=" + mEntries
+                + " bytes=" + (mEntries > 0 ? HEADER_SIZE + mEntries * ENTRY_SIZE : 0)
+                + " files=" + mFilesWritten + " missingLevels=" + mMissingLevels);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent list of scheduled recordings and the alarm that wakes
+ * {@link FmService} for the next one.
+ *
+ * The alarm fires a warm-up lead before the job starts so the tuner is
+ * powered, tuned and rendering by the time the recorder is started. The lead
+ * is the configured minimum or twice the slowest warm-up measured so far,
+ * whichever is longer. For every job the difference between the scheduled and
+ * the actual recorder start is kept so the timing can be checked.
+ */
+class RecordingScheduler {
+    private static final String TAG = "RecordingScheduler";
+
+    static final String ACTION_WARM_UP = "fmradio.scheduled.warmup";
+    static final String EXTRA_JOB_ID = "job_id";
+
+    private static final String PREFS_NAME = "scheduled_recordings";
+    private static final String KEY_JOB_PREFIX = "job_";
+    private static final String KEY_NEXT_ID = "next_id";
+    private static final String KEY_SLOWEST_WARM_UP = "slowest_warm_up_ms";
+    private static final String KEY_LOG = "log";
+    // finished jobs kept in the log
+    private static final int LOG_SIZE = 16;
+
+    /**
+     * A recording job, times are wall clock.
+     */
+    static final class Job implements Comparable<Job> {
+        final int id;
+        final int station;
+        final long startMs;
+        final long durationMs;
+
+        Job(int id, int station, long startMs, long durationMs) {
+            this.id = id;
+            this.station = station;
+            this.startMs = startMs;
+            this.durationMs = durationMs;
+        }
+
+        long getEndMs() {
+            return startMs + durationMs;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            return Long.compare(startMs, other.startMs);
+        }
+
+        @Override
+        public String toString() {
+            return "#" + id + " " + FmUtils.formatStation(station) + " at " + startMs
+                    + " for " + durationMs / 1000 + "s";
+        }
+    }
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final AlarmManager mAlarmManager;
+    private final long mMinLeadMs;
+    // job the service is warming up or recording, not armed again
+    private int mActiveId;
+
+    /**
+     * @param minLeadMs shortest warm-up lead, used until warm-ups were measured
+     */
+    RecordingScheduler(Context context, long minLeadMs) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mAlarmManager = context.getSystemService(AlarmManager.class);
+        mMinLeadMs = minLeadMs;
+    }
+
+    /**
+     * Add a job and rearm the alarm.
+     *
+     * @param station station in the units of {@link FmUtils#computeStation}
+     * @return the job id
+     */
+    synchronized int schedule(int station, long startMs, long durationMs) {
+        int id = mPrefs.getInt(KEY_NEXT_ID, 1);
+        Job job = new Job(id, station, startMs, durationMs);
+        mPrefs.edit()
+                .putInt(KEY_NEXT_ID, id + 1)
+                .putString(KEY_JOB_PREFIX + id, station + "," + startMs + "," + durationMs)
+                .apply();
+        Log.d(TAG, "scheduled " + job);
+        arm();
+        return id;
+    }
+
+    /**
+     * Remove a job, whether it ran or not, and rearm the alarm.
+     */
+    synchronized void cancel(int id) {
+        mPrefs.edit().remove(KEY_JOB_PREFIX + id).apply();
+        arm();
+    }
+
+    /**
+     * Take a job out of the alarm rotation while it runs.
+     *
+     * @return the job, null if it does not exist (anymore)
+     */
+    synchronized Job activate(int id) {
+        Job job = parse(id, mPrefs.getString(KEY_JOB_PREFIX + id, null));
+        if (job != null) {
+            mActiveId = id;
+            arm();
+        }
+        return job;
+    }
+
+    /**
+     * @return all jobs, earliest first
+     */
+    synchronized List<Job> getJobs() {
+        List<Job> jobs = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(KEY_JOB_PREFIX) || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            try {
+                int id = Integer.parseInt(key.substring(KEY_JOB_PREFIX.length()));
+                Job job = parse(id, (String) entry.getValue());
+                if (job != null) {
+                    jobs.add(job);
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "ignoring " + key);
+            }
+        }
+        Collections.sort(jobs);
+        return jobs;
+    }
+
+    private static Job parse(int id, String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] fields = value.split(",");
+        if (fields.length != 3) {
+            return null;
+        }
+        try {
+            return new Job(id, Integer.parseInt(fields[0]), Long.parseLong(fields[1]),
+                    Long.parseLong(fields[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return how long before a job the service is woken
+     */
+    long getLeadMs() {
+        return Math.max(mMinLeadMs, 2 * mPrefs.getLong(KEY_SLOWEST_WARM_UP, 0));
+    }
+
+    /**
+     * Set the alarm for the earliest job that has not ended yet, dropping the
+     * ones that ended while nothing could run them (e.g. the phone was off).
+     */
+    synchronized void arm() {
+        long now = System.currentTimeMillis();
+        Job next = null;
+        for (Job job : getJobs()) {
+            if (job.id == mActiveId) {
+                continue;
+            }
+            if (job.getEndMs() <= now) {
+                Log.w(TAG, "missed " + job);
+                log(job, "missed", 0, 0);
+                mPrefs.edit().remove(KEY_JOB_PREFIX + job.id).apply();
+            } else if (next == null) {
+                next = job;
+            }
+        }
+        PendingIntent intent = getWarmUpIntent(next != null ? next.id : 0);
+        if (next == null) {
+            mAlarmManager.cancel(intent);
+            return;
+        }
+        long wakeMs = next.startMs - getLeadMs();
+        mAlarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, wakeMs, intent);
+        Log.d(TAG, "next " + next + ", waking at " + wakeMs);
+    }
+
+    private PendingIntent getWarmUpIntent(int id) {
+        Intent intent = new Intent(ACTION_WARM_UP);
+        intent.setClass(mContext, FmService.class);
+        intent.putExtra(EXTRA_JOB_ID, id);
+        // one alarm at a time, the extra is replaced when rearming
+        return PendingIntent.getForegroundService(mContext, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    /**
+     * Remember how long tuning up to the first audio took, it lengthens the
+     * lead of later jobs if it is the slowest so far.
+     */
+    void onWarmedUp(Job job, long warmUpMs) {
+        Log.d(TAG, "warmed up for #" + job.id + " in " + warmUpMs + "ms");
+        if (warmUpMs > mPrefs.getLong(KEY_SLOWEST_WARM_UP, 0)) {
+            mPrefs.edit().putLong(KEY_SLOWEST_WARM_UP, warmUpMs).apply();
+        }
+    }
+
+    /**
+     * Record how a job went and drop it from the schedule.
+     *
+     * @param result short outcome, e.g. "recorded" or why it failed
+     * @param skewMs actual minus scheduled recorder start
+     * @param warmUpMs time from power up to the first audio, 0 if the radio was on
+     */
+    synchronized void onFinished(Job job, String result, long skewMs, long warmUpMs) {
+        Log.i(TAG, job + " " + result + ", start skew " + skewMs + "ms");
+        log(job, result, skewMs, warmUpMs);
+        if (mActiveId == job.id) {
+            mActiveId = 0;
+        }
+        cancel(job.id);
+    }
+
+    private void log(Job job, String result, long skewMs, long warmUpMs) {
+        String line = job.id + " " + FmUtils.formatStation(job.station) + " start=" + job.startMs
+                + " " + result + " skewMs=" + skewMs + " warmUpMs=" + warmUpMs;
+        String log = mPrefs.getString(KEY_LOG, "");
+        String[] lines = log.isEmpty() ? new String[0] : log.split("\n");
+        StringBuilder sb = new StringBuilder();
+        for (int i = Math.max(0, lines.length - LOG_SIZE + 1); i < lines.length; i++) {
+            sb.append(lines[i]).append('\n');
+        }
+        sb.append(line);
+        mPrefs.edit().putString(KEY_LOG, sb.toString()).apply();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  RecordingScheduler: leadMs=" + getLeadMs() + " slowestWarmUpMs="
+                + mPrefs.getLong(KEY_SLOWEST_WARM_UP, 0) + " active=" + mActiveId);
+        for (Job job : getJobs()) {
+            pw.println("    pending " + job);
+        }
+        String log = mPrefs.getString(KEY_LOG, "");
+        if (!log.isEmpty()) {
+            for (String line : log.split("\n")) {
+                pw.println("    " + line);
+            }
+        }
+    }
+}
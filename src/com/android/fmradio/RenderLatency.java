@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+
+import java.io.PrintWriter;
+
+/**
+ * Measures tuner-to-speaker latency of the software render path. Both ends
+ * are timestamped by the audio framework: the age of the newest captured
+ * frame when the render thread gets it, plus the time until the newest
+ * written frame is presented by the AudioTrack.
+ *
+ * Only the render thread calls the update methods, readers get the last
+ * smoothed value.
+ */
+class RenderLatency {
+    // how often timestamps are queried
+    private static final long SAMPLE_INTERVAL_NS = 500 * 1000 * 1000;
+    private static final long NS_PER_SEC = 1000 * 1000 * 1000;
+
+    private final AudioTimestamp mRecordTimestamp = new AudioTimestamp();
+    private final AudioTimestamp mTrackTimestamp = new AudioTimestamp();
+    private int mSampleRate;
+    private long mFramesRead;
+    private long mFramesWritten;
+    private long mNextSampleNs;
+
+    private volatile int mLatencyMs = -1;
+    private volatile int mMinLatencyMs = -1;
+    private volatile int mMaxLatencyMs = -1;
+
+    /**
+     * Start counting frames again, called whenever capture and playback
+     * (re)start since their frame positions restart as well.
+     */
+    void reset(int sampleRate) {
+        mSampleRate = sampleRate;
+        mFramesRead = 0;
+        mFramesWritten = 0;
+        mNextSampleNs = 0;
+        mLatencyMs = -1;
+    }
+
+    void onRead(int frames) {
+        mFramesRead += frames;
+    }
+
+    void onWritten(int frames) {
+        mFramesWritten += frames;
+    }
+
+    /**
+     * Take a measurement if the sample interval elapsed.
+     */
+    void update(AudioRecord record, AudioTrack track) {
+        long now = System.nanoTime();
+        if (now < mNextSampleNs || mSampleRate <= 0) {
+            return;
+        }
+        mNextSampleNs = now + SAMPLE_INTERVAL_NS;
+
+        if (record.getTimestamp(mRecordTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC)
+                != AudioRecord.SUCCESS) {
+            return;
+        }
+        if (!track.getTimestamp(mTrackTimestamp)) {
+            return;
+        }
+        // when the newest frame we read was captured
+        long capturedNs = mRecordTimestamp.nanoTime
+                + (mFramesRead - mRecordTimestamp.framePosition) * NS_PER_SEC / mSampleRate;
+        // when the newest frame we wrote will be heard
+        long presentedNs = mTrackTimestamp.nanoTime
+                + (mFramesWritten - mTrackTimestamp.framePosition) * NS_PER_SEC / mSampleRate;
+        int latencyMs = (int) ((presentedNs - capturedNs) / (1000 * 1000));
+        if (latencyMs < 0) {
+            return;
+        }
+
+        int last = mLatencyMs;
+        // light smoothing, timestamps jitter by a burst or so
+        mLatencyMs = last < 0 ? latencyMs : (last * 3 + latencyMs) / 4;
+        if (mMinLatencyMs < 0 || latencyMs < mMinLatencyMs) {
+            mMinLatencyMs = latencyMs;
+        }
+        if (latencyMs > mMaxLatencyMs) {
+            mMaxLatencyMs = latencyMs;
+        }
+    }
+
+    /**
+     * @return smoothed capture-to-playback latency, -1 if not measured yet
+     */
+    int getLatencyMs() {
+        return mLatencyMs;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  RenderLatency: latencyMs=" + mLatencyMs + " min=" + mMinLatencyMs
+                + " max=" + mMaxLatencyMs);
+    }
+}
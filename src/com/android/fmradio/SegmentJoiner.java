@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Segment files of a segmented recording and how to put them back together.
+ *
+ * A segmented recording of {@code name} is written as {@code name.part0},
+ * {@code name.part1}, ..., each a complete MPEG-4 (or Ogg) file whose
+ * timestamps start at zero. Joining copies the encoded samples into one file
+ * with shifted timestamps, no transcoding involved. A segment that cannot be
+ * parsed (the one being written when the process died) is skipped.
+ */
+class SegmentJoiner {
+    private static final String TAG = "SegmentJoiner";
+
+    static final String SEGMENT_SUFFIX = ".part";
+    // used when a segment does not say how large its samples are
+    private static final int DEFAULT_SAMPLE_SIZE = 64 * 1024;
+    // frame length of the encoders, for a segment holding a single sample
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final long OPUS_FRAME_US = 20000;
+
+    private SegmentJoiner() {
+    }
+
+    static File getSegmentFile(File recording, int index) {
+        return new File(recording.getPath() + SEGMENT_SUFFIX + index);
+    }
+
+    /**
+     * @return the segment files of {@code recording} on disk, in order
+     */
+    static List<File> findSegments(File recording) {
+        List<File> segments = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            File segment = getSegmentFile(recording, i);
+            if (!segment.exists()) {
+                return segments;
+            }
+            segments.add(segment);
+        }
+    }
+
+    static void deleteSegments(List<File> segments) {
+        for (File segment : segments) {
+            if (!segment.delete()) {
+                Log.w(TAG, "failed to delete " + segment);
+            }
+        }
+    }
+
+    /**
+     * Concatenate segments into {@code target}, which is overwritten. The
+     * segments are left in place.
+     *
+     * @param outputFormat MediaMuxer output format of the segments
+     * @return true if at least one segment was copied
+     */
+    static boolean join(List<File> segments, File target, int outputFormat) {
+        if (segments.size() == 1) {
+            // nothing to concatenate
+            return segments.get(0).renameTo(target);
+        }
+
+        long startNs = System.nanoTime();
+        MediaMuxer muxer = null;
+        int track = -1;
+        ByteBuffer buffer = null;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long offsetUs = 0;
+        long samples = 0;
+        try {
+            for (File segment : segments) {
+                MediaExtractor extractor = new MediaExtractor();
+                try {
+                    try {
+                        extractor.setDataSource(segment.getPath());
+                    } catch (IOException e) {
+                        Log.w(TAG, "skipping unreadable segment " + segment, e);
+                        continue;
+                    }
+                    if (extractor.getTrackCount() < 1) {
+                        Log.w(TAG, "skipping empty segment " + segment);
+                        continue;
+                    }
+                    extractor.selectTrack(0);
+                    MediaFormat format = extractor.getTrackFormat(0);
+                    if (muxer == null) {
+                        muxer = new MediaMuxer(target.getPath(), outputFormat);
+                        track = muxer.addTrack(format);
+                        muxer.start();
+                    }
+                    int sampleSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                            ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+                            : DEFAULT_SAMPLE_SIZE;
+                    if (buffer == null || buffer.capacity() < sampleSize) {
+                        buffer = ByteBuffer.allocateDirect(sampleSize);
+                    }
+
+                    long lastUs = -1;
+                    long frameUs = 0;
+                    int size;
+                    while ((size = extractor.readSampleData(buffer, 0)) >= 0) {
+                        long timeUs = extractor.getSampleTime();
+                        if (lastUs >= 0) {
+                            frameUs = timeUs - lastUs;
+                        }
+                        lastUs = timeUs;
+                        int flags = (extractor.getSampleFlags()
+                                & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                                ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                        info.set(0, size, offsetUs + timeUs, flags);
+                        muxer.writeSampleData(track, buffer, info);
+                        samples++;
+                        extractor.advance();
+                    }
+                    if (lastUs < 0) {
+                        // no samples, takes no time
+                        continue;
+                    }
+                    if (frameUs <= 0) {
+                        // a single sample, nothing to measure the frame by
+                        frameUs = getNominalFrameUs(format);
+                    }
+                    // the next segment starts one frame after the last one here
+                    offsetUs += lastUs + frameUs;
+                } finally {
+                    extractor.release();
+                }
+            }
+            if (muxer == null || samples == 0) {
+                // stop() throws without a sample written
+                Log.w(TAG, "no samples in " + segments.size() + " segments");
+                return false;
+            }
+            muxer.stop();
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            Log.e(TAG, "join failed", e);
+            return false;
+        } finally {
+            if (muxer != null) {
+                muxer.release();
+            }
+        }
+        Log.d(TAG, "joined " + segments.size() + " segments, " + samples + " samples, "
+                + offsetUs / 1000 + " ms in " + (System.nanoTime() - startNs) / 1000000 + " ms");
+        return true;
+    }
+
+    // one encoded frame: 20 ms of Opus, 1024 samples of AAC
+    private static long getNominalFrameUs(MediaFormat format) {
+        if (MediaFormat.MIMETYPE_AUDIO_OPUS.equals(format.getString(MediaFormat.KEY_MIME))) {
+            return OPUS_FRAME_US;
+        }
+        int rate = format.containsKey(MediaFormat.KEY_SAMPLE_RATE)
+                ? format.getInteger(MediaFormat.KEY_SAMPLE_RATE) : 44100;
+        return AAC_FRAME_SAMPLES * 1000000L / rate;
+    }
+}
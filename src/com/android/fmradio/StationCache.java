@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.fmradio.FmStation.Station;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Station metadata received over RDS, kept in memory and written to the
+ * station list in batches. Updates only mark the station dirty and return;
+ * a worker flushes once they have settled for {@link #DEBOUNCE_MS}, at the
+ * latest {@link #MAX_DELAY_MS} after the first one, so a scrolling PS or a
+ * RadioText changing every few seconds costs one transaction instead of a
+ * query and a write per event. Values equal to the last one known are not
+ * written again.
+ *
+ * Rows are upserted without a lookup: the batch updates every dirty station
+ * and a second batch inserts those the update found no row for.
+ *
+ * Program identification and type are kept too, and what the list already
+ * has is loaded at start, so a station's genre and PI are known as soon as it
+ * is tuned. The list is loaded again whenever it changes, e.g. by a scan or
+ * a station being deleted, so a value is compared against what the list
+ * really holds and written again once it lost it.
+ */
+class StationCache {
+    private static final String TAG = "StationCache";
+
+    // quiet time after the last update before it is written
+    static final int DEBOUNCE_MS = 3000;
+    // longest an update waits while updates keep coming
+    static final int MAX_DELAY_MS = 15000;
+
+    /**
+     * What is known of one station.
+     */
+    private static final class Entry {
+        String ps;
+        String rt;
+        int pi = -1;
+        int pty = -1;
+        boolean psDirty;
+        boolean rtDirty;
+        boolean piDirty;
+        boolean ptyDirty;
+
+        boolean isDirty() {
+            return psDirty || rtDirty || piDirty || ptyDirty;
+        }
+    }
+
+    private final Context mContext;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private final Runnable mLoad = new Runnable() {
+        @Override
+        public void run() {
+            load();
+        }
+    };
+    private final ContentObserver mObserver;
+    // by station, guarded by this
+    private final SparseArray<Entry> mEntries = new SparseArray<>();
+    // elapsed realtime of the oldest unwritten update, 0 if none
+    private long mDirtySinceMs;
+
+    // statistics
+    private long mUpdates;
+    private long mUnchanged;
+    private long mFlushes;
+    private long mRowsWritten;
+    private long mInserts;
+    private long mFailures;
+    private long mLoads;
+    private long mLastBatchMs;
+    private long mMaxBatchMs;
+    private final long mCreatedMs = SystemClock.elapsedRealtime();
+
+    StationCache(Context context) {
+        mContext = context.getApplicationContext();
+        mThread = new HandlerThread("StationCache");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                // a scan notifies once per station, load once for all of them
+                mHandler.removeCallbacks(mLoad);
+                mHandler.post(mLoad);
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(Station.CONTENT_URI, true,
+                mObserver);
+        mHandler.post(mLoad);
+    }
+
+    // what the station list has now, values waiting to be written are newer
+    private void load() {
+        Cursor cursor = mContext.getContentResolver().query(Station.CONTENT_URI,
+                new String[] { Station.FREQUENCY, Station.PROGRAM_SERVICE, Station.RADIO_TEXT,
+                        Station.PROGRAM_ID, Station.PROGRAM_TYPE },
+                null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        SparseArray<Entry> rows = new SparseArray<>();
+        try {
+            while (cursor.moveToNext()) {
+                Entry row = new Entry();
+                row.ps = cursor.isNull(1) ? null : cursor.getString(1);
+                row.rt = cursor.isNull(2) ? null : cursor.getString(2);
+                row.pi = cursor.isNull(3) ? -1 : cursor.getInt(3);
+                row.pty = cursor.isNull(4) ? -1 : cursor.getInt(4);
+                rows.put(cursor.getInt(0), row);
+            }
+        } finally {
+            cursor.close();
+        }
+        synchronized (this) {
+            mLoads++;
+            for (int i = 0; i < mEntries.size(); i++) {
+                Entry entry = mEntries.valueAt(i);
+                Entry row = rows.get(mEntries.keyAt(i));
+                if (row == null) {
+                    // deleted, or never written
+                    row = new Entry();
+                }
+                if (!entry.psDirty) {
+                    entry.ps = row.ps;
+                }
+                if (!entry.rtDirty) {
+                    entry.rt = row.rt;
+                }
+                if (!entry.piDirty) {
+                    entry.pi = row.pi;
+                }
+                if (!entry.ptyDirty) {
+                    entry.pty = row.pty;
+                }
+            }
+            for (int i = 0; i < rows.size(); i++) {
+                if (mEntries.indexOfKey(rows.keyAt(i)) < 0) {
+                    mEntries.put(rows.keyAt(i), rows.valueAt(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * The station sent a program service name, never blocks.
+     */
+    void putProgramService(int station, String ps) {
+        synchronized (this) {
+            Entry entry = getEntry(station);
+            if (ps.equals(entry.ps)) {
+                mUnchanged++;
+                return;
+            }
+            entry.ps = ps;
+            entry.psDirty = true;
+            onDirty();
+        }
+    }
+
+    /**
+     * The station sent a RadioText, never blocks.
+     */
+    void putRadioText(int station, String rt) {
+        synchronized (this) {
+            Entry entry = getEntry(station);
+            if (rt.equals(entry.rt)) {
+                mUnchanged++;
+                return;
+            }
+            entry.rt = rt;
+            entry.rtDirty = true;
+            onDirty();
+        }
+    }
+
+    /**
+     * The station sent its program identification, never blocks.
+     */
+    synchronized void putProgramId(int station, int pi) {
+        Entry entry = getEntry(station);
+        if (entry.pi == pi) {
+            mUnchanged++;
+            return;
+        }
+        entry.pi = pi;
+        entry.piDirty = true;
+        onDirty();
+    }
+
+    /**
+     * The station sent its program type, never blocks.
+     */
+    synchronized void putProgramType(int station, int pty) {
+        Entry entry = getEntry(station);
+        if (entry.pty == pty) {
+            mUnchanged++;
+            return;
+        }
+        entry.pty = pty;
+        entry.ptyDirty = true;
+        onDirty();
+    }
+
+    /**
+     * @return the last program identification received, -1 if none was
+     */
+    synchronized int getProgramId(int station) {
+        Entry entry = mEntries.get(station);
+        return entry != null ? entry.pi : -1;
+    }
+
+    /**
+     * @return the last program type received, -1 if none was
+     */
+    synchronized int getProgramType(int station) {
+        Entry entry = mEntries.get(station);
+        return entry != null ? entry.pty : -1;
+    }
+
+    /**
+     * @return the last program service received, null if none was
+     */
+    synchronized String getProgramService(int station) {
+        Entry entry = mEntries.get(station);
+        return entry != null ? entry.ps : null;
+    }
+
+    /**
+     * @return the last RadioText received, null if none was
+     */
+    synchronized String getRadioText(int station) {
+        Entry entry = mEntries.get(station);
+        return entry != null ? entry.rt : null;
+    }
+
+    private Entry getEntry(int station) {
+        Entry entry = mEntries.get(station);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(station, entry);
+        }
+        return entry;
+    }
+
+    // called holding the lock
+    private void onDirty() {
+        mUpdates++;
+        long now = SystemClock.elapsedRealtime();
+        if (mDirtySinceMs == 0) {
+            mDirtySinceMs = now;
+        }
+        long due = Math.min(now + DEBOUNCE_MS, mDirtySinceMs + MAX_DELAY_MS);
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postDelayed(mFlush, Math.max(0, due - now));
+    }
+
+    /**
+     * Write the pending updates now, still on the worker.
+     */
+    void flushSoon() {
+        mHandler.removeCallbacks(mFlush);
+        mHandler.post(mFlush);
+    }
+
+    /**
+     * Write the pending updates and stop the worker.
+     */
+    void release() {
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        flushSoon();
+        mThread.quitSafely();
+    }
+
+    private void flush() {
+        ArrayList<ContentProviderOperation> updates = new ArrayList<>();
+        ArrayList<ContentValues> rows = new ArrayList<>();
+        synchronized (this) {
+            mDirtySinceMs = 0;
+            for (int i = 0; i < mEntries.size(); i++) {
+                Entry entry = mEntries.valueAt(i);
+                if (!entry.isDirty()) {
+                    continue;
+                }
+                ContentValues values = new ContentValues(5);
+                if (entry.psDirty) {
+                    values.put(Station.PROGRAM_SERVICE, entry.ps);
+                }
+                if (entry.rtDirty) {
+                    values.put(Station.RADIO_TEXT, entry.rt);
+                }
+                if (entry.piDirty) {
+                    values.put(Station.PROGRAM_ID, entry.pi);
+                }
+                if (entry.ptyDirty) {
+                    values.put(Station.PROGRAM_TYPE, entry.pty);
+                }
+                entry.psDirty = false;
+                entry.rtDirty = false;
+                entry.piDirty = false;
+                entry.ptyDirty = false;
+                int station = mEntries.keyAt(i);
+                updates.add(ContentProviderOperation.newUpdate(Station.CONTENT_URI)
+                        .withValues(values)
+                        .withSelection(Station.FREQUENCY + "=?",
+                                new String[] { String.valueOf(station) })
+                        .build());
+                ContentValues row = new ContentValues(values);
+                row.put(Station.FREQUENCY, station);
+                rows.add(row);
+            }
+        }
+        if (updates.isEmpty()) {
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        ContentProviderResult[] results = applyBatch(updates);
+        int inserts = 0;
+        if (results != null) {
+            ArrayList<ContentProviderOperation> missing = new ArrayList<>();
+            for (int i = 0; i < results.length; i++) {
+                if (results[i].count != null && results[i].count == 0) {
+                    // not in the list yet
+                    missing.add(ContentProviderOperation.newInsert(Station.CONTENT_URI)
+                            .withValues(rows.get(i))
+                            .build());
+                }
+            }
+            if (!missing.isEmpty() && applyBatch(missing) != null) {
+                inserts = missing.size();
+            }
+        }
+        long batchMs = SystemClock.elapsedRealtime() - start;
+        synchronized (this) {
+            mFlushes++;
+            if (results != null) {
+                mRowsWritten += rows.size();
+                mInserts += inserts;
+            }
+            mLastBatchMs = batchMs;
+            mMaxBatchMs = Math.max(mMaxBatchMs, batchMs);
+        }
+    }
+
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops) {
+        try {
+            return mContext.getContentResolver().applyBatch(FmStation.AUTHORITY, ops);
+        } catch (RemoteException | OperationApplicationException e) {
+            // the values stay cached, a later change of them is written again
+            Log.w(TAG, "station batch of " + ops.size() + " failed", e);
+            synchronized (this) {
+                mFailures++;
+            }
+            return null;
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        long minutes = Math.max(1, (SystemClock.elapsedRealtime() - mCreatedMs) / 60000);
+        pw.println("  StationCache: stations=" + mEntries.size() + " updates=" + mUpdates
+                + " unchanged=" + mUnchanged + " flushes=" + mFlushes
+                + " rowsWritten=" + mRowsWritten + " inserts=" + mInserts
+                + " failures=" + mFailures + " loads=" + mLoads + " flushesPerHour=" + mFlushes * 60 / minutes
+                + " batchMs=" + mLastBatchMs + " maxBatchMs=" + mMaxBatchMs
+                + " pending=" + (mDirtySinceMs != 0));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+/**
+ * Tracks free space for a recording without a statfs per encoded frame.
+ * Free space is sampled at a fixed media-time cadence, and in between it is
+ * estimated from what the recorder wrote. The measured output bitrate turns
+ * that into a projection of how much recording time is left.
+ *
+ * Called on the encoder thread only, except for the getters.
+ */
+class StorageMonitor {
+    static final int STATUS_OK = 0;
+    // less than the warning horizon left
+    static final int STATUS_LOW_SOON = 1;
+    // below the hard threshold, the recording has to stop
+    static final int STATUS_LOW = 2;
+
+    // sample free space this often, in media time
+    private static final long CHECK_INTERVAL_US = 10L * 1000 * 1000;
+    // and this often once the projection gets near the warning horizon
+    private static final long CLOSE_CHECK_INTERVAL_US = 1000L * 1000;
+    // warn this long before space runs out
+    private static final long WARN_AHEAD_SECONDS = 2 * 60;
+    // do not trust a bitrate measured over less than this
+    private static final long MIN_RATE_WINDOW_US = 2L * 1000 * 1000;
+
+    private final File mFile;
+    private final long mThreshold;
+
+    private long mFreeAtCheck = -1;
+    private long mWrittenAtCheck;
+    private long mLastCheckUs = Long.MIN_VALUE;
+    private long mFirstUs = -1;
+    private long mWritten;
+    private boolean mWarned;
+    private long mChecks;
+
+    private volatile long mSecondsLeft = -1;
+
+    /**
+     * @param file file being recorded, its file system is monitored
+     * @param threshold free bytes below which the recording must stop
+     */
+    StorageMonitor(File file, long threshold) {
+        mFile = file;
+        mThreshold = threshold;
+    }
+
+    /**
+     * Account for an encoded frame written to the file.
+     *
+     * @param bytes size of the frame
+     * @param presentationUs media time of the frame
+     * @return one of the STATUS_* constants; STATUS_LOW_SOON is returned once
+     */
+    int onWritten(int bytes, long presentationUs) {
+        if (mFirstUs < 0) {
+            mFirstUs = presentationUs;
+        }
+        mWritten += bytes;
+
+        long interval = mSecondsLeft >= 0 && mSecondsLeft < WARN_AHEAD_SECONDS * 2
+                ? CLOSE_CHECK_INTERVAL_US : CHECK_INTERVAL_US;
+        long estimatedFree;
+        if (presentationUs - mLastCheckUs >= interval || mFreeAtCheck < 0) {
+            mFreeAtCheck = mFile.getFreeSpace();
+            mWrittenAtCheck = mWritten;
+            mLastCheckUs = presentationUs;
+            mChecks++;
+            estimatedFree = mFreeAtCheck;
+        } else {
+            estimatedFree = mFreeAtCheck - (mWritten - mWrittenAtCheck);
+        }
+
+        if (estimatedFree < mThreshold) {
+            if (mLastCheckUs != presentationUs) {
+                // estimate says we crossed it, make sure before stopping
+                mFreeAtCheck = mFile.getFreeSpace();
+                mWrittenAtCheck = mWritten;
+                mLastCheckUs = presentationUs;
+                mChecks++;
+                estimatedFree = mFreeAtCheck;
+            }
+            if (estimatedFree < mThreshold) {
+                mSecondsLeft = 0;
+                return STATUS_LOW;
+            }
+        }
+
+        long elapsedUs = presentationUs - mFirstUs;
+        if (elapsedUs < MIN_RATE_WINDOW_US) {
+            return STATUS_OK;
+        }
+        // bytes per second of audio, the encoder output rate
+        long rate = mWritten * 1000000 / elapsedUs;
+        if (rate <= 0) {
+            return STATUS_OK;
+        }
+        mSecondsLeft = (estimatedFree - mThreshold) / rate;
+        if (!mWarned && mSecondsLeft < WARN_AHEAD_SECONDS) {
+            mWarned = true;
+            return STATUS_LOW_SOON;
+        }
+        return STATUS_OK;
+    }
+
+    /**
+     * @return projected recording time left, -1 while the bitrate is unknown
+     */
+    long getSecondsLeft() {
+        return mSecondsLeft;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  StorageMonitor: secondsLeft=" + mSecondsLeft + " written=" + mWritten
+                + " statfsCalls=" + mChecks);
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rolling window of the live audio, kept in a memory-mapped file so the heap
+ * does not grow however long the radio plays. The render thread appends every
+ * captured chunk and, while the listener is paused or behind live, plays from
+ * here instead of the live chunk.
+ *
+ * Positions are monotonic byte counters, so seeking to a time is a single
+ * multiplication and the oldest data is simply overwritten. All data access
+ * happens on the render thread; pause, seek and go-live requests from other
+ * threads are picked up on its next chunk.
+ */
+class TimeShiftBuffer {
+    private static final String TAG = "TimeShiftBuffer";
+
+    // marks a pending request to jump back to live
+    private static final long SEEK_LIVE = Long.MIN_VALUE;
+
+    private final File mFile;
+    private final long mWindowMs;
+
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mMap;
+    private ByteBuffer mWriteView;
+    private ByteBuffer mReadView;
+    private int mCapacity;
+    private int mFrameSize;
+    private int mSampleRate;
+
+    // bytes captured so far and the playback position, both monotonic
+    private volatile long mWritePos;
+    private long mPlayPos;
+    private volatile boolean mShifted;
+    private volatile boolean mPaused;
+    // accumulated seek request in ms, SEEK_LIVE to go live, applied by the render thread
+    private final AtomicLong mPendingSeekMs = new AtomicLong();
+
+    // statistics
+    private long mSeeks;
+    private long mCatchUps;
+    private long mOverwrittenBytes;
+
+    /**
+     * @param file backing file, created or truncated as needed
+     * @param windowMs how far back playback can go
+     */
+    TimeShiftBuffer(File file, long windowMs) {
+        mFile = file;
+        mWindowMs = windowMs;
+    }
+
+    /**
+     * Map the window for the given PCM format. The buffered audio is dropped
+     * when the format changes, since it could not be played back anyway.
+     *
+     * @return false if the backing file could not be mapped
+     */
+    synchronized boolean configure(int sampleRate, int frameSize) {
+        if (mMap != null && sampleRate == mSampleRate && frameSize == mFrameSize) {
+            return true;
+        }
+        release();
+        long capacity = mWindowMs * sampleRate / 1000 * frameSize;
+        if (capacity > Integer.MAX_VALUE) {
+            capacity = Integer.MAX_VALUE - Integer.MAX_VALUE % frameSize;
+        }
+        try {
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            mRandomAccessFile.setLength(capacity);
+            mMap = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to map " + mFile, e);
+            release();
+            return false;
+        }
+        mWriteView = mMap.duplicate();
+        mReadView = mMap.duplicate();
+        mCapacity = (int) capacity;
+        mSampleRate = sampleRate;
+        mFrameSize = frameSize;
+        mWritePos = 0;
+        mPlayPos = 0;
+        mShifted = false;
+        mPaused = false;
+        Log.d(TAG, "mapped " + mCapacity / 1024 + " KiB for " + mWindowMs / 1000 + " s");
+        return true;
+    }
+
+    /**
+     * Unmap and delete the backing file.
+     */
+    synchronized void release() {
+        mMap = null;
+        mWriteView = null;
+        mReadView = null;
+        mCapacity = 0;
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close failed", e);
+            }
+            mRandomAccessFile = null;
+        }
+        mFile.delete();
+    }
+
+    /**
+     * Render thread: append a live chunk.
+     */
+    void write(PcmBufferPool.Buffer buffer) {
+        ByteBuffer view = mWriteView;
+        if (view == null) {
+            return;
+        }
+        applyPendingSeek();
+        long w = mWritePos;
+        if (mPaused && !mShifted) {
+            // playback stops here, everything from now on is behind live
+            mPlayPos = w;
+            mShifted = true;
+        }
+        int length = buffer.size;
+        int index = (int) (w % mCapacity);
+        int first = Math.min(length, mCapacity - index);
+        put(view, index, buffer, 0, first);
+        if (first < length) {
+            put(view, 0, buffer, first, length - first);
+        }
+        mWritePos = w + length;
+
+        if (mShifted && mPlayPos < mWritePos - mCapacity) {
+            // paused for longer than the window, continue at the oldest audio
+            mOverwrittenBytes += mWritePos - mCapacity - mPlayPos;
+            mPlayPos = mWritePos - mCapacity;
+        }
+    }
+
+    private static void put(ByteBuffer view, int index, PcmBufferPool.Buffer buffer,
+            int offset, int length) {
+        view.limit(index + length).position(index);
+        if (buffer.direct != null) {
+            ByteBuffer src = buffer.direct.duplicate();
+            src.limit(offset + length).position(offset);
+            view.put(src);
+        } else {
+            view.put(buffer.data, offset, length);
+        }
+    }
+
+    /**
+     * Render thread: fill {@code dst} with {@code length} bytes of time-shifted
+     * audio. Once playback reaches live the buffer leaves the shifted state and
+     * the caller plays the live chunk again.
+     *
+     * @return true if {@code dst} was filled, false if playback is live
+     */
+    boolean read(PcmBufferPool.Buffer dst, int length) {
+        ByteBuffer view = mReadView;
+        if (view == null || !mShifted) {
+            return false;
+        }
+        // the chunk just written is the live one, anything before it is behind
+        if (mPlayPos + length > mWritePos - length) {
+            mShifted = false;
+            mCatchUps++;
+            Log.d(TAG, "caught up with live");
+            return false;
+        }
+        int index = (int) (mPlayPos % mCapacity);
+        int first = Math.min(length, mCapacity - index);
+        get(view, index, dst, 0, first);
+        if (first < length) {
+            get(view, 0, dst, first, length - first);
+        }
+        dst.size = length;
+        mPlayPos += length;
+        return true;
+    }
+
+    private static void get(ByteBuffer view, int index, PcmBufferPool.Buffer dst,
+            int offset, int length) {
+        view.limit(index + length).position(index);
+        if (dst.direct != null) {
+            dst.direct.limit(offset + length).position(offset);
+            dst.direct.put(view);
+            dst.direct.clear();
+        } else {
+            view.get(dst.data, offset, length);
+        }
+    }
+
+    private void applyPendingSeek() {
+        long seekMs = mPendingSeekMs.getAndSet(0);
+        if (seekMs == 0) {
+            return;
+        }
+        mSeeks++;
+        long live = mWritePos;
+        if (seekMs == SEEK_LIVE) {
+            mPlayPos = live;
+            mShifted = false;
+            return;
+        }
+        long from = mShifted ? mPlayPos : live;
+        long target = from + seekMs * mSampleRate / 1000 * mFrameSize;
+        long oldest = Math.max(0, live - mCapacity);
+        target = Math.max(oldest, Math.min(live, target));
+        mPlayPos = target - target % mFrameSize;
+        mShifted = mPlayPos < live;
+    }
+
+    /**
+     * Stop playback, live audio keeps being buffered. Resuming continues where
+     * playback paused.
+     */
+    void pause() {
+        mPaused = true;
+    }
+
+    void resume() {
+        mPaused = false;
+    }
+
+    /**
+     * Move playback by {@code deltaMs}, negative to go back. It is clamped to
+     * the window and to live.
+     */
+    void seekBy(long deltaMs) {
+        long pending;
+        do {
+            pending = mPendingSeekMs.get();
+        } while (!mPendingSeekMs.compareAndSet(pending,
+                pending == SEEK_LIVE ? deltaMs : pending + deltaMs));
+    }
+
+    void goLive() {
+        mPendingSeekMs.set(SEEK_LIVE);
+        mPaused = false;
+    }
+
+    /**
+     * @return true while the track must play from this buffer, or not at all
+     */
+    boolean isShifted() {
+        return mShifted || mPaused || mPendingSeekMs.get() != 0;
+    }
+
+    boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * @return how far playback is behind live
+     */
+    long getDelayMs() {
+        int rate = mSampleRate;
+        if (!mShifted || rate == 0) {
+            return 0;
+        }
+        return (mWritePos - mPlayPos) / mFrameSize * 1000 / rate;
+    }
+
+    /**
+     * @return how far back playback can currently go
+     */
+    long getAvailableMs() {
+        int rate = mSampleRate;
+        if (rate == 0) {
+            return 0;
+        }
+        return Math.min(mWritePos, mCapacity) / mFrameSize * 1000 / rate;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  TimeShiftBuffer: windowMs=" + mWindowMs + " capacity=" + mCapacity
+                + " availableMs=" + getAvailableMs() + " delayMs=" + getDelayMs()
+                + " paused=" + mPaused + " seeks=" + mSeeks + " catchUps=" + mCatchUps
+                + " overwrittenBytes=" + mOverwrittenBytes);
+    }
+}
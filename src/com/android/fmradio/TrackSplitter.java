@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Finds track boundaries in a recording while it is encoded and writes them
+ * as a CUE sheet next to it ({@code name.cue}), which players show as
+ * chapters. A boundary is where the audio comes back after a silence gap, or
+ * where the RDS RadioText changes. Boundaries closer than the minimum track
+ * length to the previous one are ignored; a RadioText arriving shortly after
+ * a boundary names that track instead of starting another.
+ *
+ * Runs in constant memory: a handful of accumulators and the last few
+ * boundaries, which a recording starting with buffered history picks up.
+ * Only used on the recorder thread.
+ */
+class TrackSplitter {
+    private static final String TAG = "TrackSplitter";
+
+    static final String SUFFIX = ".cue";
+    // silence is decided per window of this length
+    private static final int WINDOW_MS = 20;
+    // boundaries kept for a recording that starts in the past
+    private static final int MAX_BOUNDARIES = 16;
+    // a RadioText this soon after a boundary names the track it starts
+    private static final int TITLE_GRACE_MS = 20000;
+    private static final int CUE_FRAMES_PER_SECOND = 75;
+
+    private static final int REASON_SILENCE = 0;
+    private static final int REASON_RADIO_TEXT = 1;
+
+    private final int mSampleRate;
+    private final int mChannels;
+    private final boolean mIsFloat;
+    private final double mSilencePower;
+    private final long mSilenceFrames;
+    private final long mMinTrackFrames;
+    private final long mTitleGraceFrames;
+    private final int mWindowSamples;
+
+    // input frames analyzed, the timeline boundaries are on
+    private long mFrames;
+    private double mWindowSquares;
+    private int mWindowCount;
+    // start of the running silence, -1 while there is sound
+    private long mSilentSince = -1;
+    private String mRadioText = "";
+
+    // the last boundaries, by count modulo length
+    private final long[] mBoundaryFrame = new long[MAX_BOUNDARIES];
+    private final String[] mBoundaryTitle = new String[MAX_BOUNDARIES];
+    private int mBoundaryCount;
+    private long mLastBoundary = Long.MIN_VALUE / 2;
+
+    // output, while a file is written
+    private Writer mWriter;
+    private long mOriginFrame;
+    private int mNextWrite;
+    private int mTracks;
+
+    // statistics
+    private int mSilenceBoundaries;
+    private int mRadioTextBoundaries;
+    private int mSuppressed;
+
+    /**
+     * @param silenceDb level below which a window counts as silent, in dBFS
+     * @param silenceMs how long a gap must be to end a track
+     * @param minTrackMs shortest track
+     */
+    TrackSplitter(int sampleRate, int channels, boolean isFloat, int silenceDb, int silenceMs,
+            int minTrackMs) {
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mIsFloat = isFloat;
+        mSilencePower = Math.pow(10, silenceDb / 10.0);
+        mSilenceFrames = (long) sampleRate * silenceMs / 1000;
+        mMinTrackFrames = (long) sampleRate * minTrackMs / 1000;
+        mTitleGraceFrames = (long) sampleRate * TITLE_GRACE_MS / 1000;
+        mWindowSamples = sampleRate * WINDOW_MS / 1000 * channels;
+    }
+
+    static File getFile(File recording) {
+        return new File(recording.getPath() + SUFFIX);
+    }
+
+    /**
+     * Account the PCM about to be encoded, read from {@code buffer} at
+     * {@code offset} in native order.
+     */
+    void addPcm(ByteBuffer buffer, int offset, int length) {
+        if (buffer.order() != ByteOrder.nativeOrder()) {
+            buffer = buffer.duplicate().order(ByteOrder.nativeOrder());
+        }
+        int sampleSize = mIsFloat ? 4 : 2;
+        int samples = length / sampleSize;
+        for (int i = 0; i < samples; i++) {
+            int position = offset + i * sampleSize;
+            float sample = mIsFloat ? buffer.getFloat(position)
+                    : buffer.getShort(position) / 32768f;
+            mWindowSquares += sample * sample;
+            if (++mWindowCount == mWindowSamples) {
+                completeWindow(mFrames + (i + 1) / mChannels);
+            }
+        }
+        mFrames += samples / mChannels;
+        flush();
+    }
+
+    private void completeWindow(long windowEnd) {
+        long windowStart = windowEnd - mWindowSamples / mChannels;
+        boolean silent = mWindowSquares / mWindowCount < mSilencePower;
+        mWindowSquares = 0;
+        mWindowCount = 0;
+        if (silent) {
+            if (mSilentSince < 0) {
+                mSilentSince = windowStart;
+            }
+        } else {
+            if (mSilentSince >= 0 && windowStart - mSilentSince >= mSilenceFrames) {
+                // the next track starts with the sound
+                addBoundary(windowStart, REASON_SILENCE, null);
+            }
+            mSilentSince = -1;
+        }
+    }
+
+    /**
+     * The RadioText changed, at {@code frame} on the input timeline.
+     */
+    void onRadioText(String text, long frame) {
+        if (text == null || text.isEmpty() || text.equals(mRadioText)) {
+            return;
+        }
+        mRadioText = text;
+        int last = mBoundaryCount - 1;
+        if (last >= 0 && frame - mLastBoundary < mTitleGraceFrames
+                && mBoundaryTitle[last % MAX_BOUNDARIES] == null && last >= mNextWrite) {
+            // most likely the text of the track that just started
+            mBoundaryTitle[last % MAX_BOUNDARIES] = text;
+            flush();
+            return;
+        }
+        addBoundary(frame, REASON_RADIO_TEXT, text);
+    }
+
+    private void addBoundary(long frame, int reason, String title) {
+        if (frame - mLastBoundary < mMinTrackFrames) {
+            mSuppressed++;
+            return;
+        }
+        int i = mBoundaryCount % MAX_BOUNDARIES;
+        mBoundaryFrame[i] = frame;
+        mBoundaryTitle[i] = title;
+        mBoundaryCount++;
+        mLastBoundary = frame;
+        if (reason == REASON_SILENCE) {
+            mSilenceBoundaries++;
+        } else {
+            mRadioTextBoundaries++;
+        }
+        flush();
+    }
+
+    /**
+     * Start the CUE sheet of {@code recording}.
+     *
+     * @param originFrame input frame the recording starts with
+     * @return false if the file could not be created, the recording goes on
+     */
+    boolean open(File recording, long originFrame) {
+        close();
+        File file = getFile(recording);
+        try {
+            mWriter = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            Log.w(TAG, "failed creating " + file, e);
+            return false;
+        }
+        mOriginFrame = originFrame;
+        mTracks = 0;
+        // the boundaries still known that fall into the recording
+        mNextWrite = Math.max(0, mBoundaryCount - MAX_BOUNDARIES);
+        while (mNextWrite < mBoundaryCount
+                && mBoundaryFrame[mNextWrite % MAX_BOUNDARIES] <= originFrame) {
+            mNextWrite++;
+        }
+        String title = mNextWrite > 0 && mBoundaryCount - mNextWrite < MAX_BOUNDARIES
+                ? mBoundaryTitle[(mNextWrite - 1) % MAX_BOUNDARIES] : null;
+        write("FILE \"" + quote(recording.getName()) + "\" "
+                + RecordingFormat.getCueFileTypeOfFile(recording.getName()) + "\n");
+        writeTrack(originFrame, title != null ? title : mRadioText);
+        flush();
+        return mWriter != null;
+    }
+
+    // write the boundaries whose title is settled
+    private void flush() {
+        while (mWriter != null && mNextWrite < mBoundaryCount) {
+            int i = mNextWrite % MAX_BOUNDARIES;
+            boolean newest = mNextWrite == mBoundaryCount - 1;
+            if (newest && mBoundaryTitle[i] == null
+                    && mFrames - mBoundaryFrame[i] < mTitleGraceFrames) {
+                return;
+            }
+            writeTrack(mBoundaryFrame[i], mBoundaryTitle[i]);
+            mNextWrite++;
+        }
+    }
+
+    private void writeTrack(long frame, String title) {
+        mTracks++;
+        long cueFrames = Math.max(0, frame - mOriginFrame) * CUE_FRAMES_PER_SECOND / mSampleRate;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "  TRACK %02d AUDIO\n", mTracks));
+        if (title != null && !title.isEmpty()) {
+            sb.append("    TITLE \"").append(quote(title)).append("\"\n");
+        }
+        sb.append(String.format(Locale.US, "    INDEX 01 %02d:%02d:%02d\n",
+                cueFrames / CUE_FRAMES_PER_SECOND / 60,
+                cueFrames / CUE_FRAMES_PER_SECOND % 60,
+                cueFrames % CUE_FRAMES_PER_SECOND));
+        write(sb.toString());
+    }
+
+    private static String quote(String s) {
+        return s.replace('"', '\'');
+    }
+
+    private void write(String s) {
+        if (mWriter == null) {
+            // dropped on an earlier failure
+            return;
+        }
+        try {
+            mWriter.write(s);
+            // small and rare, keep the sheet current in case of a crash
+            mWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "write failed, track markers dropped", e);
+            closeWriter();
+        }
+    }
+
+    /**
+     * Write the pending boundaries and close the sheet.
+     */
+    void close() {
+        if (mWriter == null) {
+            return;
+        }
+        while (mWriter != null && mNextWrite < mBoundaryCount) {
+            int i = mNextWrite % MAX_BOUNDARIES;
+            writeTrack(mBoundaryFrame[i], mBoundaryTitle[i]);
+            mNextWrite++;
+        }
+        closeWriter();
+    }
+
+    private void closeWriter() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close failed", e);
+            }
+        }
+        mWriter = null;
+    }
+
+    /**
+     * Move the sheet of {@code source} along with a renamed recording, the
+     * sheet refers to the recording by name.
+     */
+    static void move(File source, File target) {
+        File from = getFile(source);
+        if (!from.exists() || source.equals(target)) {
+            return;
+        }
+        File to = getFile(target);
+        StringBuilder sb = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(from), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("FILE ")) {
+                    line = "FILE \"" + quote(target.getName()) + "\" "
+                            + RecordingFormat.getCueFileTypeOfFile(target.getName());
+                }
+                sb.append(line).append('\n');
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed reading " + from, e);
+            from.delete();
+            return;
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(to),
+                StandardCharsets.UTF_8)) {
+            writer.write(sb.toString());
+        } catch (IOException e) {
+            Log.w(TAG, "failed writing " + to, e);
+            to.delete();
+        }
+        from.delete();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  TrackSplitter: audioMs=" + mFrames * 1000 / mSampleRate
+                + " silent=" + (mSilentSince >= 0) + " silenceBoundaries=" + mSilenceBoundaries
+                + " radioTextBoundaries=" + mRadioTextBoundaries
+                + " suppressed=" + mSuppressed + " writing=" + (mWriter != null)
+                + " tracks=" + mTracks);
+    }
+}
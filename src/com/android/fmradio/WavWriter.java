@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.fmradio;
+
+import android.media.AudioFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams PCM into a WAV file without any encoding. The header is written
+ * up front with empty sizes and patched when the file is closed; a file left
+ * behind by a crash is fixed up from its length by {@link #repair(File)}.
+ *
+ * The sizes are 32 bit, past 4 GB (about 6 hours of 48 kHz stereo 16 bit)
+ * they saturate and players fall back to the file length.
+ *
+ * 16 bit PCM gets the plain 44 byte header. Float, not being PCM, gets the
+ * 18 byte fmt chunk with an empty extension and a fact chunk with the frame
+ * count, as strict readers require of non-PCM formats.
+ */
+class WavWriter {
+    private static final String TAG = "WavWriter";
+
+    static final int HEADER_SIZE = 44;
+    static final int FLOAT_HEADER_SIZE = 58;
+    private static final int RIFF_SIZE_OFFSET = 4;
+    private static final int FORMAT_OFFSET = 20;
+    private static final int BLOCK_ALIGN_OFFSET = 32;
+    // float only: frames in the fact chunk
+    private static final int FACT_FRAMES_OFFSET = 46;
+    private static final short FORMAT_PCM = 1;
+    private static final short FORMAT_IEEE_FLOAT = 3;
+    private static final long MAX_SIZE = 0xffffffffL;
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final boolean mIsFloat;
+    private final int mFrameSize;
+    private long mDataBytes;
+
+    WavWriter(File file, AudioFormat format) throws IOException {
+        mStream = new FileOutputStream(file);
+        mChannel = mStream.getChannel();
+        mIsFloat = format.getEncoding() == AudioFormat.ENCODING_PCM_FLOAT;
+        mFrameSize = format.getChannelCount() * (mIsFloat ? 4 : 2);
+        ByteBuffer header = createHeader(format);
+        while (header.hasRemaining()) {
+            mChannel.write(header);
+        }
+    }
+
+    private static ByteBuffer createHeader(AudioFormat format) {
+        boolean isFloat = format.getEncoding() == AudioFormat.ENCODING_PCM_FLOAT;
+        int sampleSize = isFloat ? 4 : 2;
+        int channels = format.getChannelCount();
+        int rate = format.getSampleRate();
+        ByteBuffer header = ByteBuffer.allocate(getHeaderSize(isFloat))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] { 'R', 'I', 'F', 'F' });
+        header.putInt(0);
+        header.put(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' });
+        header.putInt(isFloat ? 18 : 16);
+        header.putShort(isFloat ? FORMAT_IEEE_FLOAT : FORMAT_PCM);
+        header.putShort((short) channels);
+        header.putInt(rate);
+        header.putInt(rate * channels * sampleSize);
+        header.putShort((short) (channels * sampleSize));
+        header.putShort((short) (sampleSize * 8));
+        if (isFloat) {
+            // cbSize, no extension
+            header.putShort((short) 0);
+            header.put(new byte[] { 'f', 'a', 'c', 't' });
+            header.putInt(4);
+            header.putInt(0);
+        }
+        header.put(new byte[] { 'd', 'a', 't', 'a' });
+        header.putInt(0);
+        header.flip();
+        return header;
+    }
+
+    private static int getHeaderSize(boolean isFloat) {
+        return isFloat ? FLOAT_HEADER_SIZE : HEADER_SIZE;
+    }
+
+    /**
+     * Append the remaining bytes of {@code src}, native order PCM.
+     */
+    void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            mDataBytes += mChannel.write(src);
+        }
+    }
+
+    long getDataBytes() {
+        return mDataBytes;
+    }
+
+    /**
+     * Patch the sizes into the header and close the file.
+     */
+    void close() throws IOException {
+        try {
+            patchSizes(mChannel, mDataBytes, mIsFloat, mFrameSize);
+        } finally {
+            mStream.close();
+        }
+    }
+
+    private static void patchSizes(FileChannel channel, long dataBytes, boolean isFloat,
+            int frameSize) throws IOException {
+        int headerSize = getHeaderSize(isFloat);
+        ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        size.putInt(0, (int) Math.min(MAX_SIZE, dataBytes + headerSize - 8));
+        channel.write(size, RIFF_SIZE_OFFSET);
+        size.clear();
+        size.putInt(0, (int) Math.min(MAX_SIZE, dataBytes));
+        // the data size ends the header
+        channel.write(size, headerSize - 4);
+        if (isFloat) {
+            size.clear();
+            size.putInt(0, (int) Math.min(MAX_SIZE, dataBytes / frameSize));
+            channel.write(size, FACT_FRAMES_OFFSET);
+        }
+    }
+
+    /**
+     * Fill in the sizes of a WAV file that was never closed.
+     *
+     * @return true if the header had to be patched
+     */
+    static boolean repair(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            if (length <= HEADER_SIZE) {
+                return false;
+            }
+            ByteBuffer field = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            FileChannel channel = raf.getChannel();
+            channel.read(field, FORMAT_OFFSET);
+            boolean isFloat = field.getShort(0) == FORMAT_IEEE_FLOAT;
+            int headerSize = getHeaderSize(isFloat);
+            field.clear();
+            channel.read(field, BLOCK_ALIGN_OFFSET);
+            int frameSize = field.getShort(0);
+            if (length <= headerSize || frameSize <= 0) {
+                return false;
+            }
+            field.clear();
+            channel.read(field, headerSize - 4);
+            if (field.getInt(0) != 0) {
+                return false;
+            }
+            long dataBytes = length - headerSize;
+            patchSizes(channel, dataBytes, isFloat, frameSize);
+            Log.i(TAG, "repaired " + file + ", " + dataBytes + " bytes of PCM");
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "failed to repair " + file, e);
+            return false;
+        }
+    }
+}
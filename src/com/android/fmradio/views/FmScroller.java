@@ -107,6 +107,7 @@ public class FmScroller extends FrameLayout {
     private Adjuster mAdjuster;
     private int mCurrentStation;
     private boolean mIsFmPlaying;
+    private FmVisualizerView.LevelSource mLevelSource;
 
     private FavoriteAdapter mAdapter;
     private final Scroller mScroller;
@@ -820,6 +821,7 @@ public class FmScroller extends FrameLayout {
             } else {
                 viewHolder = (ViewHolder) convertView.getTag();
             }
+            viewHolder.mPlayIndicator.setLevelSource(mLevelSource);
 
             if (mCursor != null && mCursor.moveToPosition(position)) {
                 final int stationFreq = mCursor.getInt(mCursor
@@ -1060,6 +1062,18 @@ public class FmScroller extends FrameLayout {
         void onPlay(int frequency);
     }
 
+    /**
+     * Set where the play indicator takes its audio levels from
+     *
+     * @param source The level source, or null for a random pattern
+     */
+    public void setLevelSource(FmVisualizerView.LevelSource source) {
+        mLevelSource = source;
+        if (mAdapter != null) {
+            mAdapter.notifyDataSetChanged();
+        }
+    }
+
     /**
      * Refresh the play indicator in gridview when play station or play state change
      *
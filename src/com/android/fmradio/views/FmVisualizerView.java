@@ -48,7 +48,27 @@ public final class FmVisualizerView extends View {
             +0.4f, 1f, -0.2f
     };
 
-    private float[] mPrevLevels = DEFALT_VISUALIZER_LEVEL;
+    private final float[] mLevels = new float[COLUME_COUNTS];
+
+    private final float[] mPrevLevels = DEFALT_VISUALIZER_LEVEL.clone();
+
+    private final RectF mRect = new RectF();
+
+    private LevelSource mLevelSource;
+
+    /**
+     * Supplies real audio levels to draw
+     */
+    public interface LevelSource {
+        /**
+         * Fill {@code levels} with one value per column, each in -1..1.
+         * Called from onDraw, so it must not allocate.
+         *
+         * @param levels The array to fill
+         * @return false if no levels are available right now
+         */
+        boolean readLevels(float[] levels);
+    }
 
     /**
      * Constructor method
@@ -101,6 +121,16 @@ public final class FmVisualizerView extends View {
         mColumnPadding = padding;
     }
 
+    /**
+     * Set where the animated levels come from. Without a source, or while it
+     * has no data, a random pattern is drawn.
+     *
+     * @param source The level source, or null
+     */
+    public void setLevelSource(LevelSource source) {
+        mLevelSource = source;
+    }
+
     /**
      * Start the animation
      */
@@ -158,11 +188,14 @@ public final class FmVisualizerView extends View {
                 / COLUME_COUNTS;
         float colHeight = (float) (viewHeight - paddingBottom - paddingTop);
 
-        float levels[] = new float[COLUME_COUNTS];
+        float[] levels;
         if (!mAnimate) {
             levels = DEFALT_VISUALIZER_LEVEL;
         } else {
-            levels = generate(COLUME_COUNTS);
+            levels = mLevels;
+            if (mLevelSource == null || !mLevelSource.readLevels(levels)) {
+                generate(levels);
+            }
         }
         for (int i = 0; i < COLUME_COUNTS; i++) {
             float left = paddingLeft + i * (mColumnPadding + colWidth);
@@ -173,37 +206,28 @@ public final class FmVisualizerView extends View {
                 startY = paddingTop;
             }
             float bottom = viewHeight - paddingBottom;
-            RectF rect = new RectF(left, startY, right, bottom);
-            canvas.drawRect(rect, mPaint);
+            mRect.set(left, startY, right, bottom);
+            canvas.drawRect(mRect, mPaint);
         }
         mHandler.removeCallbacks(mRefreashRunnable);
         mHandler.postDelayed(mRefreashRunnable, mFrequency);
     }
 
     /**
-     * Used to generate out the float array with specify array count
+     * Used to fill the float array with random levels
      *
-     * @param count The array count
-     * @return A float array with specify array count
+     * @param result The array to fill
      */
-    private float[] generate(int count) {
-        if (count <= 0) {
-            return null;
-        }
-        int[] sign = {
-                -1, 1
-        };
-        float[] result = new float[count];
-        for (int i = 0; i < count; i++) {
+    private void generate(float[] result) {
+        for (int i = 0; i < result.length; i++) {
             while (true) {
                 result[i] = (float) Math.random() * 1f
-                        * (float) sign[(int) (Math.random() * 2)];
+                        * (Math.random() < 0.5 ? -1f : 1f);
                 if (Math.abs(mPrevLevels[i] - result[i]) < 0.3f & result[i] > -0.3f) {
                     break;
                 }
             }
+            mPrevLevels[i] = result[i];
         }
-        mPrevLevels = result;
-        return result;
     }
 }